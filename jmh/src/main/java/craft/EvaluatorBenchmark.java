@@ -0,0 +1,122 @@
+package craft;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * 比较不同执行方式的性能。
+ * 同一个脚本先解析一次，然后分别用SimpleScript遍历AST和FlatAST的数组、ClosureCompiler编译的节点树、
+ * StackVM的指令流和BytecodeCompiler生成的类反复执行。
+ * 脚本从变量x读取输入，每次执行前给x一个不同的值，JIT不能把整个脚本当作常量计算。
+ * ClosureCompiler还按CHECKED和LONG模式各编译一次，x在0到1023之间时所有的值都在int范围内，
+ * 用来比较小数字的脚本在各种模式下的速度。
+ * 用法：java -jar jmh/build/libs/benchmarks.jar EvaluatorBenchmark -prof gc [-p backend=closure,bytecode]
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EvaluatorBenchmark {
+
+    /**
+     * 只运行这个类中的基准测试，带上gc profiler，其他参数原样交给JMH
+     */
+    public static void main(String[] args) throws Exception {
+        String[] options = new String[args.length + 3];
+        options[0] = EvaluatorBenchmark.class.getSimpleName();
+        options[1] = "-prof";
+        options[2] = "gc";
+        System.arraycopy(args, 0, options, 3, args.length);
+        org.openjdk.jmh.Main.main(options);
+    }
+
+    private static final String SCRIPT =
+            "int a = x + 2;" +
+            "int b = a * 3 - 7;" +
+            "int c = (a + b) / 4;" +
+            "a = a + b * c - (b - c) / 3;" +
+            "b = (a - c) * 2 + b / 5;" +
+            "a + b * 2 - (c + 1) * ((a - b) / 7);";
+
+    @Param({"tree-walker", "flat-ast", "closure", "closure-checked", "closure-long", "stack-vm", "bytecode"})
+    public String backend;
+
+    //所有的执行方式都在SimpleScript的变量上执行
+    private Environment variables;
+    private int x;
+    //下一次执行时x的值
+    private int input = 0;
+    private Operation operation;
+
+    @Setup
+    public void setup() throws Exception {
+        SimpleScript script = new SimpleScript();
+        SimpleParser parser = new SimpleParser(script.getSymbols());
+        ASTNode tree = parser.parse(SCRIPT);
+        variables = script.getEnvironment();
+        x = variables.slotOf("x");
+
+        ClosureCompiler compiler = new ClosureCompiler();
+        switch (backend) {
+            case "tree-walker":
+                operation = () -> script.evaluate(tree, 0);
+                break;
+            case "flat-ast":
+                FlatAST flat = FlatAST.encode(tree, parser.getSymbols());
+                operation = () -> script.evaluate(flat);
+                break;
+            case "closure":
+            case "closure-checked":
+            case "closure-long":
+                compiler.setArithmeticMode(backend.equals("closure") ? ArithmeticMode.WRAP
+                        : backend.equals("closure-checked") ? ArithmeticMode.CHECKED : ArithmeticMode.LONG);
+                ClosureCompiler.Program program = compiler.compile(tree, variables);
+                operation = () -> program.execute(variables);
+                break;
+            case "stack-vm":
+                StackVM vm = new StackVM();
+                int[] code = vm.compile(tree, variables);
+                operation = () -> vm.run(code, variables);
+                break;
+            case "bytecode":
+                CompiledScript compiled = new BytecodeCompiler().compile(tree, variables);
+                operation = () -> compiled.execute(variables);
+                break;
+            default:
+                throw new Exception("unknown backend: " + backend);
+        }
+
+        //结果要和遍历AST一样
+        variables.store(x, 45);
+        Number expected = script.evaluate(tree, 0);
+        variables.store(x, 45);
+        Number actual = operation.execute();
+        if (expected.longValue() != actual.longValue()) {
+            throw new IllegalStateException("results differ: " + expected + " != " + actual);
+        }
+    }
+
+    @Benchmark
+    public Number execute() throws Exception {
+        variables.store(x, input++ & 1023);
+        return operation.execute();
+    }
+
+    private interface Operation {
+        Number execute() throws Exception;
+    }
+
+}
@@ -0,0 +1,150 @@
+package craft;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * 词法分析、语法分析和求值三个阶段的JMH基准测试。
+ * 脚本按三个参数生成：语句数(size)、表达式的嵌套深度(depth)和变量个数(vars)，对每一组参数分别测量
+ * SimpleLexer.tokenize()、SimpleParser.parse()和SimpleScript.evaluate()。
+ * 求值阶段只测量执行，脚本事先用SimpleScript.prepare()编译好。
+ *
+ * 同时报告吞吐量(ops/us)和平均时间(us/op)；加上-prof gc时还报告分配速率和每次操作分配的内存
+ * (gc.alloc.rate.norm，B/op)。benchmark/baseline.txt是用默认参数运行的结果，用法见README。
+ * 用法：java -jar jmh/build/libs/benchmarks.jar PhaseBenchmark -prof gc [-p size=100 -p depth=8 ...]
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PhaseBenchmark {
+
+    /**
+     * 只运行这个类中的基准测试，带上gc profiler，其他参数原样交给JMH
+     */
+    public static void main(String[] args) throws Exception {
+        String[] options = new String[args.length + 3];
+        options[0] = PhaseBenchmark.class.getSimpleName();
+        options[1] = "-prof";
+        options[2] = "gc";
+        System.arraycopy(args, 0, options, 3, args.length);
+        org.openjdk.jmh.Main.main(options);
+    }
+
+    //赋值语句的数量
+    @Param({"10", "100", "1000"})
+    public int size;
+
+    //表达式的嵌套深度
+    @Param({"2", "8"})
+    public int depth;
+
+    //变量个数
+    @Param({"4", "64"})
+    public int vars;
+
+    private String script;
+    private SimpleLexer lexer;
+    private SimpleParser parser;
+    private SimpleScript evaluator;
+    private ClosureCompiler.Program program;
+
+    /**
+     * 准备好每个阶段的输入，测量时只执行这个阶段本身
+     */
+    @Setup
+    public void setup() throws Exception {
+        script = generate(size, depth, vars, 1);
+        lexer = new SimpleLexer();
+        parser = new SimpleParser();
+        evaluator = new SimpleScript();
+        program = evaluator.prepare(new SimpleParser(evaluator.getSymbols()).parse(script));
+    }
+
+    @Benchmark
+    public int lex() {
+        TokenReader tokens = lexer.tokenize(script);
+        int count = 0;
+        while (tokens.read() != null) {
+            count++;
+        }
+        return count;
+    }
+
+    @Benchmark
+    public ASTNode parse() throws Exception {
+        return parser.parse(script);
+    }
+
+    @Benchmark
+    public Number evaluate() throws Exception {
+        return evaluator.evaluate(program);
+    }
+
+    /**
+     * 生成测试用的脚本：先声明vars个变量，再是size条赋值语句，
+     * 每条语句的右边是一个嵌套depth层括号的表达式，用到的变量和运算符随机选择。
+     * 只用加减乘，不会出现除数为0。
+     * @param size 赋值语句的数量
+     * @param depth 表达式的嵌套深度
+     * @param vars 变量个数
+     * @param seed 随机数种子，同样的参数和种子生成同样的脚本
+     * @return
+     */
+    public static String generate(int size, int depth, int vars, long seed) {
+        Random random = new Random(seed);
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < vars; i++) {
+            sb.append("int v").append(i).append(" = ").append(i + 1).append(";\n");
+        }
+        for (int i = 0; i < size; i++) {
+            sb.append('v').append(i % vars).append(" = ");
+            expression(sb, depth, vars, random);
+            sb.append(";\n");
+        }
+        return sb.toString();
+    }
+
+    private static void expression(StringBuilder sb, int depth, int vars, Random random) {
+        if (depth == 0) {
+            operand(sb, vars, random);
+            return;
+        }
+        char op = "+-*".charAt(random.nextInt(3));
+        sb.append('(');
+        //嵌套交替出现在左边和右边
+        if (depth % 2 == 0) {
+            expression(sb, depth - 1, vars, random);
+            sb.append(' ').append(op).append(' ');
+            operand(sb, vars, random);
+        } else {
+            operand(sb, vars, random);
+            sb.append(' ').append(op).append(' ');
+            expression(sb, depth - 1, vars, random);
+        }
+        sb.append(')');
+    }
+
+    private static void operand(StringBuilder sb, int vars, Random random) {
+        if (random.nextInt(3) == 0) {
+            sb.append(random.nextInt(100));
+        } else {
+            sb.append('v').append(random.nextInt(vars));
+        }
+    }
+
+}
@@ -0,0 +1,44 @@
+package craft;
+
+/**
+ * 整数运算的方式。
+ * 运算在内部都以long进行，模式决定了超出int范围的结果怎么处理：
+ * WRAP和Java的int一样按32位回绕，这是默认的方式；
+ * CHECKED在int溢出时抛出ArithmeticException("integer overflow")；
+ * LONG使用64位的long，按64位回绕。
+ *
+ * LONG模式下值仍然优先用int保存，只有真正超出int范围的值才用long保存，
+ * 所以小数字的脚本在各种模式下的存储方式都一样。
+ */
+public enum ArithmeticMode {
+
+    WRAP,
+    CHECKED,
+    LONG;
+
+    public static void main(String[] args) {
+        for (ArithmeticMode mode : ArithmeticMode.values()) {
+            try {
+                long value = BinaryOperator.Star.apply(65536, 65536, mode);
+                System.out.println(mode + "\t65536*65536 = " + value);
+            } catch (ArithmeticException e) {
+                System.out.println(mode + "\t65536*65536: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * 把一个值(比如字面量或者变量的值)转换成这个模式下的值
+     * @param value
+     * @return
+     * @throws ArithmeticException CHECKED模式下超出int的范围
+     */
+    public long normalize(long value) {
+        //求值时每个叶子节点都会调用，比较引用比对枚举做switch快
+        if (this == WRAP) {
+            return (int) value;
+        }
+        return this == CHECKED ? Math.toIntExact(value) : value;
+    }
+
+}
@@ -0,0 +1,406 @@
+package craft;
+
+import craft.TypedASTNode.BinaryNode;
+import craft.TypedASTNode.ExpressionNode;
+import craft.TypedASTNode.IdentifierNode;
+import craft.TypedASTNode.LiteralNode;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * 按列批量求值。
+ * 同一个表达式要对很多行数据求值时，每个变量的值放在一个int数组(列)中，结果也写到一个int数组中。
+ * 表达式先编译成后缀形式的指令，然后每次处理一块(BLOCK行)数据：每条指令对整块数据做同一种运算，
+ * 运算由BatchKernel完成。编译了src/vector/java中的VectorBatchKernel、运行时又加了jdk.incubator.vector模块时
+ * 使用Vector API，否则逐个元素计算。
+ *
+ * 结果和SimpleScript对每一行求值完全一致：运算按int溢出回绕，除法向0取整；
+ * 出错时抛出的异常也和逐行求值时第一个出错的行一样。
+ */
+public class BatchEvaluator {
+
+    public static void main(String[] args) throws Exception {
+        int rows = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+        String script = "a*3 + b/2 - a/(b + 1000);";
+        Random random = new Random(1);
+        Map<String, int[]> columns = new HashMap<>();
+        int[] a = new int[rows];
+        int[] b = new int[rows];
+        for (int i = 0; i < rows; i++) {
+            a[i] = random.nextInt();
+            b[i] = random.nextInt(2000) - 999;
+        }
+        columns.put("a", a);
+        columns.put("b", b);
+
+        ASTNode tree = new SimpleParser().parse(script);
+        BatchEvaluator[] evaluators = {new BatchEvaluator(), new BatchEvaluator(new ScalarKernel())};
+        int[] expected = null;
+        for (int round = 0; round < 3; round++) {
+            for (BatchEvaluator evaluator : evaluators) {
+                long start = System.nanoTime();
+                int[] result = evaluator.evaluate(tree, columns, rows);
+                long time = System.nanoTime() - start;
+                if (expected == null) {
+                    expected = result;
+                } else if (!Arrays.equals(expected, result)) {
+                    throw new Exception("results differ");
+                }
+                System.out.println(evaluator.getImplementation() + "\t" + time / 1000000.0 + " ms");
+            }
+        }
+        b[rows / 2] = -1000;
+        try {
+            evaluators[0].evaluate(tree, columns, rows);
+        } catch (ArithmeticException e) {
+            System.out.println("row " + rows / 2 + ": " + e.getMessage());
+        }
+    }
+
+    //每次处理的行数
+    static final int BLOCK = 1024;
+    //所有中间结果的块加起来最多这么多个int，表达式很深时减小每块的行数
+    static final int MAX_TEMPS = 1 << 20;
+
+    private static final int LOAD = 0;
+    private static final int CONST = 1;
+    private static final int ADD = 2;
+    private static final int SUB = 3;
+    private static final int MUL = 4;
+    private static final int DIV = 5;
+
+    private final BatchKernel kernel;
+
+    /**
+     * 尽量使用Vector API
+     */
+    public BatchEvaluator() {
+        this(loadKernel());
+    }
+
+    BatchEvaluator(BatchKernel kernel) {
+        this.kernel = kernel;
+    }
+
+    /**
+     * 加载VectorBatchKernel；没有编译它，或者没有jdk.incubator.vector模块时(运行时没有加--add-modules)会失败，改用ScalarKernel
+     */
+    private static BatchKernel loadKernel() {
+        try {
+            BatchKernel kernel = (BatchKernel) Class.forName("craft.VectorBatchKernel").getDeclaredConstructor().newInstance();
+            int[] probe = new int[1];
+            kernel.add(probe, 0, probe, 0, probe, 1);
+            return kernel;
+        } catch (Throwable e) {     //ClassNotFoundException，或者NoClassDefFoundError等LinkageError
+            return new ScalarKernel();
+        }
+    }
+
+    /**
+     * 实际使用的计算方式
+     * @return
+     */
+    public String getImplementation() {
+        return kernel.getName();
+    }
+
+    /**
+     * 对rows行数据求值
+     * @param expression 一个表达式，或者只有一条表达式语句的Program
+     * @param columns 变量名 -> 这个变量在各行的值
+     * @param rows
+     * @return 每一行的结果
+     * @throws Exception
+     */
+    public int[] evaluate(ASTNode expression, Map<String, int[]> columns, int rows) throws Exception {
+        int[] result = new int[rows];
+        this.evaluate(expression, columns, result);
+        return result;
+    }
+
+    /**
+     * 对result.length行数据求值，结果写到result中
+     * @param expression 一个表达式，或者只有一条表达式语句的Program
+     * @param columns 变量名 -> 这个变量在各行的值
+     * @param result
+     * @throws Exception
+     */
+    public void evaluate(ASTNode expression, Map<String, int[]> columns, int[] result) throws Exception {
+        ExpressionNode root = this.expressionOf(expression);
+        int rows = result.length;
+        Plan plan = new Plan();
+        plan.compile(root);
+
+        int[][] data = new int[plan.names.size()][];
+        for (int i = 0; i < data.length; i++) {
+            String name = plan.names.get(i);
+            data[i] = columns.get(name);
+            if (data[i] == null) {
+                //和逐行求值一样，在第一行按求值顺序报错
+                if (rows > 0) {
+                    result[0] = this.evaluateRow(root, columns, 0);
+                }
+                return;
+            }
+            if (data[i].length < rows) {
+                throw new Exception("column " + name + " has " + data[i].length + " rows, expecting " + rows);
+            }
+        }
+
+        int block = Math.max(1, Math.min(BLOCK, MAX_TEMPS / plan.maxDepth));
+        int[][] temps = new int[plan.maxDepth][block];
+        int[][] arrays = new int[plan.maxDepth][];
+        int[] offsets = new int[plan.maxDepth];
+        for (int start = 0; start < rows; start += block) {
+            int n = Math.min(block, rows - start);
+            try {
+                this.evaluateBlock(plan, data, start, n, temps, arrays, offsets);
+            } catch (ArithmeticException e) {
+                //这一块中有除数为0的行，逐行重新计算，在第一个出错的行抛出异常
+                for (int row = start; row < start + n; row++) {
+                    result[row] = this.evaluateRow(root, columns, row);
+                }
+                continue;
+            }
+            System.arraycopy(arrays[0], offsets[0], result, start, n);
+        }
+    }
+
+    private void evaluateBlock(Plan plan, int[][] data, int start, int n,
+                               int[][] temps, int[][] arrays, int[] offsets) {
+        int sp = 0;
+        for (int pc = 0; pc < plan.count; pc++) {
+            int op = plan.ops[pc];
+            if (op == LOAD) {
+                arrays[sp] = data[plan.args[pc]];
+                offsets[sp] = start;
+                sp++;
+            } else if (op == CONST) {
+                //常量在用到时才展开成一块，很长的表达式也不会为每个字面量占用一整块
+                Arrays.fill(temps[sp], 0, n, plan.args[pc]);
+                arrays[sp] = temps[sp];
+                offsets[sp] = 0;
+                sp++;
+            } else {
+                sp--;
+                int left = sp - 1;
+                int[] out = temps[left];
+                switch (op) {
+                    case ADD:
+                        kernel.add(arrays[left], offsets[left], arrays[sp], offsets[sp], out, n);
+                        break;
+                    case SUB:
+                        kernel.sub(arrays[left], offsets[left], arrays[sp], offsets[sp], out, n);
+                        break;
+                    case MUL:
+                        kernel.mul(arrays[left], offsets[left], arrays[sp], offsets[sp], out, n);
+                        break;
+                    default:
+                        kernel.div(arrays[left], offsets[left], arrays[sp], offsets[sp], out, n);
+                        break;
+                }
+                arrays[left] = out;
+                offsets[left] = 0;
+            }
+        }
+    }
+
+    /**
+     * 对一行数据求值，求值顺序和SimpleScript相同。
+     * 按后序遍历的顺序用显式的栈计算，很深的表达式也不会栈溢出
+     */
+    private int evaluateRow(ExpressionNode root, Map<String, int[]> columns, int row) throws Exception {
+        //还要处理的节点，expanded表示子节点已经压栈，再次出栈时计算
+        Deque<ExpressionNode> nodes = new ArrayDeque<>();
+        Deque<Boolean> expanded = new ArrayDeque<>();
+        int[] values = new int[16];
+        int count = 0;
+        nodes.push(root);
+        expanded.push(false);
+        while (!nodes.isEmpty()) {
+            ExpressionNode node = nodes.pop();
+            boolean children = expanded.pop();
+            if (node instanceof BinaryNode) {
+                BinaryNode binary = (BinaryNode) node;
+                if (!children) {
+                    nodes.push(binary);
+                    expanded.push(true);
+                    nodes.push(binary.getRight());
+                    expanded.push(false);
+                    nodes.push(binary.getLeft());
+                    expanded.push(false);
+                } else {
+                    count--;
+                    values[count - 1] = binary.getOperator().apply(values[count - 1], values[count]);
+                }
+                continue;
+            }
+            if (count == values.length) {
+                values = Arrays.copyOf(values, count * 2);
+            }
+            if (node instanceof LiteralNode) {
+                values[count++] = ((LiteralNode) node).getValue();
+            } else {
+                String name = ((IdentifierNode) node).getVarName();
+                int[] column = columns.get(name);
+                if (column == null) {
+                    throw new Exception("unknown variable:" + name);
+                }
+                values[count++] = column[row];
+            }
+        }
+        return values[0];
+    }
+
+    private ExpressionNode expressionOf(ASTNode node) throws Exception {
+        if (node.getType() == ASTNodeType.Program && node.getChildren().size() == 1) {
+            node = node.getChildren().get(0);
+        }
+        if (node instanceof ExpressionNode) {
+            return (ExpressionNode) node;
+        }
+        switch (node.getType()) {
+            case ExpressionStmt:
+                return NodeFactory.PLAIN.intern(node.getChildren().get(0));
+            case Additive:
+            case Multiplicative:
+            case Primary:
+            case Identifier:
+            case IntLiteral:
+                //其他ASTNode，比如FlatAST的视图，先转换成TypedASTNode
+                return NodeFactory.PLAIN.intern(node);
+            default:
+                throw new Exception("batch evaluation needs a single expression, but got: " + node.getType());
+        }
+    }
+
+    /**
+     * 编译好的后缀形式指令
+     */
+    private static final class Plan {
+        int[] ops = new int[16];
+        int[] args = new int[16];
+        int count = 0;
+        int depth = 0;
+        int maxDepth = 1;
+        //用到的变量，下标就是LOAD指令的参数
+        final List<String> names = new ArrayList<>();
+        final Map<String, Integer> indexes = new HashMap<>();
+
+        /**
+         * 按后序遍历的顺序生成指令，用显式的栈处理，很深的表达式也不会栈溢出。
+         * CONST指令的参数就是常量的值
+         */
+        void compile(ExpressionNode root) {
+            //还要处理的节点，expanded表示子节点已经压栈，再次出栈时生成运算指令
+            Deque<ExpressionNode> nodes = new ArrayDeque<>();
+            Deque<Boolean> expanded = new ArrayDeque<>();
+            nodes.push(root);
+            expanded.push(false);
+            while (!nodes.isEmpty()) {
+                ExpressionNode node = nodes.pop();
+                boolean children = expanded.pop();
+                if (node instanceof BinaryNode && !children) {
+                    BinaryNode binary = (BinaryNode) node;
+                    nodes.push(binary);
+                    expanded.push(true);
+                    nodes.push(binary.getRight());
+                    expanded.push(false);
+                    nodes.push(binary.getLeft());
+                    expanded.push(false);
+                } else {
+                    this.emit(node);
+                }
+            }
+        }
+
+        private void emit(ExpressionNode node) {
+            if (node instanceof BinaryNode) {
+                switch (((BinaryNode) node).getOperator()) {
+                    case Plus:
+                        this.emit(ADD, 0, -1);
+                        break;
+                    case Minus:
+                        this.emit(SUB, 0, -1);
+                        break;
+                    case Star:
+                        this.emit(MUL, 0, -1);
+                        break;
+                    default:
+                        this.emit(DIV, 0, -1);
+                        break;
+                }
+            } else if (node instanceof LiteralNode) {
+                this.emit(CONST, ((LiteralNode) node).getValue(), 1);
+            } else {
+                String name = ((IdentifierNode) node).getVarName();
+                Integer index = indexes.get(name);
+                if (index == null) {
+                    index = names.size();
+                    names.add(name);
+                    indexes.put(name, index);
+                }
+                this.emit(LOAD, index, 1);
+            }
+        }
+
+        private void emit(int op, int arg, int delta) {
+            if (count == ops.length) {
+                ops = Arrays.copyOf(ops, count * 2);
+                args = Arrays.copyOf(args, count * 2);
+            }
+            ops[count] = op;
+            args[count] = arg;
+            count++;
+            depth += delta;
+            maxDepth = Math.max(maxDepth, depth);
+        }
+    }
+
+    /**
+     * 逐个元素计算
+     */
+    static final class ScalarKernel implements BatchKernel {
+
+        @Override
+        public void add(int[] a, int aOffset, int[] b, int bOffset, int[] out, int n) {
+            for (int i = 0; i < n; i++) {
+                out[i] = a[aOffset + i] + b[bOffset + i];
+            }
+        }
+
+        @Override
+        public void sub(int[] a, int aOffset, int[] b, int bOffset, int[] out, int n) {
+            for (int i = 0; i < n; i++) {
+                out[i] = a[aOffset + i] - b[bOffset + i];
+            }
+        }
+
+        @Override
+        public void mul(int[] a, int aOffset, int[] b, int bOffset, int[] out, int n) {
+            for (int i = 0; i < n; i++) {
+                out[i] = a[aOffset + i] * b[bOffset + i];
+            }
+        }
+
+        @Override
+        public void div(int[] a, int aOffset, int[] b, int bOffset, int[] out, int n) {
+            for (int i = 0; i < n; i++) {
+                out[i] = BinaryOperator.divide(a[aOffset + i], b[bOffset + i]);
+            }
+        }
+
+        @Override
+        public String getName() {
+            return "scalar";
+        }
+    }
+
+}
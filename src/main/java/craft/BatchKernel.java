@@ -0,0 +1,23 @@
+package craft;
+
+/**
+ * BatchEvaluator使用的按列计算的运算。
+ * 每个运算对两列中从各自偏移量开始的n个元素逐个计算，结果写到out的前n个元素中。
+ * out可以和左边的操作数是同一个数组。运算的语义和int的+、-、*、/完全相同，除数为0时抛出ArithmeticException。
+ */
+interface BatchKernel {
+
+    void add(int[] a, int aOffset, int[] b, int bOffset, int[] out, int n);
+
+    void sub(int[] a, int aOffset, int[] b, int bOffset, int[] out, int n);
+
+    void mul(int[] a, int aOffset, int[] b, int bOffset, int[] out, int n);
+
+    void div(int[] a, int aOffset, int[] b, int bOffset, int[] out, int n);
+
+    /**
+     * 实现方式的说明，用于打印
+     * @return
+     */
+    String getName();
+}
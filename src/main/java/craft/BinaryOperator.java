@@ -0,0 +1,188 @@
+package craft;
+
+/**
+ * 二元运算符
+ */
+public enum BinaryOperator {
+
+    Plus("+", ASTNodeType.Additive),        // +
+    Minus("-", ASTNodeType.Additive),       // -
+    Star("*", ASTNodeType.Multiplicative),  // *
+    Slash("/", ASTNodeType.Multiplicative); // /
+
+    private final String text;
+    private final ASTNodeType nodeType;
+
+    BinaryOperator(String text, ASTNodeType nodeType) {
+        this.text = text;
+        this.nodeType = nodeType;
+    }
+
+    /**
+     * 运算符的文本
+     * @return
+     */
+    public String getText() {
+        return text;
+    }
+
+    /**
+     * 使用这个运算符的AST节点类型
+     * @return
+     */
+    public ASTNodeType getNodeType() {
+        return nodeType;
+    }
+
+    /**
+     * 计算。除数为0时抛出ArithmeticException
+     * @param left
+     * @param right
+     * @return
+     */
+    public int apply(int left, int right) {
+        switch (this) {
+            case Plus:
+                return left + right;
+            case Minus:
+                return left - right;
+            case Star:
+                return left * right;
+            default:
+                return divide(left, right);
+        }
+    }
+
+    /**
+     * 整数除法，除数为0时抛出ArithmeticException("/ by zero")。
+     * 不用idiv隐式抛出的异常：同一个位置频繁抛出时，JIT会换成一个没有message的共享异常对象
+     * @param left
+     * @param right
+     * @return
+     */
+    public static int divide(int left, int right) {
+        if (right == 0) {
+            throw new ArithmeticException("/ by zero");
+        }
+        return left / right;
+    }
+
+    /**
+     * long的整数除法，除数为0时抛出ArithmeticException("/ by zero")
+     * @param left
+     * @param right
+     * @return
+     */
+    public static long divide(long left, long right) {
+        if (right == 0) {
+            throw new ArithmeticException("/ by zero");
+        }
+        return left / right;
+    }
+
+    /**
+     * 按int计算，溢出时抛出ArithmeticException
+     * @param left
+     * @param right
+     * @return
+     */
+    public int applyExact(int left, int right) {
+        switch (this) {
+            case Plus:
+                return Math.addExact(left, right);
+            case Minus:
+                return Math.subtractExact(left, right);
+            case Star:
+                return Math.multiplyExact(left, right);
+            default:
+                if (left == Integer.MIN_VALUE && right == -1) {
+                    throw new ArithmeticException("integer overflow");
+                }
+                return divide(left, right);
+        }
+    }
+
+    /**
+     * 按指定的模式计算，结果已经转换成这个模式下的值
+     * @param left
+     * @param right
+     * @param mode
+     * @return
+     */
+    public long apply(long left, long right, ArithmeticMode mode) {
+        if (mode == ArithmeticMode.WRAP) {
+            return this.apply((int) left, (int) right);
+        }
+        if (mode == ArithmeticMode.CHECKED) {
+            return this.applyExact(Math.toIntExact(left), Math.toIntExact(right));
+        }
+        switch (this) {
+            case Plus:
+                return left + right;
+            case Minus:
+                return left - right;
+            case Star:
+                return left * right;
+            default:
+                return divide(left, right);
+        }
+    }
+
+    /**
+     * 文本对应的运算符，比如Additive节点的getText()，不是运算符时返回null
+     * @param text
+     * @return
+     */
+    public static BinaryOperator of(String text) {
+        switch (text) {
+            case "+":
+                return Plus;
+            case "-":
+                return Minus;
+            case "*":
+                return Star;
+            case "/":
+                return Slash;
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * 二元运算节点的运算符，TypedASTNode.BinaryNode直接读取，其他ASTNode按getText()查找
+     * @param node Additive或Multiplicative节点
+     * @return
+     * @throws Exception 不认识的运算符
+     */
+    public static BinaryOperator of(ASTNode node) throws Exception {
+        if (node instanceof TypedASTNode.BinaryNode) {
+            return ((TypedASTNode.BinaryNode) node).getOperator();
+        }
+        BinaryOperator operator = of(node.getText());
+        if (operator == null) {
+            throw new Exception("unknown operator: " + node.getText());
+        }
+        return operator;
+    }
+
+    /**
+     * Token对应的运算符，不是运算符时返回null
+     * @param type
+     * @return
+     */
+    public static BinaryOperator of(TokenType type) {
+        switch (type) {
+            case Plus:
+                return Plus;
+            case Minus:
+                return Minus;
+            case Star:
+                return Star;
+            case Slash:
+                return Slash;
+            default:
+                return null;
+        }
+    }
+
+}
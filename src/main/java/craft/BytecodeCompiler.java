@@ -0,0 +1,501 @@
+package craft;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * 把SimpleParser生成的AST编译成JVM字节码。
+ * 每个Program生成一个实现了CompiledScript的隐藏类(hidden class)，这样HotSpot就可以像普通的Java代码一样对它做JIT编译。
+ *
+ * 和StackVM一样，变量名在编译时解析为Environment中的槽位，执行时在传入的Environment上存取变量。
+ * 脚本中声明的变量同时保存在方法的局部变量中，读取时不再访问Environment；
+ * 脚本中没有声明的变量从Environment中读取，值在每次执行时才知道，JIT不能把整个脚本折叠成常量。
+ * 声明和赋值都会写回Environment，执行以后变量的状态和StackVM、ClosureCompiler相同。
+ *
+ * 脚本中没有分支，所以生成的代码是一条直线，不需要StackMapTable。
+ * 脚本中声明的变量是否赋值在编译时就可以确定，出错的地方直接生成抛出异常的指令，
+ * 异常的信息和SimpleScript一致。
+ */
+public class BytecodeCompiler {
+
+    public static void main(String[] args) {
+        SimpleParser parser = new SimpleParser();
+        BytecodeCompiler compiler = new BytecodeCompiler();
+
+        String[] scripts = {
+                "int age = 45 + 2; age = 20; age + 10 *2;",
+                "int a = 2; int b = a * (3 + 4); b - a / 2;",
+                "int a; a + 1;",
+                "b + 1;",
+                "2 + 3 / 0;",
+                "age * 2 + b;"       //前面的脚本留在Environment中的变量
+        };
+        Environment env = new Environment(parser.getSymbols());
+        for (String script : scripts) {
+            System.out.println("编译：" + script);
+            try {
+                ASTNode tree = parser.parse(script);
+                CompiledScript compiled = compiler.compile(tree, env);
+                System.out.println(compiled.execute(env));
+            } catch (Exception e) {
+                System.out.println(e.getMessage());
+            }
+        }
+    }
+
+    private static final String CLASS_NAME = "craft/BytecodeCompiler$Script";
+    private static final String INTERFACE_NAME = "craft/CompiledScript";
+    private static final String ENVIRONMENT = "craft/Environment";
+
+    //生成的方法最多64K字节
+    private static final int MAX_CODE_LENGTH = 65535;
+    //操作数栈的最大深度也只有两个字节
+    private static final int MAX_STACK = 65535;
+
+    //iadd、isub、imul，按BinaryOperator的顺序排列；除法调用BinaryOperator.divide
+    private static final int[] ARITHMETIC = {0x60, 0x64, 0x68};
+
+    /**
+     * 编译一个Program，变量名解析为env中的槽位，生成一个可以反复执行的脚本对象。
+     * @param program
+     * @param env
+     * @return
+     * @throws Exception
+     */
+    public CompiledScript compile(ASTNode program, Environment env) throws Exception {
+        byte[] bytes = this.generate(program, env);
+        MethodHandles.Lookup lookup = MethodHandles.lookup().defineHiddenClass(bytes, true);
+        return (CompiledScript) lookup.lookupClass().getDeclaredConstructor().newInstance();
+    }
+
+    /**
+     * 生成类文件的字节
+     * @param program
+     * @param env
+     * @return
+     * @throws Exception
+     */
+    byte[] generate(ASTNode program, Environment env) throws Exception {
+        ConstantPool pool = new ConstantPool();
+        int thisClass = pool.classRef(CLASS_NAME);
+        int superClass = pool.classRef("java/lang/Object");
+        int iface = pool.classRef(INTERFACE_NAME);
+        int codeName = pool.utf8("Code");
+        int initName = pool.utf8("<init>");
+        int initDescriptor = pool.utf8("()V");
+        int executeName = pool.utf8("execute");
+        int executeDescriptor = pool.utf8("(L" + ENVIRONMENT + ";)Ljava/lang/Integer;");
+
+        MethodGenerator init = new MethodGenerator(pool);
+        init.emit(0x2a);    //aload_0
+        init.emitInvoke(0xb7, "java/lang/Object", "<init>", "()V", 0, 0);
+        init.emit(0xb1);    //return
+        init.maxStack = 1;
+
+        MethodGenerator execute = new MethodGenerator(pool, env);
+        execute.genProgram(program);
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(0xCAFEBABE);
+        out.writeShort(0);
+        out.writeShort(52);     //Java 8的类文件格式
+        pool.write(out);
+        out.writeShort(0x0001 | 0x0010 | 0x0020);   //public final super
+        out.writeShort(thisClass);
+        out.writeShort(superClass);
+        out.writeShort(1);
+        out.writeShort(iface);
+        out.writeShort(0);      //没有字段
+        out.writeShort(2);
+        init.write(out, 0x0001, initName, initDescriptor, codeName);
+        execute.write(out, 0x0001, executeName, executeDescriptor, codeName);
+        out.writeShort(0);      //没有类属性
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    /**
+     * 生成的代码在读取没有赋值的变量时调用，返回要抛出的异常。
+     */
+    static Exception unsetVariable(String varName) {
+        return new Exception("variable " + varName + " has not been set any value");
+    }
+
+    /**
+     * 为execute()方法生成字节码。
+     * 脚本中声明的变量映射到局部变量，编译时跟踪每个变量是否已经赋值；其他变量在Environment中存取。
+     */
+    private static class MethodGenerator {
+        ConstantPool pool;
+        Environment env;
+        ByteArrayOutputStream code = new ByteArrayOutputStream();
+
+        //变量名 -> 局部变量的序号，0是this，1是Environment参数
+        Map<String, Integer> locals = new HashMap<>();
+        //变量当前是否有值
+        Map<String, Boolean> assigned = new HashMap<>();
+
+        int stack = 0;
+        int maxStack = 0;
+
+        //已经生成了抛出异常的指令，后面的代码都不会被执行
+        boolean terminated = false;
+
+        MethodGenerator(ConstantPool pool) {
+            this(pool, null);
+        }
+
+        MethodGenerator(ConstantPool pool, Environment env) {
+            this.pool = pool;
+            this.env = env;
+        }
+
+        void genProgram(ASTNode program) throws Exception {
+            boolean returned = false;
+            int count = program.getChildren().size();
+            for (int i = 0; i < count && !terminated; i++) {
+                ASTNode child = program.getChildren().get(i);
+                boolean hasValue = this.genStatement(child);
+                if (terminated) {
+                    break;
+                }
+                if (i < count - 1) {
+                    if (hasValue) {
+                        this.emit(0x57);    //pop，丢弃中间语句的值
+                        this.pop(1);
+                    }
+                } else if (hasValue) {
+                    this.emitInvoke(0xb8, "java/lang/Integer", "valueOf", "(I)Ljava/lang/Integer;", 1, 1);
+                    this.emit(0xb0);        //areturn
+                    this.pop(1);
+                    returned = true;
+                }
+            }
+            if (!terminated && !returned) {
+                this.emit(0x01);    //aconst_null
+                this.push(1);
+                this.emit(0xb0);
+                this.pop(1);
+            }
+            if (code.size() > MAX_CODE_LENGTH || maxStack > MAX_STACK) {
+                throw new Exception("script is too large to compile");
+            }
+        }
+
+        /**
+         * 生成一条语句的代码
+         * @param node
+         * @return 语句执行完以后是否在栈顶留下了一个值
+         * @throws Exception
+         */
+        boolean genStatement(ASTNode node) throws Exception {
+            switch (node.getType()) {
+                case IntDeclaration:
+                    if (node.getChildren().size() > 0) {
+                        this.genExpression(node.getChildren().get(0));
+                        if (terminated) {
+                            return false;
+                        }
+                        this.emit(0x59);    //dup，作为语句的值
+                        this.push(1);
+                        this.genStore(node.getText(), this.declare(node.getText()));
+                        return true;
+                    }
+                    this.declare(node.getText());
+                    assigned.put(node.getText(), Boolean.FALSE);
+                    this.genEnvironment(node.getText());
+                    this.emitInvoke(0xb6, ENVIRONMENT, "declare", "(I)V", 2, 0);   //invokevirtual
+                    return false;
+                case AssignmentStmt:
+                    Integer local = locals.get(node.getText());
+                    if (local == null) {
+                        //脚本中没有声明的变量，在Environment中检查和赋值
+                        this.genEnvironment(node.getText());
+                        this.emitInvoke(0xb6, ENVIRONMENT, "checkDeclared", "(I)V", 2, 0);
+                        this.genEnvironment(node.getText());
+                        this.genExpression(node.getChildren().get(0));
+                        if (terminated) {
+                            return false;
+                        }
+                        this.emit(0x5b);    //dup_x2，值留在env和槽位的下面，作为语句的值
+                        this.push(1);
+                        this.emitInvoke(0xb6, ENVIRONMENT, "store", "(II)V", 3, 0);
+                        return true;
+                    }
+                    this.genExpression(node.getChildren().get(0));
+                    if (terminated) {
+                        return false;
+                    }
+                    this.emit(0x59);
+                    this.push(1);
+                    this.genStore(node.getText(), local);
+                    return true;
+                case ExpressionStmt:
+                    this.genExpression(node.getChildren().get(0));
+                    return !terminated;
+                default:
+                    this.genExpression(node);
+                    return !terminated;
+            }
+        }
+
+        /**
+         * 按后序遍历的顺序生成表达式的代码，用显式的栈处理，很深的表达式也不会栈溢出。
+         * 代码超出方法的长度限制时立即停止，不再继续生成
+         */
+        void genExpression(ASTNode root) throws Exception {
+            //还要处理的节点，expanded表示子节点已经压栈，再次出栈时生成运算指令
+            Deque<ASTNode> nodes = new ArrayDeque<>();
+            Deque<Boolean> expanded = new ArrayDeque<>();
+            nodes.push(root);
+            expanded.push(false);
+            while (!nodes.isEmpty() && !terminated) {
+                if (code.size() > MAX_CODE_LENGTH || maxStack > MAX_STACK) {
+                    throw new Exception("script is too large to compile");
+                }
+                ASTNode node = nodes.pop();
+                boolean children = expanded.pop();
+                switch (node.getType()) {
+                    case Additive:
+                    case Multiplicative:
+                        if (!children) {
+                            nodes.push(node);
+                            expanded.push(true);
+                            nodes.push(node.getChildren().get(1));
+                            expanded.push(false);
+                            nodes.push(node.getChildren().get(0));
+                            expanded.push(false);
+                        } else {
+                            BinaryOperator operator = BinaryOperator.of(node);
+                            if (operator == BinaryOperator.Slash) {
+                                //idiv隐式抛出的异常在JIT编译后可能没有message，和其他执行方式一样显式检查除数
+                                this.emitInvoke(0xb8, "craft/BinaryOperator", "divide", "(II)I", 2, 1);
+                            } else {
+                                this.emit(ARITHMETIC[operator.ordinal()]);
+                                this.pop(1);
+                            }
+                        }
+                        break;
+                    case IntLiteral:
+                        //按int计算，和WRAP模式一样，超出int范围的字面量按32位回绕
+                        this.genConstant((int) TypedASTNode.LiteralNode.valueOf(node));
+                        break;
+                    case Identifier:
+                        String varName = node.getText();
+                        Integer local = locals.get(varName);
+                        if (local == null) {
+                            //脚本中没有声明的变量，执行时从Environment读取，没有声明或者没有赋值时由它抛出异常
+                            this.genEnvironment(varName);
+                            this.emitInvoke(0xb6, ENVIRONMENT, "load", "(I)I", 2, 1);
+                        } else if (!assigned.get(varName)) {
+                            this.genThrow("unsetVariable", varName);
+                        } else {
+                            this.emitLocal(0x15, local);    //iload
+                            this.push(1);
+                        }
+                        break;
+                    case Primary:
+                        nodes.push(node.getChildren().get(0));
+                        expanded.push(false);
+                        break;
+                    default:
+                        throw new Exception("can not compile node: " + node.getType());
+                }
+            }
+        }
+
+        /**
+         * 把栈顶的值保存到脚本中声明的变量，同时写回Environment
+         */
+        void genStore(String varName, int local) {
+            this.emitLocal(0x36, local);    //istore
+            this.pop(1);
+            assigned.put(varName, Boolean.TRUE);
+            this.genEnvironment(varName);
+            this.emitLocal(0x15, local);    //iload
+            this.push(1);
+            this.emitInvoke(0xb6, ENVIRONMENT, "store", "(II)V", 3, 0);
+        }
+
+        /**
+         * 把Environment和变量的槽位压栈
+         */
+        void genEnvironment(String varName) {
+            this.emit(0x2b);    //aload_1
+            this.push(1);
+            this.genConstant(env.slotOf(varName));
+        }
+
+        /**
+         * 生成抛出异常的代码，之后的代码都不再生成
+         */
+        void genThrow(String factory, String varName) {
+            this.emitLdc(pool.string(varName));
+            this.push(1);
+            this.emitInvoke(0xb8, "craft/BytecodeCompiler", factory, "(Ljava/lang/String;)Ljava/lang/Exception;", 1, 1);
+            this.emit(0xbf);    //athrow
+            this.pop(1);
+            terminated = true;
+        }
+
+        void genConstant(int value) {
+            if (value >= -1 && value <= 5) {
+                this.emit(0x03 + value);    //iconst_<n>
+            } else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+                this.emit(0x10);            //bipush
+                this.emit(value & 0xff);
+            } else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+                this.emit(0x11);            //sipush
+                this.emitShort(value);
+            } else {
+                this.emitLdc(pool.integer(value));
+            }
+            this.push(1);
+        }
+
+        int declare(String varName) {
+            Integer local = locals.get(varName);
+            if (local == null) {
+                local = locals.size() + 2;
+                locals.put(varName, local);
+            }
+            return local;
+        }
+
+        void emitLocal(int opcode, int index) {
+            if (index > 255) {
+                this.emit(0xc4);    //wide
+                this.emit(opcode);
+                this.emitShort(index);
+            } else {
+                this.emit(opcode);
+                this.emit(index);
+            }
+        }
+
+        void emitLdc(int index) {
+            if (index > 255) {
+                this.emit(0x13);    //ldc_w
+                this.emitShort(index);
+            } else {
+                this.emit(0x12);    //ldc
+                this.emit(index);
+            }
+        }
+
+        void emitInvoke(int opcode, String owner, String name, String descriptor, int args, int returns) {
+            this.emit(opcode);
+            this.emitShort(pool.methodRef(owner, name, descriptor));
+            this.pop(args);
+            this.push(returns);
+        }
+
+        void emit(int b) {
+            code.write(b);
+        }
+
+        void emitShort(int s) {
+            code.write((s >> 8) & 0xff);
+            code.write(s & 0xff);
+        }
+
+        void push(int n) {
+            stack += n;
+            if (stack > maxStack) {
+                maxStack = stack;
+            }
+        }
+
+        void pop(int n) {
+            stack -= n;
+        }
+
+        void write(DataOutputStream out, int access, int name, int descriptor, int codeName) throws IOException {
+            byte[] bytes = code.toByteArray();
+            out.writeShort(access);
+            out.writeShort(name);
+            out.writeShort(descriptor);
+            out.writeShort(1);
+            out.writeShort(codeName);
+            out.writeInt(12 + bytes.length);
+            out.writeShort(maxStack);
+            out.writeShort(env == null ? 1 : locals.size() + 2);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+            out.writeShort(0);      //异常表
+            out.writeShort(0);      //属性
+        }
+    }
+
+    /**
+     * 类文件的常量池，相同的常量只保存一次
+     */
+    private static class ConstantPool {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        Map<String, Integer> entries = new HashMap<>();
+        int count = 1;
+
+        int utf8(String value) {
+            return this.entry("Utf8:" + value, 1, value, 0, 0);
+        }
+
+        int classRef(String name) {
+            return this.entry("Class:" + name, 7, null, this.utf8(name), 0);
+        }
+
+        int string(String value) {
+            return this.entry("String:" + value, 8, null, this.utf8(value), 0);
+        }
+
+        int integer(int value) {
+            return this.entry("Integer:" + value, 3, null, value, 0);
+        }
+
+        int methodRef(String owner, String name, String descriptor) {
+            int ownerIndex = this.classRef(owner);
+            int nameAndType = this.entry("NameAndType:" + name + ":" + descriptor, 12, null,
+                    this.utf8(name), this.utf8(descriptor));
+            return this.entry("Methodref:" + owner + "." + name + ":" + descriptor, 10, null, ownerIndex, nameAndType);
+        }
+
+        private int entry(String key, int tag, String text, int a, int b) {
+            Integer index = entries.get(key);
+            if (index != null) {
+                return index;
+            }
+            try {
+                out.writeByte(tag);
+                if (tag == 1) {
+                    out.writeUTF(text);
+                } else if (tag == 3) {
+                    out.writeInt(a);
+                } else if (tag == 7 || tag == 8) {
+                    out.writeShort(a);
+                } else {
+                    out.writeShort(a);
+                    out.writeShort(b);
+                }
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+            index = count++;
+            entries.put(key, index);
+            return index;
+        }
+
+        void write(DataOutputStream dest) throws IOException {
+            out.flush();
+            dest.writeShort(count);
+            dest.write(bytes.toByteArray());
+        }
+    }
+
+}
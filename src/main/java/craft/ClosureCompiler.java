@@ -0,0 +1,934 @@
+package craft;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 把AST预先编译成一棵由专用节点对象组成的树，然后再执行。
+ * 节点的种类、运算符、字面量的值在编译时就确定了，执行时不再比较字符串、解析数字，
+ * 每个调用点的类型都是确定的，JIT可以把它们内联。
+ * 编译时还把变量名解析成Environment中的槽位，执行时按槽位读写变量。
+ *
+ * 执行的结果和SimpleScript遍历AST的结果完全一样，包括出错时的异常信息。
+ * 嵌套很深的表达式，超过MAX_DEPTH层的部分编译成后缀形式的指令，用栈计算，不会栈溢出。
+ * 打开公共子表达式消除以后，重复出现的子表达式在一次执行中只计算一次，见CommonSubexpressions。
+ *
+ * 默认按ArithmeticMode.WRAP编译，表达式节点直接做int运算。
+ * CHECKED和LONG模式下的运算节点也先按int计算，同时检查溢出：
+ * CHECKED模式下溢出和超出范围的字面量在执行时抛出ArithmeticException，和遍历AST时一样；
+ * LONG模式下，第一次得到超出int范围的值时，这个节点把自己改成按long计算，见Exact。
+ * 只有溢出过的节点和它上面的节点改用long，其他节点仍然按int计算，小数字的脚本和WRAP模式一样快。
+ */
+public class ClosureCompiler {
+
+    //表达式的嵌套超过这个深度时，更深的部分编译成Postfix，用栈计算，避免执行时递归太深
+    static final int MAX_DEPTH = 256;
+
+    public static void main(String[] args) throws Exception {
+        SimpleParser parser = new SimpleParser();
+        ClosureCompiler compiler = new ClosureCompiler();
+        Environment variables = new Environment();
+
+        String script = "int age = 45 + 2; age = 20; age + 10 *2;";
+        System.out.println("编译：" + script);
+        Program program = compiler.compile(parser.parse(script), variables);
+        System.out.println(program.execute(variables));
+        System.out.println(variables);
+    }
+
+    private static final int[] NO_KILLS = new int[0];
+
+    //是否做公共子表达式消除
+    private boolean eliminateCommonSubexpressions = false;
+
+    //整数运算的方式，编译好的程序一直按编译时的模式计算
+    private ArithmeticMode mode = ArithmeticMode.WRAP;
+
+    /**
+     * 打开公共子表达式消除。分析需要额外的时间，适合编译一次、执行多次的程序。
+     * @param enabled
+     */
+    public void setEliminateCommonSubexpressions(boolean enabled) {
+        this.eliminateCommonSubexpressions = enabled;
+    }
+
+    /**
+     * 设置整数运算的方式，只影响以后编译的程序。
+     * 公共子表达式的临时值是int，所以只在WRAP模式下做公共子表达式消除。
+     * @param mode
+     */
+    public void setArithmeticMode(ArithmeticMode mode) {
+        this.mode = mode;
+    }
+
+    /**
+     * 编译一个Program，变量名解析为env中的槽位。
+     * 编译的结果只能在这个env上执行。
+     * @param program
+     * @param env
+     * @return
+     * @throws Exception
+     */
+    public Program compile(ASTNode program, Environment env) throws Exception {
+        return this.compile(program, new Variables(env));
+    }
+
+    /**
+     * 编译一个可以在任何Environment上执行的Program。
+     * 变量按在程序中第一次出现的顺序编号，执行时再按变量名绑定到Environment的槽位，
+     * 所以编译的结果可以被许多会话共用，每个会话的槽位只和它自己用到的变量有关。
+     * @param program
+     * @return
+     * @throws Exception
+     */
+    public Program compile(ASTNode program) throws Exception {
+        return this.compile(program, new Variables(null));
+    }
+
+    private Program compile(ASTNode program, Variables vars) throws Exception {
+        CommonSubexpressions cse = eliminateCommonSubexpressions && mode == ArithmeticMode.WRAP
+                ? CommonSubexpressions.analyze(program) : null;
+        int count = program.getChildren().size();
+        Statement[] statements = new Statement[count];
+        for (int i = 0; i < count; i++) {
+            statements[i] = this.statement(program.getChildren().get(i), vars, cse);
+        }
+        return new Program(statements, program.getChildren().toArray(new ASTNode[count]), cse == null ? 0 : cse.size(),
+                vars.env == null ? vars.names.toArray(new String[0]) : null);
+    }
+
+    private Statement statement(ASTNode node, Variables vars, CommonSubexpressions cse) throws Exception {
+        switch (node.getType()) {
+            case IntDeclaration:
+                boolean wide = mode == ArithmeticMode.LONG;
+                int slot = vars.slotOf(node.getText());
+                int[] kills = cse == null ? NO_KILLS : cse.killedBy(node.getText());
+                if (node.getChildren().size() > 0) {
+                    return new Declare(slot, vars.isLocal(), this.expression(node.getChildren().get(0), vars, cse, 0), kills, wide);
+                }
+                return new Declare(slot, vars.isLocal(), null, kills, false);
+            case AssignmentStmt:
+                slot = vars.slotOf(node.getText());
+                kills = cse == null ? NO_KILLS : cse.killedBy(node.getText());
+                return new Assign(slot, vars.isLocal(), this.expression(node.getChildren().get(0), vars, cse, 0), kills,
+                        mode == ArithmeticMode.LONG);
+            case ExpressionStmt:
+                return new Evaluate(this.expression(node.getChildren().get(0), vars, cse, 0), mode == ArithmeticMode.LONG);
+            default:
+                return new Evaluate(this.expression(node, vars, cse, 0), mode == ArithmeticMode.LONG);
+        }
+    }
+
+    //CHECKED和LONG模式下的表达式要检查溢出，读取变量时要考虑超出int范围的值
+    private boolean isWide() {
+        return mode != ArithmeticMode.WRAP;
+    }
+
+    /**
+     * 编译表达式，depth是node在表达式中的深度。
+     * 到了MAX_DEPTH层还没有结束的子树编译成Postfix，编译和执行时的递归深度都不超过MAX_DEPTH。
+     */
+    private Expression expression(ASTNode node, Variables vars, CommonSubexpressions cse, int depth) throws Exception {
+        if (depth == MAX_DEPTH) {
+            return this.postfix(node, vars);
+        }
+        switch (node.getType()) {
+            case Additive:
+            case Multiplicative:
+                Expression left = this.expression(node.getChildren().get(0), vars, cse, depth + 1);
+                Expression right = this.expression(node.getChildren().get(1), vars, cse, depth + 1);
+                BinaryOperator operator = BinaryOperator.of(node);
+                if (this.isWide()) {
+                    switch (operator) {
+                        case Plus:
+                            return new ExactAdd(mode, left, right);
+                        case Minus:
+                            return new ExactSub(mode, left, right);
+                        case Star:
+                            return new ExactMul(mode, left, right);
+                        default:
+                            return new ExactDiv(mode, left, right);
+                    }
+                }
+                switch (operator) {
+                    case Plus:
+                        return this.cached(node, new Add(left, right), cse);
+                    case Minus:
+                        return this.cached(node, new Sub(left, right), cse);
+                    case Star:
+                        return this.cached(node, new Mul(left, right), cse);
+                    default:
+                        return this.cached(node, new Div(left, right), cse);
+                }
+            case IntLiteral:
+                long value = TypedASTNode.LiteralNode.valueOf(node);
+                if (this.isWide() && (int) value != value) {
+                    return new WideLiteral(value, mode);
+                }
+                return new Literal((int) value);
+            case Identifier:
+                if (this.isWide()) {
+                    return new WideLoad(vars.slotOf(node.getText()), vars.isLocal(), mode);
+                }
+                if (vars.isLocal()) {
+                    return new LocalLoad(vars.slotOf(node.getText()));
+                }
+                return new Load(vars.slotOf(node.getText()));
+            case Primary:
+                return this.expression(node.getChildren().get(0), vars, cse, depth);
+            default:
+                throw new Exception("can not compile node: " + node.getType());
+        }
+    }
+
+    /**
+     * 公共子表达式包装成Cached，其他的原样返回
+     */
+    private Expression cached(ASTNode node, Expression expression, CommonSubexpressions cse) {
+        if (cse != null) {
+            int index = cse.indexOf(node);
+            if (index >= 0) {
+                return new Cached(index, expression);
+            }
+        }
+        return expression;
+    }
+
+    /**
+     * 把表达式编译成后缀形式的指令，按后序遍历的顺序生成，不用递归
+     */
+    private Expression postfix(ASTNode root, Variables vars) throws Exception {
+        int[] code = new int[32];
+        int count = 0;
+        int depth = 0;
+        int maxDepth = 0;
+        //还要处理的节点，expanded表示子节点已经压栈，再次出栈时生成运算指令
+        Deque<ASTNode> nodes = new ArrayDeque<>();
+        Deque<Boolean> expanded = new ArrayDeque<>();
+        nodes.push(root);
+        expanded.push(false);
+        while (!nodes.isEmpty()) {
+            ASTNode node = nodes.pop();
+            boolean children = expanded.pop();
+            if (count + 3 > code.length) {
+                code = Arrays.copyOf(code, code.length * 2);
+            }
+            switch (node.getType()) {
+                case Additive:
+                case Multiplicative:
+                    if (!children) {
+                        nodes.push(node);
+                        expanded.push(true);
+                        nodes.push(node.getChildren().get(1));
+                        expanded.push(false);
+                        nodes.push(node.getChildren().get(0));
+                        expanded.push(false);
+                        continue;
+                    }
+                    //ADD、SUB、MUL、DIV和BinaryOperator的顺序一样
+                    code[count++] = Postfix.ADD + BinaryOperator.of(node).ordinal();
+                    depth--;
+                    break;
+                case IntLiteral:
+                    long value = TypedASTNode.LiteralNode.valueOf(node);
+                    if (this.isWide() && (int) value != value) {
+                        code[count++] = Postfix.WIDE_CONST;
+                        code[count++] = (int) (value >>> 32);
+                        code[count++] = (int) value;
+                    } else {
+                        code[count++] = Postfix.CONST;
+                        code[count++] = (int) value;
+                    }
+                    maxDepth = Math.max(maxDepth, ++depth);
+                    break;
+                case Identifier:
+                    code[count++] = vars.isLocal() ? Postfix.LOCAL_LOAD : Postfix.LOAD;
+                    code[count++] = vars.slotOf(node.getText());
+                    maxDepth = Math.max(maxDepth, ++depth);
+                    break;
+                case Primary:
+                    nodes.push(node.getChildren().get(0));
+                    expanded.push(false);
+                    break;
+                default:
+                    throw new Exception("can not compile node: " + node.getType());
+            }
+        }
+        return new Postfix(Arrays.copyOf(code, count), maxDepth, this.isWide() ? mode : null);
+    }
+
+    /**
+     * 编译时变量名到槽位的映射。env为null时按变量在程序中第一次出现的顺序编号，执行时再绑定
+     */
+    private static final class Variables {
+        final Environment env;
+        final List<String> names = new ArrayList<>();
+        final Map<String, Integer> locals = new HashMap<>();
+
+        Variables(Environment env) {
+            this.env = env;
+        }
+
+        boolean isLocal() {
+            return env == null;
+        }
+
+        int slotOf(String name) {
+            if (env != null) {
+                return env.slotOf(name);
+            }
+            Integer index = locals.get(name);
+            if (index == null) {
+                index = names.size();
+                names.add(name);
+                locals.put(name, index);
+            }
+            return index;
+        }
+    }
+
+    /**
+     * 编译好的程序，可以在编译时使用的Environment上反复执行；
+     * 用compile(ASTNode)编译的程序可以在任何Environment上执行
+     */
+    public static final class Program {
+        private final Statement[] statements;
+        //每条语句对应的AST，只在记录JFR事件时使用
+        private final ASTNode[] sources;
+        //公共子表达式的临时值的数量
+        private final int temporaries;
+        //程序用到的变量名，按编号排列，执行时绑定到Environment的槽位；编译时已经确定了槽位的程序为null
+        private final String[] names;
+
+        Program(Statement[] statements, ASTNode[] sources, int temporaries, String[] names) {
+            this.statements = statements;
+            this.sources = sources;
+            this.temporaries = temporaries;
+            this.names = names;
+        }
+
+        /**
+         * 依次执行每条语句，返回最后一条语句的值
+         * @param env 变量表，声明和赋值会修改它
+         * @return
+         * @throws Exception
+         */
+        public Number execute(Environment env) throws Exception {
+            if (names != null) {
+                env.bind(this, names);
+            }
+            if (temporaries > 0) {
+                env.resetTemporaries(temporaries);
+            }
+            Number result = null;
+            for (int i = 0; i < statements.length; i++) {
+                ScriptEvents.StatementEvent event = new ScriptEvents.StatementEvent();
+                event.begin();
+                result = statements[i].execute(env);
+                event.end();
+                if (event.shouldCommit()) {
+                    event.index = i;
+                    event.statementType = sources[i].getType().name();
+                    event.nodeCount = ScriptEvents.countNodes(sources[i]);
+                    event.result = String.valueOf(result);
+                    event.commit();
+                }
+            }
+            return result;
+        }
+
+        /**
+         * 语句的数量，只在记录JFR事件时使用
+         */
+        int statementCount() {
+            return statements.length;
+        }
+
+        /**
+         * 程序的AST节点数，包括Program节点，只在记录JFR事件时使用
+         */
+        int nodeCount() {
+            int count = 1;
+            for (ASTNode source : sources) {
+                count += ScriptEvents.countNodes(source);
+            }
+            return count;
+        }
+    }
+
+    /**
+     * 语句，返回值可能为null，例如没有初始化的变量声明
+     */
+    abstract static class Statement {
+        abstract Number execute(Environment env) throws Exception;
+    }
+
+    /**
+     * 表达式，WRAP和CHECKED模式下用evaluate()求int值，LONG模式下用evaluateLong()求long值。
+     * LONG模式下的节点在值超出int范围时，evaluate()抛出Overflow，由上面的节点改用evaluateLong()
+     */
+    abstract static class Expression {
+        abstract int evaluate(Environment env) throws Exception;
+
+        long evaluateLong(Environment env) throws Exception {
+            return this.evaluate(env);
+        }
+    }
+
+    /**
+     * 在int范围内的值用Integer表示，否则用Long，和SimpleScript一样
+     */
+    static Number box(long value) {
+        if ((int) value == value) {
+            return (int) value;
+        }
+        return value;
+    }
+
+    static final class Declare extends Statement {
+        private final int slot;
+        //slot是程序内的变量编号，执行时按绑定查出槽位
+        private final boolean local;
+        private final Expression init;
+        //用到这个变量的公共子表达式
+        private final int[] kills;
+        //按long计算并保存
+        private final boolean wide;
+
+        Declare(int slot, boolean local, Expression init, int[] kills, boolean wide) {
+            this.slot = slot;
+            this.local = local;
+            this.init = init;
+            this.kills = kills;
+            this.wide = wide;
+        }
+
+        @Override
+        Number execute(Environment env) throws Exception {
+            int slot = local ? env.boundSlot(this.slot) : this.slot;
+            if (init == null) {
+                env.declare(slot);
+                env.clearTemporaries(kills);
+                return null;
+            }
+            if (wide) {
+                long value = init.evaluateLong(env);
+                env.storeLong(slot, value);
+                return box(value);
+            }
+            int value = init.evaluate(env);
+            env.store(slot, value);
+            env.clearTemporaries(kills);
+            return value;
+        }
+    }
+
+    static final class Assign extends Statement {
+        private final int slot;
+        //slot是程序内的变量编号，执行时按绑定查出槽位
+        private final boolean local;
+        private final Expression value;
+        //用到这个变量的公共子表达式
+        private final int[] kills;
+        //按long计算并保存
+        private final boolean wide;
+
+        Assign(int slot, boolean local, Expression value, int[] kills, boolean wide) {
+            this.slot = slot;
+            this.local = local;
+            this.value = value;
+            this.kills = kills;
+            this.wide = wide;
+        }
+
+        @Override
+        Number execute(Environment env) throws Exception {
+            int slot = local ? env.boundSlot(this.slot) : this.slot;
+            env.checkDeclared(slot);
+            if (wide) {
+                long result = value.evaluateLong(env);
+                env.storeLong(slot, result);
+                return box(result);
+            }
+            int result = value.evaluate(env);
+            env.store(slot, result);
+            env.clearTemporaries(kills);
+            return result;
+        }
+    }
+
+    static final class Evaluate extends Statement {
+        private final Expression expression;
+        //按long计算
+        private final boolean wide;
+
+        Evaluate(Expression expression, boolean wide) {
+            this.expression = expression;
+            this.wide = wide;
+        }
+
+        @Override
+        Number execute(Environment env) throws Exception {
+            if (wide) {
+                return box(expression.evaluateLong(env));
+            }
+            return expression.evaluate(env);
+        }
+    }
+
+    static final class Add extends Expression {
+        private final Expression left;
+        private final Expression right;
+
+        Add(Expression left, Expression right) {
+            this.left = left;
+            this.right = right;
+        }
+
+        @Override
+        int evaluate(Environment env) throws Exception {
+            return left.evaluate(env) + right.evaluate(env);
+        }
+    }
+
+    static final class Sub extends Expression {
+        private final Expression left;
+        private final Expression right;
+
+        Sub(Expression left, Expression right) {
+            this.left = left;
+            this.right = right;
+        }
+
+        @Override
+        int evaluate(Environment env) throws Exception {
+            return left.evaluate(env) - right.evaluate(env);
+        }
+    }
+
+    static final class Mul extends Expression {
+        private final Expression left;
+        private final Expression right;
+
+        Mul(Expression left, Expression right) {
+            this.left = left;
+            this.right = right;
+        }
+
+        @Override
+        int evaluate(Environment env) throws Exception {
+            return left.evaluate(env) * right.evaluate(env);
+        }
+    }
+
+    static final class Div extends Expression {
+        private final Expression left;
+        private final Expression right;
+
+        Div(Expression left, Expression right) {
+            this.left = left;
+            this.right = right;
+        }
+
+        @Override
+        int evaluate(Environment env) throws Exception {
+            return BinaryOperator.divide(left.evaluate(env), right.evaluate(env));
+        }
+    }
+
+    /**
+     * LONG模式下，按int计算的节点得到超出int范围的值时抛出，不记录调用栈。
+     * 表达式的求值没有副作用，接到它的节点改成按long计算以后，可以重新计算子节点
+     */
+    static final class Overflow extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        static final Overflow INSTANCE = new Overflow();
+
+        private Overflow() {
+            super("integer overflow", null, false, false);
+        }
+    }
+
+    /**
+     * CHECKED和LONG模式下的二元运算，先按int计算并检查溢出。
+     * CHECKED模式下溢出时抛出ArithmeticException，和SimpleScript一样。
+     * LONG模式下，自己或者子节点的值第一次超出int范围时，把自己改成按long计算，以后一直按long计算；
+     * 这时evaluate()在值超出int范围时抛出Overflow，上面的节点也会跟着改成按long计算。
+     */
+    abstract static class Exact extends Expression {
+        protected final ArithmeticMode mode;
+        protected final Expression left;
+        protected final Expression right;
+        //出现过超出int范围的值，只在LONG模式下会变成true。
+        //共用的程序可能在多个线程中执行，这个标记只会从false变成true，两种计算方式的结果一样，所以不需要同步
+        protected boolean wide = false;
+
+        Exact(ArithmeticMode mode, Expression left, Expression right) {
+            this.mode = mode;
+            this.left = left;
+            this.right = right;
+        }
+
+        @Override
+        long evaluateLong(Environment env) throws Exception {
+            if (!wide) {
+                try {
+                    return this.evaluate(env);
+                } catch (Overflow e) {
+                    //evaluate()已经把这个节点改成了按long计算
+                }
+            }
+            return this.evaluateWide(env);
+        }
+
+        /**
+         * 按long计算，和BinaryOperator.apply()在LONG模式下的结果一样
+         */
+        abstract long evaluateWide(Environment env) throws Exception;
+
+        /**
+         * 转换成int，超出范围时按模式抛出异常
+         */
+        int narrow(long value) {
+            if ((int) value != value) {
+                if (mode == ArithmeticMode.CHECKED) {
+                    throw new ArithmeticException("integer overflow");
+                }
+                throw Overflow.INSTANCE;
+            }
+            return (int) value;
+        }
+    }
+
+    static final class ExactAdd extends Exact {
+        ExactAdd(ArithmeticMode mode, Expression left, Expression right) {
+            super(mode, left, right);
+        }
+
+        @Override
+        int evaluate(Environment env) throws Exception {
+            if (!wide) {
+                try {
+                    return this.narrow((long) left.evaluate(env) + right.evaluate(env));
+                } catch (Overflow e) {
+                    wide = true;
+                }
+            }
+            return this.narrow(this.evaluateWide(env));
+        }
+
+        @Override
+        long evaluateWide(Environment env) throws Exception {
+            return left.evaluateLong(env) + right.evaluateLong(env);
+        }
+    }
+
+    static final class ExactSub extends Exact {
+        ExactSub(ArithmeticMode mode, Expression left, Expression right) {
+            super(mode, left, right);
+        }
+
+        @Override
+        int evaluate(Environment env) throws Exception {
+            if (!wide) {
+                try {
+                    return this.narrow((long) left.evaluate(env) - right.evaluate(env));
+                } catch (Overflow e) {
+                    wide = true;
+                }
+            }
+            return this.narrow(this.evaluateWide(env));
+        }
+
+        @Override
+        long evaluateWide(Environment env) throws Exception {
+            return left.evaluateLong(env) - right.evaluateLong(env);
+        }
+    }
+
+    static final class ExactMul extends Exact {
+        ExactMul(ArithmeticMode mode, Expression left, Expression right) {
+            super(mode, left, right);
+        }
+
+        @Override
+        int evaluate(Environment env) throws Exception {
+            if (!wide) {
+                try {
+                    return this.narrow((long) left.evaluate(env) * right.evaluate(env));
+                } catch (Overflow e) {
+                    wide = true;
+                }
+            }
+            return this.narrow(this.evaluateWide(env));
+        }
+
+        @Override
+        long evaluateWide(Environment env) throws Exception {
+            return left.evaluateLong(env) * right.evaluateLong(env);
+        }
+    }
+
+    static final class ExactDiv extends Exact {
+        ExactDiv(ArithmeticMode mode, Expression left, Expression right) {
+            super(mode, left, right);
+        }
+
+        @Override
+        int evaluate(Environment env) throws Exception {
+            if (!wide) {
+                try {
+                    //只有Integer.MIN_VALUE / -1会超出int范围
+                    return this.narrow(BinaryOperator.divide((long) left.evaluate(env), right.evaluate(env)));
+                } catch (Overflow e) {
+                    wide = true;
+                }
+            }
+            return this.narrow(this.evaluateWide(env));
+        }
+
+        @Override
+        long evaluateWide(Environment env) throws Exception {
+            long value1 = left.evaluateLong(env);
+            return BinaryOperator.divide(value1, right.evaluateLong(env));
+        }
+    }
+
+    /**
+     * 后缀形式的指令，用一个int数组做操作数栈来计算，用于嵌套很深的表达式
+     */
+    static final class Postfix extends Expression {
+        static final int LOAD = 0;
+        static final int CONST = 1;
+        static final int ADD = 2;
+        static final int SUB = 3;
+        static final int MUL = 4;
+        static final int DIV = 5;
+        static final int LOCAL_LOAD = 6;
+        //超出int范围的字面量，后面是高32位和低32位
+        static final int WIDE_CONST = 7;
+
+        private final int[] code;
+        private final int maxDepth;
+        //为null时按int计算，否则用evaluateLong()按模式计算
+        private final ArithmeticMode mode;
+
+        Postfix(int[] code, int maxDepth, ArithmeticMode mode) {
+            this.code = code;
+            this.maxDepth = maxDepth;
+            this.mode = mode;
+        }
+
+        @Override
+        int evaluate(Environment env) throws Exception {
+            if (mode != null) {
+                //CHECKED模式下evaluateLong()的值不会超出int范围
+                long value = this.evaluateLong(env);
+                if ((int) value != value) {
+                    throw Overflow.INSTANCE;
+                }
+                return (int) value;
+            }
+            int[] stack = env.stack(maxDepth);
+            int sp = 0;
+            int pc = 0;
+            while (pc < code.length) {
+                switch (code[pc++]) {
+                    case LOAD:
+                        stack[sp++] = env.load(code[pc++]);
+                        break;
+                    case CONST:
+                        stack[sp++] = code[pc++];
+                        break;
+                    case LOCAL_LOAD:
+                        stack[sp++] = env.load(env.boundSlot(code[pc++]));
+                        break;
+                    case ADD:
+                        sp--;
+                        stack[sp - 1] = stack[sp - 1] + stack[sp];
+                        break;
+                    case SUB:
+                        sp--;
+                        stack[sp - 1] = stack[sp - 1] - stack[sp];
+                        break;
+                    case MUL:
+                        sp--;
+                        stack[sp - 1] = stack[sp - 1] * stack[sp];
+                        break;
+                    default:
+                        sp--;
+                        stack[sp - 1] = BinaryOperator.divide(stack[sp - 1], stack[sp]);
+                        break;
+                }
+            }
+            return stack[0];
+        }
+
+        @Override
+        long evaluateLong(Environment env) throws Exception {
+            if (mode == null) {
+                return this.evaluate(env);
+            }
+            long[] stack = env.longStack(maxDepth);
+            int sp = 0;
+            int pc = 0;
+            while (pc < code.length) {
+                int op = code[pc++];
+                switch (op) {
+                    case LOAD:
+                        stack[sp++] = mode.normalize(env.loadLong(code[pc++]));
+                        break;
+                    case CONST:
+                        stack[sp++] = code[pc++];
+                        break;
+                    case LOCAL_LOAD:
+                        stack[sp++] = mode.normalize(env.loadLong(env.boundSlot(code[pc++])));
+                        break;
+                    case WIDE_CONST:
+                        stack[sp++] = mode.normalize((long) code[pc] << 32 | code[pc + 1] & 0xFFFFFFFFL);
+                        pc += 2;
+                        break;
+                    default:
+                        //ADD、SUB、MUL、DIV和BinaryOperator的顺序一样
+                        sp--;
+                        stack[sp - 1] = OPERATORS[op - ADD].apply(stack[sp - 1], stack[sp], mode);
+                        break;
+                }
+            }
+            return stack[0];
+        }
+
+        private static final BinaryOperator[] OPERATORS = BinaryOperator.values();
+    }
+
+    /**
+     * 公共子表达式，一次执行中第一次求值后把结果保存为临时值，以后直接读取，
+     * 直到用到的变量被赋值，由Declare和Assign把临时值作废
+     */
+    static final class Cached extends Expression {
+        private final int index;
+        private final Expression expression;
+
+        Cached(int index, Expression expression) {
+            this.index = index;
+            this.expression = expression;
+        }
+
+        @Override
+        int evaluate(Environment env) throws Exception {
+            if (env.hasTemporary(index)) {
+                return env.loadTemporary(index);
+            }
+            int value = expression.evaluate(env);
+            env.storeTemporary(index, value);
+            return value;
+        }
+    }
+
+    static final class Literal extends Expression {
+        private final int value;
+
+        Literal(int value) {
+            this.value = value;
+        }
+
+        @Override
+        int evaluate(Environment env) {
+            return value;
+        }
+    }
+
+    /**
+     * CHECKED和LONG模式下超出int范围的字面量，CHECKED模式下求值时抛出ArithmeticException，
+     * LONG模式下evaluate()抛出Overflow
+     */
+    static final class WideLiteral extends Expression {
+        private final long value;
+        private final ArithmeticMode mode;
+
+        WideLiteral(long value, ArithmeticMode mode) {
+            this.value = value;
+            this.mode = mode;
+        }
+
+        @Override
+        int evaluate(Environment env) {
+            //CHECKED模式下normalize()已经抛出了异常
+            mode.normalize(value);
+            throw Overflow.INSTANCE;
+        }
+
+        @Override
+        long evaluateLong(Environment env) {
+            return mode.normalize(value);
+        }
+    }
+
+    static final class Load extends Expression {
+        private final int slot;
+
+        Load(int slot) {
+            this.slot = slot;
+        }
+
+        @Override
+        int evaluate(Environment env) throws Exception {
+            return env.load(slot);
+        }
+    }
+
+    /**
+     * 按程序内的编号读取变量，执行时绑定到Environment的槽位
+     */
+    static final class LocalLoad extends Expression {
+        private final int index;
+
+        LocalLoad(int index) {
+            this.index = index;
+        }
+
+        @Override
+        int evaluate(Environment env) throws Exception {
+            return env.load(env.boundSlot(index));
+        }
+    }
+
+    /**
+     * CHECKED和LONG模式下读取变量，值按模式转换，LONG模式下值超出int范围时evaluate()抛出Overflow
+     */
+    static final class WideLoad extends Expression {
+        private final int slot;
+        //slot是程序内的变量编号，执行时按绑定查出槽位
+        private final boolean local;
+        private final ArithmeticMode mode;
+
+        WideLoad(int slot, boolean local, ArithmeticMode mode) {
+            this.slot = slot;
+            this.local = local;
+            this.mode = mode;
+        }
+
+        @Override
+        int evaluate(Environment env) throws Exception {
+            long value = env.loadLong(local ? env.boundSlot(slot) : slot);
+            if ((int) value != value) {
+                //CHECKED模式下normalize()抛出ArithmeticException
+                mode.normalize(value);
+                throw Overflow.INSTANCE;
+            }
+            return (int) value;
+        }
+
+        @Override
+        long evaluateLong(Environment env) throws Exception {
+            return mode.normalize(env.loadLong(local ? env.boundSlot(slot) : slot));
+        }
+    }
+
+}
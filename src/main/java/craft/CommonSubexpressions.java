@@ -0,0 +1,272 @@
+package craft;
+
+import craft.TypedASTNode.AssignmentNode;
+import craft.TypedASTNode.BinaryNode;
+import craft.TypedASTNode.DeclarationNode;
+import craft.TypedASTNode.ExpressionNode;
+import craft.TypedASTNode.IdentifierNode;
+import craft.TypedASTNode.LiteralNode;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * 公共子表达式消除(CSE)的分析。
+ * 找出一个Program中重复出现的子表达式，给每个分配一个临时值的编号。
+ * ClosureCompiler把这些子表达式编译成Cached节点：一次执行中第一次求值后把结果保存在Environment里，
+ * 以后直接使用；表达式用到的变量被赋值或者重新声明时，由这条语句把对应的临时值作废。
+ * 表达式没有副作用，跳过重复的计算不会改变结果，也不会改变是否出错。
+ *
+ * 相同的子表达式用NodeFactory识别：把每个表达式换成共享的节点以后，相同的子表达式就是同一个节点。
+ * 引用次数按共享以后的节点计算，比如 (a*b+c) 出现两次，它里面的 a*b 只算被引用一次，
+ * 因为 a*b+c 只计算一次时 a*b 也只计算一次。
+ * 只有一个运算的表达式(比如 a*b)重新计算并不比读取临时值慢，不做处理。
+ */
+public class CommonSubexpressions {
+
+    public static void main(String[] args) throws Exception {
+        String script = "int a = 2; int b = 3; int c = 4;"
+                + "int x = a*b+c; int y = (a*b+c)*(a*b+c);"
+                + "c = 10; (a*b+c) - (a*b+c)/2;";
+        SimpleParser parser = new SimpleParser(new SymbolTable(), new NodeFactory());
+        ASTNode tree = parser.parse(script);
+        CommonSubexpressions cse = CommonSubexpressions.analyze(tree);
+        System.out.println(cse);
+
+        ClosureCompiler compiler = new ClosureCompiler();
+        compiler.setEliminateCommonSubexpressions(true);
+        Environment variables = new Environment(parser.getSymbols());
+        System.out.println(compiler.compile(tree, variables).execute(variables));
+        System.out.println(variables);
+    }
+
+    private static final int[] NONE = new int[0];
+
+    //AST中的表达式节点 -> 临时值的编号，包括共享以前的各个副本
+    private final Map<ExpressionNode, Integer> indexes = new IdentityHashMap<>();
+    //按编号排列的公共子表达式
+    private final List<BinaryNode> expressions = new ArrayList<>();
+    //变量名 -> 用到这个变量的公共子表达式
+    private final Map<String, int[]> kills = new HashMap<>();
+
+    private CommonSubexpressions() {
+    }
+
+    /**
+     * 分析一个Program，AST本身不会被修改
+     * @param program SimpleParser生成的AST，节点共享或不共享都可以
+     * @return
+     */
+    public static CommonSubexpressions analyze(ASTNode program) {
+        CommonSubexpressions cse = new CommonSubexpressions();
+        NodeFactory factory = new NodeFactory();
+        //原来的二元表达式节点 -> 共享的节点
+        Map<ExpressionNode, ExpressionNode> canonical = new IdentityHashMap<>();
+        List<ExpressionNode> roots = new ArrayList<>();
+        for (ASTNode statement : program.getChildren()) {
+            ExpressionNode expression = expressionOf(statement);
+            if (expression != null) {
+                roots.add(canonicalize(expression, factory, canonical));
+            }
+        }
+
+        //统计每个共享节点被引用的次数，每个节点的子节点只统计一次
+        Map<BinaryNode, int[]> uses = new IdentityHashMap<>();
+        List<BinaryNode> found = new ArrayList<>();
+        for (ExpressionNode root : roots) {
+            use(root, uses, found);
+        }
+        for (int i = 0; i < found.size(); i++) {
+            BinaryNode node = found.get(i);
+            use(node.getLeft(), uses, found);
+            use(node.getRight(), uses, found);
+        }
+
+        Map<ExpressionNode, Integer> shared = new IdentityHashMap<>();
+        Map<String, List<Integer>> readers = new HashMap<>();
+        for (BinaryNode node : found) {
+            if (uses.get(node)[0] > 1 && (node.getLeft() instanceof BinaryNode || node.getRight() instanceof BinaryNode)) {
+                int index = cse.expressions.size();
+                cse.expressions.add(node);
+                shared.put(node, index);
+                for (String name : variables(node)) {
+                    readers.computeIfAbsent(name, k -> new ArrayList<>()).add(index);
+                }
+            }
+        }
+        for (Map.Entry<ExpressionNode, ExpressionNode> entry : canonical.entrySet()) {
+            Integer index = shared.get(entry.getValue());
+            if (index != null) {
+                cse.indexes.put(entry.getKey(), index);
+            }
+        }
+        for (Map.Entry<String, List<Integer>> entry : readers.entrySet()) {
+            int[] indexes = new int[entry.getValue().size()];
+            for (int i = 0; i < indexes.length; i++) {
+                indexes[i] = entry.getValue().get(i);
+            }
+            cse.kills.put(entry.getKey(), indexes);
+        }
+        return cse;
+    }
+
+    /**
+     * 语句中的表达式，没有时返回null
+     */
+    private static ExpressionNode expressionOf(ASTNode statement) {
+        if (statement instanceof DeclarationNode) {
+            return ((DeclarationNode) statement).getInit();
+        } else if (statement instanceof AssignmentNode) {
+            return ((AssignmentNode) statement).getValue();
+        } else if (statement instanceof ExpressionNode) {
+            return (ExpressionNode) statement;
+        }
+        return null;
+    }
+
+    /**
+     * 用factory创建和root结构相同的表达式，记下每个二元表达式节点对应的共享节点。
+     * 按后序遍历的顺序用显式的栈处理，已经处理过的节点直接使用记下的结果。
+     */
+    private static ExpressionNode canonicalize(ExpressionNode root, NodeFactory factory,
+                                               Map<ExpressionNode, ExpressionNode> canonical) {
+        Deque<ExpressionNode> nodes = new ArrayDeque<>();
+        Deque<Boolean> expanded = new ArrayDeque<>();
+        Deque<ExpressionNode> results = new ArrayDeque<>();
+        nodes.push(root);
+        expanded.push(false);
+        while (!nodes.isEmpty()) {
+            ExpressionNode node = nodes.pop();
+            boolean children = expanded.pop();
+            if (node instanceof LiteralNode) {
+                results.push(factory.literal(((LiteralNode) node).getLongValue()));
+            } else if (node instanceof IdentifierNode) {
+                IdentifierNode identifier = (IdentifierNode) node;
+                results.push(factory.identifier(identifier.getVarName(), identifier.getSymbol()));
+            } else if (!children) {
+                ExpressionNode known = canonical.get(node);
+                if (known != null) {
+                    results.push(known);
+                    continue;
+                }
+                BinaryNode binary = (BinaryNode) node;
+                nodes.push(binary);
+                expanded.push(true);
+                nodes.push(binary.getRight());
+                expanded.push(false);
+                nodes.push(binary.getLeft());
+                expanded.push(false);
+            } else {
+                ExpressionNode right = results.pop();
+                ExpressionNode left = results.pop();
+                ExpressionNode result = factory.binary(((BinaryNode) node).getOperator(), left, right);
+                canonical.put(node, result);
+                results.push(result);
+            }
+        }
+        return results.pop();
+    }
+
+    private static void use(ExpressionNode node, Map<BinaryNode, int[]> uses, List<BinaryNode> found) {
+        if (node instanceof BinaryNode) {
+            int[] count = uses.get(node);
+            if (count == null) {
+                uses.put((BinaryNode) node, new int[]{1});
+                found.add((BinaryNode) node);
+            } else {
+                count[0]++;
+            }
+        }
+    }
+
+    /**
+     * 表达式用到的变量
+     */
+    private static Set<String> variables(ExpressionNode root) {
+        Set<String> names = new LinkedHashSet<>();
+        Map<ExpressionNode, Boolean> visited = new IdentityHashMap<>();
+        Deque<ExpressionNode> nodes = new ArrayDeque<>();
+        nodes.push(root);
+        while (!nodes.isEmpty()) {
+            ExpressionNode node = nodes.pop();
+            if (node instanceof IdentifierNode) {
+                names.add(((IdentifierNode) node).getVarName());
+            } else if (node instanceof BinaryNode && visited.put(node, Boolean.TRUE) == null) {
+                nodes.push(((BinaryNode) node).getRight());
+                nodes.push(((BinaryNode) node).getLeft());
+            }
+        }
+        return names;
+    }
+
+    /**
+     * 公共子表达式的数量，也就是执行时需要的临时值的数量
+     * @return
+     */
+    public int size() {
+        return expressions.size();
+    }
+
+    /**
+     * 节点对应的临时值的编号，不是公共子表达式时返回-1
+     * @param node
+     * @return
+     */
+    public int indexOf(ASTNode node) {
+        Integer index = indexes.get(node);
+        return index == null ? -1 : index;
+    }
+
+    /**
+     * 给变量赋值或者声明变量以后要作废的临时值
+     * @param varName
+     * @return
+     */
+    public int[] killedBy(String varName) {
+        int[] indexes = kills.get(varName);
+        return indexes == null ? NONE : indexes;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("common subexpressions: ").append(expressions.size());
+        for (int i = 0; i < expressions.size(); i++) {
+            sb.append("\n\t#").append(i).append(' ');
+            format(expressions.get(i), sb);
+            sb.append(" reads ").append(variables(expressions.get(i)));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * 把表达式写成带括号的中缀形式，不用递归
+     */
+    private static void format(ExpressionNode root, StringBuilder sb) {
+        Deque<Object> items = new ArrayDeque<>();
+        items.push(root);
+        while (!items.isEmpty()) {
+            Object item = items.pop();
+            if (item instanceof BinaryNode) {
+                BinaryNode binary = (BinaryNode) item;
+                items.push(")");
+                items.push(binary.getRight());
+                items.push(" " + binary.getText() + " ");
+                items.push(binary.getLeft());
+                items.push("(");
+            } else if (item instanceof ExpressionNode) {
+                sb.append(((ExpressionNode) item).getText());
+            } else {
+                sb.append(item);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,19 @@
+package craft;
+
+/**
+ * 编译后的脚本。
+ * 由BytecodeCompiler把整个Program生成为一个JVM类，可以在不同的变量值上反复执行。
+ */
+public interface CompiledScript {
+
+    /**
+     * 在env上执行脚本，返回最后一条语句的值。
+     * 脚本中没有声明的变量从env中读取，声明和赋值的变量都保存到env中，和StackVM.run()的结果相同。
+     * env要和编译时用的Environment共用一个符号表。
+     * @param env
+     * @return
+     * @throws Exception
+     */
+    Integer execute(Environment env) throws Exception;
+
+}
@@ -0,0 +1,366 @@
+package craft;
+
+import craft.TypedASTNode.AssignmentNode;
+import craft.TypedASTNode.BinaryNode;
+import craft.TypedASTNode.DeclarationNode;
+import craft.TypedASTNode.ExpressionNode;
+import craft.TypedASTNode.IdentifierNode;
+import craft.TypedASTNode.LiteralNode;
+import craft.TypedASTNode.ProgramNode;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * 常量折叠和代数化简。
+ * 在解析之后、求值之前对AST做一遍优化，返回一棵新的AST：
+ * 1.只有字面量的加法、乘法表达式直接算出结果，比如 2+3*5 变成 17；
+ * 2.化简 x+0、0+x、x-0、x*1、1*x、x/1，得到 x；
+ * 3.x*0、0*x、x-x 化简为 0，但只在 x 求值一定不会出错时才这样做；
+ * 4.合并加减法链上的常量，比如 x+2+3 变成 x+5。
+ *
+ * 计算按ArithmeticMode进行，和运行时一致，默认是int溢出回绕。
+ * 除数为0的表达式保留原样，运行时照样报错；CHECKED模式下会溢出的表达式也保留原样，
+ * 而且不合并常量、不把可能溢出的 x*0 化简为0，以免改变是否报错。
+ * 输入可以是任意的ASTNode，比如FlatAST.getRoot()的视图，按getType()和getChildren()读取；输出是TypedASTNode。
+ * 表达式节点由指定的NodeFactory创建，用共享节点的工厂时，结果中相同的子表达式也只有一份。
+ */
+public class ConstantFolder {
+
+    public static void main(String[] args) {
+        SimpleParser parser = new SimpleParser();
+        ConstantFolder folder = new ConstantFolder();
+
+        String[] scripts = {
+                "2+3*5;",
+                "int x = 4; (x*1)+0; x+2+3; x-x; y*0;",
+                "int a; a*0; 2/0;"
+        };
+        for (String script : scripts) {
+            try {
+                System.out.println("优化：" + script);
+                ASTNode tree = parser.parse(script);
+                parser.dumpAST(tree, "");
+                System.out.println("优化后：");
+                parser.dumpAST(folder.fold(tree), "");
+            } catch (Exception e) {
+                System.out.println(e.getMessage());
+            }
+        }
+    }
+
+    private final ArithmeticMode mode;
+
+    public ConstantFolder() {
+        this(ArithmeticMode.WRAP);
+    }
+
+    /**
+     * @param mode 执行时使用的运算方式
+     */
+    public ConstantFolder(ArithmeticMode mode) {
+        this.mode = mode;
+    }
+
+    /**
+     * 优化一个Program，返回新的AST，原来的AST不变
+     * @param program
+     * @return
+     * @throws Exception 不是表达式或语句的节点，或者超出long范围的字面量
+     */
+    public ASTNode fold(ASTNode program) throws Exception {
+        return this.fold(program, NodeFactory.PLAIN);
+    }
+
+    /**
+     * 优化一个Program，新的表达式节点由nodes创建
+     * @param program
+     * @param nodes
+     * @return
+     * @throws Exception 不是表达式或语句的节点，或者超出long范围的字面量
+     */
+    public ASTNode fold(ASTNode program, NodeFactory nodes) throws Exception {
+        ProgramNode node = new ProgramNode(program.getText());
+        //已经确定有值的变量，对它们求值不会出错
+        Set<String> assigned = new HashSet<>();
+        for (ASTNode child : program.getChildren()) {
+            node.addStatement(this.statement(child, assigned, nodes));
+        }
+        return node;
+    }
+
+    private TypedASTNode statement(ASTNode node, Set<String> assigned, NodeFactory nodes) throws Exception {
+        switch (node.getType()) {
+            case IntDeclaration:
+                String varName = node.getText();
+                ASTNode init = valueOf(node);
+                if (init == null) {
+                    assigned.remove(varName);
+                    return new DeclarationNode(varName, symbolOf(node), null);
+                }
+                ExpressionNode value = this.expression(init, assigned, nodes);
+                assigned.add(varName);
+                return new DeclarationNode(varName, symbolOf(node), value);
+            case AssignmentStmt:
+                varName = node.getText();
+                ASTNode source = valueOf(node);
+                if (source == null) {
+                    assigned.remove(varName);
+                    return new AssignmentNode(varName, symbolOf(node), null);
+                }
+                value = this.expression(source, assigned, nodes);
+                assigned.add(varName);
+                return new AssignmentNode(varName, symbolOf(node), value);
+            case ExpressionStmt:
+                return this.expression(node.getChildren().get(0), assigned, nodes);
+            default:
+                return this.expression(node, assigned, nodes);
+        }
+    }
+
+    /**
+     * 变量声明或赋值语句中的表达式，没有值时返回null
+     */
+    private static ASTNode valueOf(ASTNode statement) {
+        if (statement instanceof DeclarationNode) {
+            return ((DeclarationNode) statement).getInit();
+        } else if (statement instanceof AssignmentNode) {
+            return ((AssignmentNode) statement).getValue();
+        }
+        List<ASTNode> children = statement.getChildren();
+        return children.isEmpty() ? null : children.get(0);
+    }
+
+    /**
+     * TypedASTNode上的符号编号，其他节点返回-1，执行时按变量名查找
+     */
+    private static int symbolOf(ASTNode node) {
+        if (node instanceof DeclarationNode) {
+            return ((DeclarationNode) node).getSymbol();
+        } else if (node instanceof AssignmentNode) {
+            return ((AssignmentNode) node).getSymbol();
+        } else if (node instanceof IdentifierNode) {
+            return ((IdentifierNode) node).getSymbol();
+        }
+        return -1;
+    }
+
+    /**
+     * 化简表达式。按后序遍历的顺序用显式的栈处理，先化简子节点，再用combine()化简当前节点，
+     * 很深的表达式也不会栈溢出。
+     */
+    private ExpressionNode expression(ASTNode root, Set<String> assigned, NodeFactory factory) throws Exception {
+        //还要处理的节点，expanded表示子节点已经压栈，再次出栈时合并
+        Deque<ASTNode> nodes = new ArrayDeque<>();
+        Deque<Boolean> expanded = new ArrayDeque<>();
+        //已经化简好的子树
+        Deque<ExpressionNode> results = new ArrayDeque<>();
+        nodes.push(root);
+        expanded.push(false);
+        while (!nodes.isEmpty()) {
+            ASTNode node = nodes.pop();
+            boolean children = expanded.pop();
+            switch (node.getType()) {
+                case IntLiteral:
+                    results.push(factory.literal(LiteralNode.valueOf(node)));
+                    break;
+                case Identifier:
+                    results.push(factory.identifier(node.getText(), symbolOf(node)));
+                    break;
+                case Primary:
+                    nodes.push(node.getChildren().get(0));      //括号在折叠后的AST中不需要
+                    expanded.push(false);
+                    break;
+                case Additive:
+                case Multiplicative:
+                    if (!children) {
+                        List<ASTNode> operands = node.getChildren();
+                        nodes.push(node);
+                        expanded.push(true);
+                        nodes.push(operands.get(1));
+                        expanded.push(false);
+                        nodes.push(operands.get(0));
+                        expanded.push(false);
+                    } else {
+                        ExpressionNode right = results.pop();
+                        ExpressionNode left = results.pop();
+                        results.push(this.combine(BinaryOperator.of(node), left, right, assigned, factory));
+                    }
+                    break;
+                default:
+                    throw new Exception("can not fold node: " + node.getType());
+            }
+        }
+        return results.pop();
+    }
+
+    /**
+     * 化简一个二元运算，left和right是已经化简过的子树
+     */
+    private ExpressionNode combine(BinaryOperator op, ExpressionNode left, ExpressionNode right, Set<String> assigned,
+                                   NodeFactory nodes) {
+        Long l = this.literal(left);
+        Long r = this.literal(right);
+
+        //两边都是字面量
+        if (l != null && r != null) {
+            try {
+                return nodes.literal(op.apply(l, r, mode));
+            } catch (ArithmeticException e) {
+                return nodes.binary(op, left, right);     //除数为0或者溢出，留到运行时报错
+            }
+        }
+
+        if (op == BinaryOperator.Plus || op == BinaryOperator.Minus) {
+            if (r != null && r == 0) {
+                return left;        // x+0, x-0
+            }
+            if (r != null && mode != ArithmeticMode.CHECKED) {
+                //合并常量：(e + c1) + c2 => e + (c1 + c2)，回绕的运算满足结合律
+                long constant = op == BinaryOperator.Plus ? r : -r;
+                if (left instanceof BinaryNode) {
+                    BinaryNode inner = (BinaryNode) left;
+                    Long c = this.literal(inner.getRight());
+                    if (c != null && inner.getOperator().getNodeType() == ASTNodeType.Additive) {
+                        constant += inner.getOperator() == BinaryOperator.Plus ? c : -c;
+                        left = inner.getLeft();
+                    }
+                }
+                return this.add(left, mode.normalize(constant), nodes);
+            }
+            if (l != null && l == 0 && op == BinaryOperator.Plus) {
+                return right;
+            }
+            //先比较是否相同，一般在根节点就能看出不同，不用每次都检查整棵左子树
+            if (op == BinaryOperator.Minus && this.sameTree(left, right) && this.isSafe(left, assigned)) {
+                return nodes.literal(0);
+            }
+        } else {
+            if (r != null && r == 1) {
+                return left;        // x*1, x/1
+            }
+            if (op == BinaryOperator.Star) {
+                if (l != null && l == 1) {
+                    return right;
+                }
+                if (r != null && r == 0 && this.isSafe(left, assigned)) {
+                    return nodes.literal(0);
+                }
+                if (l != null && l == 0 && this.isSafe(right, assigned)) {
+                    return nodes.literal(0);
+                }
+            }
+        }
+        return nodes.binary(op, left, right);
+    }
+
+    /**
+     * 构造 e + constant，常量为0时直接返回 e
+     */
+    private ExpressionNode add(ExpressionNode left, long constant, NodeFactory nodes) {
+        if (constant == 0) {
+            return left;
+        }
+        if (constant < 0 && mode.normalize(-constant) != constant) {     //最小值取反还是它自己
+            return nodes.binary(BinaryOperator.Minus, left, nodes.literal(-constant));
+        }
+        return nodes.binary(BinaryOperator.Plus, left, nodes.literal(constant));
+    }
+
+    /**
+     * 对这个表达式求值是否一定不会出错：变量都已经有值，并且除数都是非0的字面量
+     */
+    private boolean isSafe(ExpressionNode root, Set<String> assigned) {
+        Deque<ExpressionNode> nodes = new ArrayDeque<>();
+        nodes.push(root);
+        while (!nodes.isEmpty()) {
+            ExpressionNode node = nodes.pop();
+            if (node instanceof IdentifierNode) {
+                if (!assigned.contains(((IdentifierNode) node).getVarName())) {
+                    return false;
+                }
+            } else if (node instanceof LiteralNode) {
+                if (this.literal(node) == null) {
+                    return false;       //CHECKED模式下超出int范围
+                }
+            } else if (node instanceof BinaryNode) {
+                if (mode == ArithmeticMode.CHECKED) {
+                    return false;       //可能溢出
+                }
+                BinaryNode binary = (BinaryNode) node;
+                if (binary.getOperator() == BinaryOperator.Slash) {
+                    Long divisor = this.literal(binary.getRight());
+                    if (divisor == null || divisor == 0) {
+                        return false;
+                    }
+                }
+                nodes.push(binary.getRight());
+                nodes.push(binary.getLeft());
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 两棵子树是否相同，成对地比较对应的节点
+     */
+    private boolean sameTree(ExpressionNode first, ExpressionNode second) {
+        Deque<ExpressionNode> pairs = new ArrayDeque<>();
+        pairs.push(second);
+        pairs.push(first);
+        while (!pairs.isEmpty()) {
+            ExpressionNode a = pairs.pop();
+            ExpressionNode b = pairs.pop();
+            if (a == b) {
+                continue;       //共享的节点
+            }
+            if (a instanceof LiteralNode && b instanceof LiteralNode) {
+                if (((LiteralNode) a).getLongValue() != ((LiteralNode) b).getLongValue()) {
+                    return false;
+                }
+            } else if (a instanceof IdentifierNode && b instanceof IdentifierNode) {
+                IdentifierNode x = (IdentifierNode) a;
+                IdentifierNode y = (IdentifierNode) b;
+                if (x.getSymbol() >= 0 && y.getSymbol() >= 0) {
+                    if (x.getSymbol() != y.getSymbol()) {     //同一个符号表中的编号
+                        return false;
+                    }
+                } else if (!x.getVarName().equals(y.getVarName())) {
+                    return false;
+                }
+            } else if (a instanceof BinaryNode && b instanceof BinaryNode) {
+                BinaryNode x = (BinaryNode) a;
+                BinaryNode y = (BinaryNode) b;
+                if (x.getOperator() != y.getOperator()) {
+                    return false;
+                }
+                pairs.push(y.getRight());
+                pairs.push(x.getRight());
+                pairs.push(y.getLeft());
+                pairs.push(x.getLeft());
+            } else {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 如果节点是字面量，返回它在当前模式下的值，否则返回null。
+     * CHECKED模式下超出int范围的字面量运行时会报错，也返回null
+     */
+    private Long literal(ExpressionNode node) {
+        if (node instanceof LiteralNode) {
+            try {
+                return mode.normalize(((LiteralNode) node).getLongValue());
+            } catch (ArithmeticException e) {
+                return null;
+            }
+        }
+        return null;
+    }
+
+}
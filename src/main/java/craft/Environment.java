@@ -0,0 +1,358 @@
+package craft;
+
+import java.util.Arrays;
+
+/**
+ * 变量的存储。
+ * 每个变量名在编译时分配一个固定的槽位(slot)，运行时按槽位存取，不再对变量名做哈希。
+ * 槽位就是变量名在SymbolTable中的编号，和SimpleParser共用一个符号表时，AST上记录的编号可以直接使用。
+ * 存储空间和符号表的大小成正比，所以多个会话各自用自己的Environment和符号表，
+ * 共用的程序用ClosureCompiler.compile(ASTNode)编译，执行时按变量名绑定到槽位。
+ * 变量的值保存在int数组里，另外用两个位图记录变量是否已经声明、是否已经赋值。
+ * 超出int范围的值(只在ArithmeticMode.LONG模式下出现)另外保存在long数组里，用第三个位图标记，
+ * 这两个数组在第一次出现这样的值时才分配；int数组里同时保存它的低32位，按int读取时就是回绕后的值。
+ */
+public class Environment {
+
+    //变量名 -> 槽位
+    private final SymbolTable symbols;
+
+    private int[] values = new int[16];
+
+    //位图：已经声明的变量
+    private long[] declared = new long[1];
+    //位图：已经赋值的变量
+    private long[] assigned = new long[1];
+
+    //超出int范围的值和标记它们的位图，没有这样的值时为null
+    private long[] wide = null;
+    private long[] wideBits = null;
+
+    //临时值，编译后的程序在这里保存公共子表达式的值，见ClosureCompiler.Cached。
+    //stamps[i]等于当前的stamp时temporaries[i]才有效，这样开始执行时不用逐个清除
+    private int[] temporaries = new int[0];
+    private int[] stamps = new int[0];
+    private int stamp = 0;
+
+    //ClosureCompiler.Postfix计算用的操作数栈，在多次执行之间复用
+    private int[] stack = new int[0];
+    private long[] longStack = new long[0];
+
+    //最近绑定的程序和它的变量编号对应的槽位，见bind()
+    private Object boundProgram = null;
+    private int[] bound = new int[0];
+
+    public Environment() {
+        this(new SymbolTable());
+    }
+
+    public Environment(SymbolTable symbols) {
+        this.symbols = symbols;
+    }
+
+    public SymbolTable getSymbols() {
+        return symbols;
+    }
+
+    /**
+     * 返回变量名对应的槽位，如果还没有就分配一个新的。
+     * 分配了槽位并不代表变量已经声明，声明是在运行时记录的。
+     * @param varName
+     * @return
+     */
+    public int slotOf(String varName) {
+        return this.slotOf(symbols.intern(varName), varName);
+    }
+
+    /**
+     * 返回符号对应的槽位。
+     * 如果symbol不是这个Environment的符号表分配的编号，就按变量名重新查找。
+     * @param symbol 变量名在SimpleParser的符号表中的编号
+     * @param varName
+     * @return
+     */
+    public int slotOf(int symbol, String varName) {
+        if (symbol < 0 || symbol >= symbols.size() || !this.sameName(symbols.nameOf(symbol), varName)) {
+            symbol = symbols.intern(varName);
+        }
+        this.reserve(symbol + 1);
+        return symbol;
+    }
+
+    /**
+     * 保证槽位0到count-1都有存储空间。
+     * 声明和赋值时会自动扩大存储空间，所以在别的Environment上编译的程序，只要符号表相同也可以在这里执行。
+     * @param count
+     */
+    private void reserve(int count) {
+        if (count > values.length) {
+            values = Arrays.copyOf(values, Math.max(count, values.length * 2));
+        }
+        int words = (values.length + 63) >>> 6;
+        if (words > declared.length) {
+            int length = Math.max(words, declared.length * 2);
+            declared = Arrays.copyOf(declared, length);
+            assigned = Arrays.copyOf(assigned, length);
+        }
+        if (wide != null && wide.length < values.length) {
+            wide = Arrays.copyOf(wide, values.length);
+            wideBits = Arrays.copyOf(wideBits, declared.length);
+        }
+    }
+
+    //同一个符号表里的名字是同一个String对象，一般比较引用就够了
+    private boolean sameName(String name, String varName) {
+        return name == varName || name.equals(varName);
+    }
+
+    /**
+     * 槽位对应的变量名
+     * @param slot
+     * @return
+     */
+    public String nameOf(int slot) {
+        return symbols.nameOf(slot);
+    }
+
+    /**
+     * 已经分配了存储空间的槽位数量
+     * @return
+     */
+    public int size() {
+        return Math.min(symbols.size(), Math.min(values.length, declared.length << 6));
+    }
+
+    /**
+     * 存储空间能容纳的槽位数量，用于检查内存占用
+     * @return
+     */
+    int capacity() {
+        return values.length;
+    }
+
+    /**
+     * 读取变量的值
+     * @param slot
+     * @return
+     * @throws Exception 变量没有声明或者没有赋值
+     */
+    public int load(int slot) throws Exception {
+        int word = slot >>> 6;
+        if (word >= assigned.length || (assigned[word] & (1L << slot)) == 0) {
+            if (this.isDeclared(slot)) {
+                throw new Exception("variable " + symbols.nameOf(slot) + " has not been set any value");
+            }
+            throw new Exception("unknown variable:" + symbols.nameOf(slot));
+        }
+        return values[slot];
+    }
+
+    /**
+     * 声明变量，但不赋值。如果之前有值，也会被清除。
+     * @param slot
+     */
+    public void declare(int slot) {
+        if (slot >= values.length) {
+            this.reserve(slot + 1);
+        }
+        declared[slot >>> 6] |= 1L << slot;
+        assigned[slot >>> 6] &= ~(1L << slot);
+        if (wideBits != null) {
+            wideBits[slot >>> 6] &= ~(1L << slot);
+        }
+    }
+
+    /**
+     * 声明变量并赋值
+     * @param slot
+     * @param value
+     */
+    public void store(int slot, int value) {
+        if (slot >= values.length) {
+            this.reserve(slot + 1);
+        }
+        values[slot] = value;
+        declared[slot >>> 6] |= 1L << slot;
+        assigned[slot >>> 6] |= 1L << slot;
+        if (wideBits != null) {
+            wideBits[slot >>> 6] &= ~(1L << slot);
+        }
+    }
+
+    /**
+     * 声明变量并赋一个long值，在int范围内时和store(slot, int)一样
+     * @param slot
+     * @param value
+     */
+    public void storeLong(int slot, long value) {
+        this.store(slot, (int) value);
+        if ((int) value != value) {
+            if (wide == null) {
+                wide = new long[values.length];
+                wideBits = new long[declared.length];
+            }
+            wide[slot] = value;
+            wideBits[slot >>> 6] |= 1L << slot;
+        }
+    }
+
+    /**
+     * 读取变量的long值
+     * @param slot
+     * @return
+     * @throws Exception 变量没有声明或者没有赋值
+     */
+    public long loadLong(int slot) throws Exception {
+        int value = this.load(slot);
+        if (wideBits != null && (wideBits[slot >>> 6] & (1L << slot)) != 0) {
+            return wide[slot];
+        }
+        return value;
+    }
+
+    /**
+     * 把程序内按编号使用的变量绑定到这个Environment的槽位，变量名第一次出现时登记到自己的符号表中。
+     * 只记住最近绑定的一个程序，同一个程序反复执行时不用重新查找
+     * @param program 编译好的程序，只用来判断是不是同一个程序
+     * @param names 程序用到的变量名，按编号排列
+     */
+    void bind(Object program, String[] names) {
+        if (program == boundProgram) {
+            return;
+        }
+        int[] slots = bound.length >= names.length ? bound : new int[names.length];
+        for (int i = 0; i < names.length; i++) {
+            slots[i] = this.slotOf(names[i]);
+        }
+        bound = slots;
+        boundProgram = program;
+    }
+
+    /**
+     * 最近绑定的程序中编号为index的变量的槽位
+     * @param index
+     * @return
+     */
+    int boundSlot(int index) {
+        return bound[index];
+    }
+
+    /**
+     * 开始执行一个需要count个临时值的程序，之前保存的临时值全部作废
+     * @param count
+     */
+    void resetTemporaries(int count) {
+        if (count > temporaries.length) {
+            temporaries = new int[count];
+            stamps = new int[count];
+            stamp = 0;
+        }
+        if (++stamp == 0) {     //回绕了一圈，旧的标记可能和新的stamp相同
+            Arrays.fill(stamps, 0);
+            stamp = 1;
+        }
+    }
+
+    boolean hasTemporary(int index) {
+        return stamps[index] == stamp;
+    }
+
+    int loadTemporary(int index) {
+        return temporaries[index];
+    }
+
+    void storeTemporary(int index, int value) {
+        temporaries[index] = value;
+        stamps[index] = stamp;
+    }
+
+    /**
+     * 作废一组临时值，比如它们用到的变量被重新赋值了
+     * @param indexes
+     */
+    void clearTemporaries(int[] indexes) {
+        for (int index : indexes) {
+            stamps[index] = 0;
+        }
+    }
+
+    /**
+     * 至少有size个元素的操作数栈。Postfix的计算不会嵌套，所以同一个Environment上可以一直复用
+     * @param size
+     * @return
+     */
+    int[] stack(int size) {
+        if (size > stack.length) {
+            stack = new int[size];
+        }
+        return stack;
+    }
+
+    /**
+     * 按long计算时的操作数栈，见stack()
+     * @param size
+     * @return
+     */
+    long[] longStack(int size) {
+        if (size > longStack.length) {
+            longStack = new long[size];
+        }
+        return longStack;
+    }
+
+    /**
+     * 给变量赋值之前检查变量是否已经声明
+     * @param slot
+     * @throws Exception
+     */
+    public void checkDeclared(int slot) throws Exception {
+        if (!this.isDeclared(slot)) {
+            throw new Exception("unknown variable: " + symbols.nameOf(slot));
+        }
+    }
+
+    public boolean isDeclared(int slot) {
+        int word = slot >>> 6;
+        return word < declared.length && (declared[word] & (1L << slot)) != 0;
+    }
+
+    public boolean isAssigned(int slot) {
+        int word = slot >>> 6;
+        return word < assigned.length && (assigned[word] & (1L << slot)) != 0;
+    }
+
+    /**
+     * 按变量名查看变量的值，没有赋值时返回null。供调试和打印使用。
+     * @param varName
+     * @return 超出int范围时是Long，否则是Integer
+     */
+    public Number get(String varName) {
+        int slot = symbols.lookup(varName);
+        if (slot < 0 || slot >= this.size() || !this.isAssigned(slot)) {
+            return null;
+        }
+        return this.valueOf(slot);
+    }
+
+    private Number valueOf(int slot) {
+        if (wideBits != null && (wideBits[slot >>> 6] & (1L << slot)) != 0) {
+            return wide[slot];
+        }
+        return values[slot];
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("{");
+        for (int slot = 0; slot < this.size(); slot++) {
+            if (this.isDeclared(slot)) {
+                if (sb.length() > 1) {
+                    sb.append(", ");
+                }
+                sb.append(symbols.nameOf(slot)).append('=').append(this.isAssigned(slot) ? this.valueOf(slot) : null);
+            }
+        }
+        return sb.append('}').toString();
+    }
+
+}
@@ -0,0 +1,392 @@
+package craft;
+
+import craft.TypedASTNode.AssignmentNode;
+import craft.TypedASTNode.BinaryNode;
+import craft.TypedASTNode.DeclarationNode;
+import craft.TypedASTNode.ExpressionNode;
+import craft.TypedASTNode.IdentifierNode;
+import craft.TypedASTNode.LiteralNode;
+import craft.TypedASTNode.ProgramNode;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * 用几个int数组保存的AST。
+ * 每个节点占数组中的一个位置：kinds是节点的种类，payloads是节点的数据(字面量的值、变量的符号编号)，
+ * starts是以这个节点为根的子树的第一个位置。每个节点只占12个字节，没有对象头、子节点列表和父节点指针。
+ *
+ * 节点按后序排列：先是左子树，然后是右子树，最后是节点本身，一条条语句依次排在后面。
+ * 节点i的右子节点是i-1，左子节点是starts[i-1]-1，一棵子树就是starts[i]到i这一段。
+ * 从前往后扫描一遍就是求值的顺序，SimpleScript.evaluate(FlatAST)用一个值栈直接在数组上求值，
+ * 不需要递归，也不会创建AST节点。
+ *
+ * getRoot()返回的ASTNode是数组上的视图，只在调用getChildren()时才创建子节点的视图，
+ * 用于dumpAST等工具；toTree()把整个程序还原成TypedASTNode。
+ */
+public final class FlatAST {
+
+    public static void main(String[] args) throws Exception {
+        SimpleScript script = new SimpleScript();
+        SimpleParser parser = new SimpleParser(script.getSymbols());
+        String source = "int age = 45 + 2; age = 20; int b; age + 10 * 2 - 100000000000;";
+        FlatAST program = FlatAST.encode(parser.parse(source), script.getSymbols());
+        System.out.println(program);
+        parser.dumpAST(program.getRoot(), "");
+        script.setArithmeticMode(ArithmeticMode.LONG);
+        System.out.println(script.evaluate(program));
+    }
+
+    public static final int LITERAL = 0;        //int范围内的字面量，payload是它的值
+    public static final int WIDE_LITERAL = 1;   //超出int范围的字面量，payload是它在constants中的下标
+    public static final int LOAD = 2;           //变量，payload是变量名的符号编号
+    public static final int ADD = 3;
+    public static final int SUB = 4;
+    public static final int MUL = 5;
+    public static final int DIV = 6;
+    public static final int DECLARE = 7;        //没有初始化的变量声明，payload是变量名的符号编号
+    public static final int DECLARE_INIT = 8;   //带初始化的变量声明，子节点是初始化表达式
+    public static final int ASSIGN = 9;         //赋值语句，子节点是赋的值
+
+    //ADD到DIV对应的运算符
+    private static final BinaryOperator[] OPERATORS = {
+            null, null, null, BinaryOperator.Plus, BinaryOperator.Minus, BinaryOperator.Star, BinaryOperator.Slash
+    };
+
+    private final String name;
+    private final SymbolTable symbols;
+
+    final int[] kinds;
+    final int[] payloads;
+    final int[] starts;
+    //超出int范围的字面量
+    final long[] constants;
+    //每条语句的根节点的位置
+    final int[] statements;
+    //求值时值栈的最大深度
+    final int maxDepth;
+
+    FlatAST(String name, SymbolTable symbols, int[] kinds, int[] payloads, int[] starts,
+            long[] constants, int[] statements, int maxDepth) {
+        this.name = name;
+        this.symbols = symbols;
+        this.kinds = kinds;
+        this.payloads = payloads;
+        this.starts = starts;
+        this.constants = constants;
+        this.statements = statements;
+        this.maxDepth = maxDepth;
+    }
+
+    /**
+     * 把SimpleParser生成的Program编码成数组，用一个显式的栈遍历，很深的表达式也不会栈溢出。
+     * 编码以后原来的AST就可以丢弃了。
+     * @param program
+     * @param symbols 变量名登记在这个符号表中，一般就是解析时用的符号表
+     * @return
+     * @throws Exception 不是SimpleParser生成的节点
+     */
+    public static FlatAST encode(ASTNode program, SymbolTable symbols) throws Exception {
+        Encoder encoder = new Encoder(symbols);
+        List<ASTNode> children = program.getChildren();
+        int[] statements = new int[children.size()];
+        for (int i = 0; i < statements.length; i++) {
+            statements[i] = encoder.statement(children.get(i));
+        }
+        return encoder.finish(program.getText(), statements);
+    }
+
+    /**
+     * 按后序生成节点
+     */
+    private static final class Encoder {
+        private final SymbolTable symbols;
+        private int[] kinds = new int[64];
+        private int[] payloads = new int[64];
+        private int[] starts = new int[64];
+        private int count = 0;
+        private long[] constants = new long[4];
+        private int constantCount = 0;
+        private int maxDepth = 0;
+
+        Encoder(SymbolTable symbols) {
+            this.symbols = symbols;
+        }
+
+        int statement(ASTNode node) throws Exception {
+            int start = count;
+            if (node instanceof DeclarationNode) {
+                DeclarationNode declaration = (DeclarationNode) node;
+                int symbol = this.symbolOf(declaration.getSymbol(), declaration.getVarName());
+                if (declaration.getInit() == null) {
+                    return this.emit(DECLARE, symbol, start);
+                }
+                this.expression(declaration.getInit());
+                return this.emit(DECLARE_INIT, symbol, start);
+            } else if (node instanceof AssignmentNode) {
+                AssignmentNode assignment = (AssignmentNode) node;
+                int symbol = this.symbolOf(assignment.getSymbol(), assignment.getVarName());
+                this.expression(assignment.getValue());
+                return this.emit(ASSIGN, symbol, start);
+            } else if (node instanceof ExpressionNode) {
+                return this.expression((ExpressionNode) node);
+            }
+            throw new Exception("can not encode node: " + node.getType());
+        }
+
+        /**
+         * 按后序生成表达式的节点，返回根节点的位置
+         */
+        private int expression(ExpressionNode root) {
+            //还要处理的节点，expanded表示子节点已经生成，再次出栈时生成运算节点
+            Deque<ExpressionNode> nodes = new ArrayDeque<>();
+            Deque<Boolean> expanded = new ArrayDeque<>();
+            //已经生成的子树的开始位置
+            Deque<Integer> subtrees = new ArrayDeque<>();
+            nodes.push(root);
+            expanded.push(false);
+            while (!nodes.isEmpty()) {
+                ExpressionNode node = nodes.pop();
+                boolean children = expanded.pop();
+                if (node instanceof LiteralNode) {
+                    long value = ((LiteralNode) node).getLongValue();
+                    if ((int) value == value) {
+                        subtrees.push(count);
+                        this.emit(LITERAL, (int) value, count);
+                    } else {
+                        if (constantCount == constants.length) {
+                            constants = Arrays.copyOf(constants, constantCount * 2);
+                        }
+                        constants[constantCount++] = value;
+                        subtrees.push(count);
+                        this.emit(WIDE_LITERAL, constantCount - 1, count);
+                    }
+                } else if (node instanceof IdentifierNode) {
+                    IdentifierNode identifier = (IdentifierNode) node;
+                    subtrees.push(count);
+                    this.emit(LOAD, this.symbolOf(identifier.getSymbol(), identifier.getVarName()), count);
+                } else if (!children) {
+                    BinaryNode binary = (BinaryNode) node;
+                    nodes.push(binary);
+                    expanded.push(true);
+                    nodes.push(binary.getRight());
+                    expanded.push(false);
+                    nodes.push(binary.getLeft());
+                    expanded.push(false);
+                } else {
+                    subtrees.pop();
+                    int start = subtrees.pop();
+                    subtrees.push(start);
+                    this.emit(ADD + ((BinaryNode) node).getOperator().ordinal(), 0, start);
+                }
+                maxDepth = Math.max(maxDepth, subtrees.size());
+            }
+            return count - 1;
+        }
+
+        private int emit(int kind, int payload, int start) {
+            if (count == kinds.length) {
+                kinds = Arrays.copyOf(kinds, count * 2);
+                payloads = Arrays.copyOf(payloads, count * 2);
+                starts = Arrays.copyOf(starts, count * 2);
+            }
+            kinds[count] = kind;
+            payloads[count] = payload;
+            starts[count] = start;
+            return count++;
+        }
+
+        //节点上的符号编号属于同一个符号表时直接使用，否则按名字登记
+        private int symbolOf(int symbol, String varName) {
+            if (symbol >= 0 && symbol < symbols.size() && symbols.nameOf(symbol).equals(varName)) {
+                return symbol;
+            }
+            return symbols.intern(varName);
+        }
+
+        FlatAST finish(String name, int[] statements) {
+            return new FlatAST(name, symbols, Arrays.copyOf(kinds, count), Arrays.copyOf(payloads, count),
+                    Arrays.copyOf(starts, count), Arrays.copyOf(constants, constantCount), statements, maxDepth);
+        }
+    }
+
+    public SymbolTable getSymbols() {
+        return symbols;
+    }
+
+    String getName() {
+        return name;
+    }
+
+    /**
+     * 节点的数量，不包括Program节点
+     * @return
+     */
+    public int size() {
+        return kinds.length;
+    }
+
+    public int getStatementCount() {
+        return statements.length;
+    }
+
+    /**
+     * 运算节点对应的运算符
+     */
+    static BinaryOperator operatorOf(int kind) {
+        return OPERATORS[kind];
+    }
+
+    /**
+     * 节点的种类对应的AST节点类型
+     */
+    static ASTNodeType typeOf(int kind) {
+        switch (kind) {
+            case LITERAL:
+            case WIDE_LITERAL:
+                return ASTNodeType.IntLiteral;
+            case LOAD:
+                return ASTNodeType.Identifier;
+            case DECLARE:
+            case DECLARE_INIT:
+                return ASTNodeType.IntDeclaration;
+            case ASSIGN:
+                return ASTNodeType.AssignmentStmt;
+            default:
+                return OPERATORS[kind].getNodeType();
+        }
+    }
+
+    /**
+     * Program节点的视图
+     * @return
+     */
+    public ASTNode getRoot() {
+        return new View(this, -1, null);
+    }
+
+    /**
+     * 还原成SimpleParser生成的那种AST，从前往后扫描一遍，用一个栈保存还没有用到的子树
+     * @return
+     */
+    public ASTNode toTree() {
+        ProgramNode program = new ProgramNode(name);
+        Deque<ExpressionNode> operands = new ArrayDeque<>();
+        int next = 0;
+        for (int i = 0; i < kinds.length; i++) {
+            TypedASTNode statement = null;
+            int payload = payloads[i];
+            switch (kinds[i]) {
+                case LITERAL:
+                    operands.push(new LiteralNode(payload));
+                    break;
+                case WIDE_LITERAL:
+                    operands.push(new LiteralNode(constants[payload]));
+                    break;
+                case LOAD:
+                    operands.push(new IdentifierNode(symbols.nameOf(payload), payload));
+                    break;
+                case DECLARE:
+                    statement = new DeclarationNode(symbols.nameOf(payload), payload, null);
+                    break;
+                case DECLARE_INIT:
+                    statement = new DeclarationNode(symbols.nameOf(payload), payload, operands.pop());
+                    break;
+                case ASSIGN:
+                    statement = new AssignmentNode(symbols.nameOf(payload), payload, operands.pop());
+                    break;
+                default:
+                    ExpressionNode right = operands.pop();
+                    ExpressionNode left = operands.pop();
+                    operands.push(new BinaryNode(OPERATORS[kinds[i]], left, right));
+                    break;
+            }
+            if (next < statements.length && statements[next] == i) {
+                program.addStatement(statement != null ? statement : operands.pop());
+                next++;
+            }
+        }
+        return program;
+    }
+
+    /**
+     * 数组中一个节点的视图，index为-1时是Program节点
+     */
+    private static final class View implements ASTNode {
+        private final FlatAST tree;
+        private final int index;
+        private final ASTNode parent;
+
+        View(FlatAST tree, int index, ASTNode parent) {
+            this.tree = tree;
+            this.index = index;
+            this.parent = parent;
+        }
+
+        @Override
+        public ASTNode getParent() {
+            return parent;
+        }
+
+        @Override
+        public List<ASTNode> getChildren() {
+            if (index < 0) {
+                List<ASTNode> children = new ArrayList<>(tree.statements.length);
+                for (int statement : tree.statements) {
+                    children.add(new View(tree, statement, this));
+                }
+                return Collections.unmodifiableList(children);
+            }
+            switch (tree.kinds[index]) {
+                case LITERAL:
+                case WIDE_LITERAL:
+                case LOAD:
+                case DECLARE:
+                    return Collections.emptyList();
+                case DECLARE_INIT:
+                case ASSIGN:
+                    return Collections.singletonList(new View(tree, index - 1, this));
+                default:
+                    int right = index - 1;
+                    int left = tree.starts[right] - 1;
+                    return Collections.unmodifiableList(Arrays.asList(new View(tree, left, this), new View(tree, right, this)));
+            }
+        }
+
+        @Override
+        public ASTNodeType getType() {
+            return index < 0 ? ASTNodeType.Program : typeOf(tree.kinds[index]);
+        }
+
+        @Override
+        public String getText() {
+            if (index < 0) {
+                return tree.name;
+            }
+            int payload = tree.payloads[index];
+            switch (tree.kinds[index]) {
+                case LITERAL:
+                    return String.valueOf(payload);
+                case WIDE_LITERAL:
+                    return String.valueOf(tree.constants[payload]);
+                case LOAD:
+                case DECLARE:
+                case DECLARE_INIT:
+                case ASSIGN:
+                    return tree.symbols.nameOf(payload);
+                default:
+                    return OPERATORS[tree.kinds[index]].getText();
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "statements: " + statements.length + ", nodes: " + kinds.length + ", bytes: " + (kinds.length * 12L + constants.length * 8L);
+    }
+
+}
@@ -0,0 +1,144 @@
+package craft;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 逐行输入的语法解析，供REPL使用。
+ * 每送入一行，只对这一行做词法分析，生成的Token追加到一个Token缓冲区中；
+ * 一旦出现了结束语句的分号，就把缓冲区中到这个分号为止的Token解析成一个Program。
+ * 已经解析过的Token从缓冲区中移除，之前输入的内容不会被重新扫描。
+ */
+public class IncrementalParser {
+
+    public static void main(String[] args) throws Exception {
+        IncrementalParser input = new IncrementalParser(new SimpleParser());
+        String[] lines = {"int age =", "45 + 2; age", "= 20; age +", "10 * 2;"};
+        for (String line : lines) {
+            System.out.println("输入：" + line);
+            input.feed(line);
+            ASTNode tree = null;
+            while ((tree = input.next()) != null) {
+                input.parser.dumpAST(tree, "\t");
+            }
+        }
+    }
+
+    private final SimpleParser parser;
+    private final SimpleLexer lexer;
+
+    //已经生成的Token，从start开始的部分还没有解析
+    private final List<Token> tokens = new ArrayList<>();
+    private int start = 0;
+    //tokens中已经找过分号的部分
+    private int scanned = 0;
+
+    public IncrementalParser(SimpleParser parser) {
+        this.parser = parser;
+        this.lexer = new SimpleLexer(parser.getSymbols());
+        lexer.begin(tokens);
+    }
+
+    /**
+     * 送入一行输入。一行的结尾相当于一个换行符。
+     * @param line
+     */
+    public void feed(String line) {
+        if (start > 0) {
+            tokens.subList(0, start).clear();   //移除已经解析过的Token
+            scanned -= start;
+            start = 0;
+        }
+        for (int i = 0; i < line.length(); i++) {
+            lexer.feed(line.charAt(i));
+        }
+        lexer.feed('\n');
+    }
+
+    /**
+     * 解析下一条已经输入完整的语句，返回只包含这条语句的Program。
+     * 还没有以分号结束的语句时返回null。
+     * @return
+     * @throws Exception 语法错误，出错的语句已经从缓冲区中移除
+     */
+    public ASTNode next() throws Exception {
+        while (scanned < tokens.size()) {
+            if (tokens.get(scanned++).getType() == TokenType.SemiColon) {
+                int from = start;
+                start = scanned;
+                return parser.parse(new ListTokenReader(tokens, from, scanned));
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 是否还有没有结束的语句
+     * @return
+     */
+    public boolean isPending() {
+        return start < tokens.size();
+    }
+
+    /**
+     * 丢弃还没有解析的输入
+     */
+    public void reset() {
+        tokens.clear();
+        start = 0;
+        scanned = 0;
+        lexer.begin(tokens);
+    }
+
+    /**
+     * 一个Token流，读取Token列表中[start, end)之间的Token，位置从0开始计算
+     */
+    private static final class ListTokenReader implements TokenReader {
+        private final List<Token> tokens;
+        private final int start;
+        private final int count;
+        private int pos = 0;
+
+        ListTokenReader(List<Token> tokens, int start, int end) {
+            this.tokens = tokens;
+            this.start = start;
+            this.count = end - start;
+        }
+
+        @Override
+        public Token read() {
+            if (pos < count) {
+                return tokens.get(start + pos++);
+            }
+            return null;
+        }
+
+        @Override
+        public Token peek() {
+            if (pos < count) {
+                return tokens.get(start + pos);
+            }
+            return null;
+        }
+
+        @Override
+        public void unread() {
+            if (pos > 0) {
+                pos--;
+            }
+        }
+
+        @Override
+        public int getPosition() {
+            return pos;
+        }
+
+        @Override
+        public void setPosition(int position) {
+            if (position >= 0 && position < count) {
+                pos = position;
+            }
+        }
+    }
+
+}
@@ -0,0 +1,472 @@
+package craft;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 词法分析器的生成器。
+ * 根据声明式的Token规格(每个TokenType对应一个正则表达式)生成一个表驱动的有限状态机：
+ * 正则表达式 -> NFA(Thompson构造) -> DFA(子集构造) -> 最小化DFA -> 字符类 × 状态的转移表。
+ * 生成的TableLexer识别每个字符只需要查一次表，增加关键字或运算符只是在规格里加一行。
+ *
+ * 正则表达式支持：普通字符、\转义、[a-z0-9]字符类、(...)、|、*、+、?。只处理ASCII字符。
+ * 多个规则都能匹配时，取最长的匹配；一样长时，取在规格中排在前面的规则，所以关键字要写在标识符前面。
+ */
+public class LexerGenerator {
+
+    public static void main(String[] args) {
+        TableLexer lexer = new LexerGenerator().generate(defaultRules());
+        lexer.dumpTable();
+
+        String script = "int age = 45; if (age >= 18) age = age + 1; else age = 0; intage <= 3 == x;";
+        System.out.println("parse:" + script);
+        TokenReader tokens = lexer.tokenize(script);
+        System.out.println("text\t\ttype");
+        Token token = null;
+        while ((token = tokens.read()) != null) {
+            System.out.println(token.getText() + "\t\t" + token.getType());
+        }
+    }
+
+    //字符表的大小，只处理ASCII字符
+    static final int ALPHABET = 128;
+
+    /**
+     * 一条Token规则。type为null时表示匹配的文本被跳过，比如空白字符。
+     */
+    public static final class Rule {
+        private final TokenType type;
+        private final String pattern;
+
+        public Rule(TokenType type, String pattern) {
+            this.type = type;
+            this.pattern = pattern;
+        }
+
+        public TokenType getType() {
+            return type;
+        }
+
+        public String getPattern() {
+            return pattern;
+        }
+    }
+
+    /**
+     * 默认的Token规格，覆盖TokenType中的所有类型
+     * @return
+     */
+    public static List<Rule> defaultRules() {
+        List<Rule> rules = new ArrayList<>();
+        rules.add(new Rule(TokenType.Int, "int"));
+        rules.add(new Rule(TokenType.If, "if"));
+        rules.add(new Rule(TokenType.Else, "else"));
+        rules.add(new Rule(TokenType.GE, ">="));
+        rules.add(new Rule(TokenType.GT, ">"));
+        rules.add(new Rule(TokenType.EQ, "=="));
+        rules.add(new Rule(TokenType.LE, "<="));
+        rules.add(new Rule(TokenType.LT, "<"));
+        rules.add(new Rule(TokenType.Plus, "\\+"));
+        rules.add(new Rule(TokenType.Minus, "-"));
+        rules.add(new Rule(TokenType.Star, "\\*"));
+        rules.add(new Rule(TokenType.Slash, "/"));
+        rules.add(new Rule(TokenType.SemiColon, ";"));
+        rules.add(new Rule(TokenType.LeftParen, "\\("));
+        rules.add(new Rule(TokenType.RightParen, "\\)"));
+        rules.add(new Rule(TokenType.Assignment, "="));
+        rules.add(new Rule(TokenType.Identifier, "[a-zA-Z][a-zA-Z0-9]*"));
+        rules.add(new Rule(TokenType.IntLiteral, "[0-9]+"));
+        rules.add(new Rule(null, "[ \\t\\r\\n]+"));
+        return rules;
+    }
+
+    /**
+     * 根据规格生成词法分析器
+     * @param rules
+     * @return
+     */
+    public TableLexer generate(List<Rule> rules) {
+        Nfa nfa = new Nfa();
+        int start = nfa.newState();
+        for (int i = 0; i < rules.size(); i++) {
+            Fragment fragment = new RegexParser(rules.get(i).getPattern(), nfa).parse();
+            nfa.epsilon(start, fragment.start);
+            nfa.accept[fragment.end] = i;
+        }
+
+        Dfa dfa = this.subsetConstruction(nfa, start);
+        dfa = this.minimize(dfa);
+
+        TokenType[] types = new TokenType[rules.size()];
+        for (int i = 0; i < rules.size(); i++) {
+            types[i] = rules.get(i).getType();
+        }
+        return this.compress(dfa, types);
+    }
+
+    /**
+     * 子集构造：从NFA生成DFA，DFA状态0是开始状态
+     */
+    private Dfa subsetConstruction(Nfa nfa, int start) {
+        Dfa dfa = new Dfa();
+        Map<BitSet, Integer> ids = new HashMap<>();
+        List<BitSet> sets = new ArrayList<>();
+
+        BitSet initial = new BitSet();
+        initial.set(start);
+        nfa.closure(initial);
+        ids.put(initial, 0);
+        sets.add(initial);
+        dfa.addState(nfa.acceptOf(initial));
+
+        for (int s = 0; s < sets.size(); s++) {
+            BitSet set = sets.get(s);
+            for (int ch = 0; ch < ALPHABET; ch++) {
+                BitSet target = nfa.move(set, ch);
+                if (target.isEmpty()) {
+                    continue;
+                }
+                nfa.closure(target);
+                Integer id = ids.get(target);
+                if (id == null) {
+                    id = sets.size();
+                    ids.put(target, id);
+                    sets.add(target);
+                    dfa.addState(nfa.acceptOf(target));
+                }
+                dfa.next.get(s)[ch] = id;
+            }
+        }
+        return dfa;
+    }
+
+    /**
+     * 最小化DFA：先按接受的规则划分状态，再不断按转移细分，直到不再变化
+     */
+    private Dfa minimize(Dfa dfa) {
+        int n = dfa.accept.size();
+        int[] block = new int[n];
+        for (int s = 0; s < n; s++) {
+            block[s] = dfa.accept.get(s) + 1;   //不接受的状态都在块0中
+        }
+        int blocks = -1;
+        while (true) {
+            Map<String, Integer> signatures = new HashMap<>();
+            int[] refined = new int[n];
+            for (int s = 0; s < n; s++) {
+                StringBuilder signature = new StringBuilder().append(block[s]);
+                int[] next = dfa.next.get(s);
+                for (int ch = 0; ch < ALPHABET; ch++) {
+                    signature.append(',').append(next[ch] < 0 ? -1 : block[next[ch]]);
+                }
+                Integer id = signatures.get(signature.toString());
+                if (id == null) {
+                    id = signatures.size();
+                    signatures.put(signature.toString(), id);
+                }
+                refined[s] = id;
+            }
+            block = refined;
+            if (signatures.size() == blocks) {
+                break;
+            }
+            blocks = signatures.size();
+        }
+
+        //开始状态所在的块要编号为0
+        int[] renumber = new int[blocks];
+        Arrays.fill(renumber, -1);
+        renumber[block[0]] = 0;
+        int count = 1;
+        for (int s = 0; s < n; s++) {
+            if (renumber[block[s]] < 0) {
+                renumber[block[s]] = count++;
+            }
+        }
+
+        Dfa minimal = new Dfa();
+        for (int b = 0; b < blocks; b++) {
+            minimal.addState(-1);
+        }
+        for (int s = 0; s < n; s++) {
+            int b = renumber[block[s]];
+            minimal.accept.set(b, dfa.accept.get(s));
+            int[] next = dfa.next.get(s);
+            for (int ch = 0; ch < ALPHABET; ch++) {
+                minimal.next.get(b)[ch] = next[ch] < 0 ? -1 : renumber[block[next[ch]]];
+            }
+        }
+        return minimal;
+    }
+
+    /**
+     * 把转移行为完全相同的字符合并成一个字符类，生成紧凑的转移表
+     */
+    private TableLexer compress(Dfa dfa, TokenType[] types) {
+        int states = dfa.accept.size();
+        //最后一个字符类留给不认识的字符，它在任何状态下都没有转移
+        int[] charClass = new int[ALPHABET];
+        List<Integer> representatives = new ArrayList<>();
+        Map<String, Integer> columns = new HashMap<>();
+        for (int ch = 0; ch < ALPHABET; ch++) {
+            StringBuilder column = new StringBuilder();
+            for (int s = 0; s < states; s++) {
+                column.append(dfa.next.get(s)[ch]).append(',');
+            }
+            Integer id = columns.get(column.toString());
+            if (id == null) {
+                id = representatives.size();
+                columns.put(column.toString(), id);
+                representatives.add(ch);
+            }
+            charClass[ch] = id;
+        }
+        int classes = representatives.size() + 1;
+
+        int[] table = new int[states * classes];
+        Arrays.fill(table, -1);
+        int[] accept = new int[states];
+        for (int s = 0; s < states; s++) {
+            for (int c = 0; c < representatives.size(); c++) {
+                table[s * classes + c] = dfa.next.get(s)[representatives.get(c)];
+            }
+            accept[s] = dfa.accept.get(s);
+        }
+        return new TableLexer(charClass, classes, table, accept, types);
+    }
+
+    /**
+     * NFA的一个片段，只有一个开始状态和一个结束状态
+     */
+    private static final class Fragment {
+        final int start;
+        final int end;
+
+        Fragment(int start, int end) {
+            this.start = start;
+            this.end = end;
+        }
+    }
+
+    /**
+     * NFA，每个状态可以有多条ε边和多条字符集边
+     */
+    private static final class Nfa {
+        List<List<Integer>> epsilons = new ArrayList<>();
+        List<List<BitSet>> edgeChars = new ArrayList<>();
+        List<List<Integer>> edgeTargets = new ArrayList<>();
+        int[] accept = new int[16];
+
+        int newState() {
+            epsilons.add(new ArrayList<>());
+            edgeChars.add(new ArrayList<>());
+            edgeTargets.add(new ArrayList<>());
+            int state = epsilons.size() - 1;
+            if (state == accept.length) {
+                accept = Arrays.copyOf(accept, state * 2);
+            }
+            accept[state] = -1;
+            return state;
+        }
+
+        void epsilon(int from, int to) {
+            epsilons.get(from).add(to);
+        }
+
+        void edge(int from, BitSet chars, int to) {
+            edgeChars.get(from).add(chars);
+            edgeTargets.get(from).add(to);
+        }
+
+        void closure(BitSet set) {
+            List<Integer> work = new ArrayList<>();
+            for (int s = set.nextSetBit(0); s >= 0; s = set.nextSetBit(s + 1)) {
+                work.add(s);
+            }
+            while (!work.isEmpty()) {
+                int s = work.remove(work.size() - 1);
+                for (int t : epsilons.get(s)) {
+                    if (!set.get(t)) {
+                        set.set(t);
+                        work.add(t);
+                    }
+                }
+            }
+        }
+
+        BitSet move(BitSet set, int ch) {
+            BitSet target = new BitSet();
+            for (int s = set.nextSetBit(0); s >= 0; s = set.nextSetBit(s + 1)) {
+                List<BitSet> chars = edgeChars.get(s);
+                for (int i = 0; i < chars.size(); i++) {
+                    if (chars.get(i).get(ch)) {
+                        target.set(edgeTargets.get(s).get(i));
+                    }
+                }
+            }
+            return target;
+        }
+
+        /**
+         * 状态集合接受的规则，有多个时取排在最前面的
+         */
+        int acceptOf(BitSet set) {
+            int rule = -1;
+            for (int s = set.nextSetBit(0); s >= 0; s = set.nextSetBit(s + 1)) {
+                if (accept[s] >= 0 && (rule < 0 || accept[s] < rule)) {
+                    rule = accept[s];
+                }
+            }
+            return rule;
+        }
+    }
+
+    /**
+     * 生成过程中的DFA，每个状态一行，按字符转移
+     */
+    private static final class Dfa {
+        List<int[]> next = new ArrayList<>();
+        List<Integer> accept = new ArrayList<>();
+
+        void addState(int rule) {
+            int[] row = new int[ALPHABET];
+            Arrays.fill(row, -1);
+            next.add(row);
+            accept.add(rule);
+        }
+    }
+
+    /**
+     * 把正则表达式解析成NFA片段
+     */
+    private static final class RegexParser {
+        private final String pattern;
+        private final Nfa nfa;
+        private int pos = 0;
+
+        RegexParser(String pattern, Nfa nfa) {
+            this.pattern = pattern;
+            this.nfa = nfa;
+        }
+
+        Fragment parse() {
+            Fragment fragment = this.alternation();
+            if (pos < pattern.length()) {
+                throw new IllegalArgumentException("unexpected '" + pattern.charAt(pos) + "' in pattern " + pattern);
+            }
+            return fragment;
+        }
+
+        // alternation -> concatenation ('|' concatenation)*
+        private Fragment alternation() {
+            Fragment left = this.concatenation();
+            while (pos < pattern.length() && pattern.charAt(pos) == '|') {
+                pos++;
+                Fragment right = this.concatenation();
+                int start = nfa.newState();
+                int end = nfa.newState();
+                nfa.epsilon(start, left.start);
+                nfa.epsilon(start, right.start);
+                nfa.epsilon(left.end, end);
+                nfa.epsilon(right.end, end);
+                left = new Fragment(start, end);
+            }
+            return left;
+        }
+
+        // concatenation -> repetition*
+        private Fragment concatenation() {
+            int start = nfa.newState();
+            Fragment result = new Fragment(start, start);
+            while (pos < pattern.length() && pattern.charAt(pos) != '|' && pattern.charAt(pos) != ')') {
+                Fragment next = this.repetition();
+                nfa.epsilon(result.end, next.start);
+                result = new Fragment(result.start, next.end);
+            }
+            return result;
+        }
+
+        // repetition -> atom ('*' | '+' | '?')*
+        private Fragment repetition() {
+            Fragment atom = this.atom();
+            while (pos < pattern.length()) {
+                char op = pattern.charAt(pos);
+                if (op != '*' && op != '+' && op != '?') {
+                    break;
+                }
+                pos++;
+                int start = nfa.newState();
+                int end = nfa.newState();
+                nfa.epsilon(start, atom.start);
+                nfa.epsilon(atom.end, end);
+                if (op != '+') {
+                    nfa.epsilon(start, end);        //可以一次也不出现
+                }
+                if (op != '?') {
+                    nfa.epsilon(atom.end, atom.start);  //可以重复
+                }
+                atom = new Fragment(start, end);
+            }
+            return atom;
+        }
+
+        // atom -> char | '\' char | '[' class ']' | '(' alternation ')'
+        private Fragment atom() {
+            char ch = pattern.charAt(pos++);
+            BitSet chars = new BitSet(ALPHABET);
+            if (ch == '(') {
+                Fragment inner = this.alternation();
+                this.expect(')');
+                return inner;
+            } else if (ch == '[') {
+                while (pos < pattern.length() && pattern.charAt(pos) != ']') {
+                    char from = this.literal();
+                    char to = from;
+                    if (pos + 1 < pattern.length() && pattern.charAt(pos) == '-' && pattern.charAt(pos + 1) != ']') {
+                        pos++;
+                        to = this.literal();
+                    }
+                    chars.set(from, to + 1);
+                }
+                this.expect(']');
+            } else {
+                pos--;
+                chars.set(this.literal());
+            }
+            int start = nfa.newState();
+            int end = nfa.newState();
+            nfa.edge(start, chars, end);
+            return new Fragment(start, end);
+        }
+
+        private char literal() {
+            char ch = pattern.charAt(pos++);
+            if (ch != '\\') {
+                return ch;
+            }
+            ch = pattern.charAt(pos++);
+            switch (ch) {
+                case 't':
+                    return '\t';
+                case 'r':
+                    return '\r';
+                case 'n':
+                    return '\n';
+                default:
+                    return ch;
+            }
+        }
+
+        private void expect(char ch) {
+            if (pos >= pattern.length() || pattern.charAt(pos) != ch) {
+                throw new IllegalArgumentException("expecting '" + ch + "' in pattern " + pattern);
+            }
+            pos++;
+        }
+    }
+
+}
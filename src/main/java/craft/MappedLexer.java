@@ -0,0 +1,144 @@
+package craft;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * 基于内存映射文件的词法分析器。
+ * 用FileChannel.map把脚本文件映射到内存，不需要先把文件读成String、再复制成char数组。
+ *
+ * 词法分析本身交给SimpleLexer：映射的字节包装成一个CharSequence，每个字节就是一个字符，
+ * 送进SimpleLexer.tokenize()，所以两者用的是同一个状态机，生成的Token流完全一样，
+ * 标识符也登记在同一个符号表中，Token可以混用。
+ * 只有纯ASCII的文件可以这样按字节处理；含有非ASCII字符时先按UTF-8解码，再交给SimpleLexer。
+ * 解码会把整个文件复制到一个CharBuffer里，每个字符两个字节，
+ * 所以含有非ASCII字符的文件仍然要占用映射之外的、大约两倍于文件大小的内存。
+ */
+public class MappedLexer {
+
+    public static void main(String[] args) throws Exception {
+        if (args.length == 0) {
+            System.out.println("usage: java craft.MappedLexer <script file>");
+            return;
+        }
+        MappedLexer lexer = new MappedLexer();
+        TokenReader tokens = lexer.tokenize(Paths.get(args[0]));
+        System.out.println("text\t\ttype");
+        Token token = null;
+        while ((token = tokens.read()) != null) {
+            System.out.println(token.getText() + "\t\t" + token.getType());
+        }
+    }
+
+    private final SimpleLexer lexer;
+
+    public MappedLexer() {
+        this(new SymbolTable());
+    }
+
+    /**
+     * 标识符登记在指定的符号表中，和SimpleParser共用时可以直接使用Token上的符号编号
+     * @param symbols
+     */
+    public MappedLexer(SymbolTable symbols) {
+        this.lexer = new SimpleLexer(symbols);
+    }
+
+    public SymbolTable getSymbols() {
+        return lexer.getSymbols();
+    }
+
+    /**
+     * 映射并扫描一个脚本文件
+     * @param file
+     * @return
+     * @throws IOException
+     */
+    public TokenReader tokenize(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("script file is too large to map: " + file);
+            }
+            MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            return this.tokenize(mapped);
+        }
+    }
+
+    /**
+     * 扫描字节缓冲区中从position到limit的UTF-8文本，不改变缓冲区的position，
+     * 生成的Token引用这个缓冲区
+     * @param bytes
+     * @return
+     */
+    public TokenReader tokenize(ByteBuffer bytes) {
+        if (isAscii(bytes)) {
+            return lexer.tokenize(new AsciiSequence(bytes, bytes.position(), bytes.remaining()));
+        }
+        return lexer.tokenize(StandardCharsets.UTF_8.decode(bytes.duplicate()));
+    }
+
+    /**
+     * 缓冲区中从position到limit是不是只有ASCII字符，一次检查8个字节的最高位
+     */
+    private static boolean isAscii(ByteBuffer bytes) {
+        ByteBuffer buffer = bytes.duplicate().order(ByteOrder.nativeOrder());
+        int limit = buffer.limit();
+        int i = buffer.position();
+        for (; i + 8 <= limit; i += 8) {
+            if ((buffer.getLong(i) & 0x8080808080808080L) != 0) {
+                return false;
+            }
+        }
+        for (; i < limit; i++) {
+            if (buffer.get(i) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 把只含ASCII字符的字节缓冲区看作字符序列，不复制数据
+     */
+    private static final class AsciiSequence implements CharSequence {
+        private final ByteBuffer bytes;
+        private final int offset;
+        private final int length;
+
+        AsciiSequence(ByteBuffer bytes, int offset, int length) {
+            this.bytes = bytes;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        @Override
+        public int length() {
+            return length;
+        }
+
+        @Override
+        public char charAt(int index) {
+            return (char) bytes.get(offset + index);
+        }
+
+        @Override
+        public CharSequence subSequence(int start, int end) {
+            return new AsciiSequence(bytes, offset + start, end - start);
+        }
+
+        @Override
+        public String toString() {
+            byte[] text = new byte[length];
+            bytes.duplicate().position(offset).get(text);
+            return new String(text, StandardCharsets.US_ASCII);
+        }
+    }
+
+}
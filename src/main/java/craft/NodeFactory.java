@@ -0,0 +1,258 @@
+package craft;
+
+import craft.TypedASTNode.BinaryNode;
+import craft.TypedASTNode.ExpressionNode;
+import craft.TypedASTNode.IdentifierNode;
+import craft.TypedASTNode.LiteralNode;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * 创建表达式节点的工厂。
+ * 默认的工厂对节点做哈希共享(hash-consing)：结构相同的表达式只创建一个节点，再次需要时返回已有的节点。
+ * 脚本中反复出现的子表达式，比如每条语句里都有的 (a*b+c)，在AST中就只有一份，
+ * 比较两棵子树是否相同也只需要比较引用。
+ *
+ * 二元表达式按运算符和两个子节点的引用查找，所以子节点也要由同一个工厂创建。
+ * 节点被共享以后，getParent()只返回其中一个父节点。
+ * 工厂会一直引用它创建的节点，一般每解析一个脚本用一个新的工厂，或者用完后调用clear()。
+ * 不是线程安全的。
+ */
+public class NodeFactory {
+
+    public static void main(String[] args) throws Exception {
+        String script = "int a = 2; int b = 3; int c = a*b+1; c = (a*b+1)*(a*b+1); (a*b+1) - c;";
+        NodeFactory nodes = new NodeFactory();
+        SimpleParser parser = new SimpleParser(new SymbolTable(), nodes);
+        ASTNode tree = parser.parse(script);
+        parser.dumpAST(tree, "");
+        System.out.println("nodes counted as a tree: " + ScriptEvents.countNodes(tree));
+        System.out.println(nodes);
+    }
+
+    /**
+     * 不共享节点的工厂，每次都创建新的节点，可以被多个线程共用
+     */
+    public static final NodeFactory PLAIN = new NodeFactory(false);
+
+    private final boolean sharing;
+
+    //开放定址的哈希表，保存已经创建的节点和它们的哈希值
+    private ExpressionNode[] table;
+    private int[] hashes;
+    private int count = 0;
+
+    //请求创建节点的次数
+    private long requests = 0;
+
+    public NodeFactory() {
+        this(true);
+    }
+
+    private NodeFactory(boolean sharing) {
+        this.sharing = sharing;
+        if (sharing) {
+            table = new ExpressionNode[64];
+            hashes = new int[64];
+        }
+    }
+
+    /**
+     * 整型字面量
+     * @param value
+     * @return
+     */
+    public LiteralNode literal(long value) {
+        if (!sharing) {
+            return new LiteralNode(value);
+        }
+        requests++;
+        int hash = this.mix(Long.hashCode(value) * 0x9E3779B9);
+        int mask = table.length - 1;
+        int i = hash & mask;
+        ExpressionNode node;
+        while ((node = table[i]) != null) {
+            if (hashes[i] == hash && node instanceof LiteralNode && ((LiteralNode) node).getLongValue() == value) {
+                return (LiteralNode) node;
+            }
+            i = (i + 1) & mask;
+        }
+        LiteralNode literal = new LiteralNode(value);
+        this.add(i, hash, literal);
+        return literal;
+    }
+
+    /**
+     * 变量的引用
+     * @param varName
+     * @param symbol 变量名在符号表中的编号，没有登记时为-1
+     * @return
+     */
+    public IdentifierNode identifier(String varName, int symbol) {
+        if (!sharing) {
+            return new IdentifierNode(varName, symbol);
+        }
+        requests++;
+        int hash = this.mix(varName.hashCode() * 31 + symbol);
+        int mask = table.length - 1;
+        int i = hash & mask;
+        ExpressionNode node;
+        while ((node = table[i]) != null) {
+            if (hashes[i] == hash && node instanceof IdentifierNode) {
+                IdentifierNode identifier = (IdentifierNode) node;
+                if (identifier.getSymbol() == symbol && identifier.getVarName().equals(varName)) {
+                    return identifier;
+                }
+            }
+            i = (i + 1) & mask;
+        }
+        IdentifierNode identifier = new IdentifierNode(varName, symbol);
+        this.add(i, hash, identifier);
+        return identifier;
+    }
+
+    /**
+     * 二元表达式。left和right应该也是这个工厂创建的，这样相同的表达式才能找到同一个节点
+     * @param operator
+     * @param left
+     * @param right
+     * @return
+     */
+    public BinaryNode binary(BinaryOperator operator, ExpressionNode left, ExpressionNode right) {
+        if (!sharing) {
+            return new BinaryNode(operator, left, right);
+        }
+        requests++;
+        int hash = this.mix((operator.ordinal() * 31 + System.identityHashCode(left)) * 31 + System.identityHashCode(right));
+        int mask = table.length - 1;
+        int i = hash & mask;
+        ExpressionNode node;
+        while ((node = table[i]) != null) {
+            if (hashes[i] == hash && node instanceof BinaryNode) {
+                BinaryNode binary = (BinaryNode) node;
+                if (binary.getOperator() == operator && binary.getLeft() == left && binary.getRight() == right) {
+                    return binary;
+                }
+            }
+            i = (i + 1) & mask;
+        }
+        BinaryNode binary = new BinaryNode(operator, left, right);
+        this.add(i, hash, binary);
+        return binary;
+    }
+
+    /**
+     * 返回和这个表达式结构相同的、由这个工厂创建的表达式，用于共享别处创建的AST。
+     * root可以是任意的表达式ASTNode，比如FlatAST.getRoot()的视图，按getType()和getChildren()读取，
+     * 所以也可以用来把这样的节点转换成TypedASTNode。
+     * 按后序遍历的顺序用显式的栈处理，很深的表达式也不会栈溢出。
+     * @param root
+     * @return
+     * @throws Exception 不是表达式节点，或者超出long范围的字面量
+     */
+    public ExpressionNode intern(ASTNode root) throws Exception {
+        //还要处理的节点，expanded表示子节点已经压栈，再次出栈时合并
+        Deque<ASTNode> nodes = new ArrayDeque<>();
+        Deque<Boolean> expanded = new ArrayDeque<>();
+        Deque<ExpressionNode> results = new ArrayDeque<>();
+        nodes.push(root);
+        expanded.push(false);
+        while (!nodes.isEmpty()) {
+            ASTNode node = nodes.pop();
+            boolean children = expanded.pop();
+            switch (node.getType()) {
+                case IntLiteral:
+                    results.push(this.literal(LiteralNode.valueOf(node)));
+                    break;
+                case Identifier:
+                    int symbol = node instanceof IdentifierNode ? ((IdentifierNode) node).getSymbol() : -1;
+                    results.push(this.identifier(node.getText(), symbol));
+                    break;
+                case Primary:
+                    nodes.push(node.getChildren().get(0));
+                    expanded.push(false);
+                    break;
+                case Additive:
+                case Multiplicative:
+                    if (!children) {
+                        nodes.push(node);
+                        expanded.push(true);
+                        nodes.push(node.getChildren().get(1));
+                        expanded.push(false);
+                        nodes.push(node.getChildren().get(0));
+                        expanded.push(false);
+                    } else {
+                        ExpressionNode right = results.pop();
+                        ExpressionNode left = results.pop();
+                        results.push(this.binary(BinaryOperator.of(node), left, right));
+                    }
+                    break;
+                default:
+                    throw new Exception("not an expression: " + node.getType());
+            }
+        }
+        return results.pop();
+    }
+
+    private void add(int index, int hash, ExpressionNode node) {
+        table[index] = node;
+        hashes[index] = hash;
+        count++;
+        if (count * 2 > table.length) {
+            this.rehash();
+        }
+    }
+
+    private void rehash() {
+        ExpressionNode[] oldTable = table;
+        int[] oldHashes = hashes;
+        table = new ExpressionNode[oldTable.length * 2];
+        hashes = new int[table.length];
+        int mask = table.length - 1;
+        for (int j = 0; j < oldTable.length; j++) {
+            if (oldTable[j] != null) {
+                int i = oldHashes[j] & mask;
+                while (table[i] != null) {
+                    i = (i + 1) & mask;
+                }
+                table[i] = oldTable[j];
+                hashes[i] = oldHashes[j];
+            }
+        }
+    }
+
+    //把高位混合到低位，表的大小是2的幂，只用到低位
+    private int mix(int h) {
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * 创建过的不同节点的数量
+     * @return
+     */
+    public int size() {
+        return count;
+    }
+
+    /**
+     * 忘掉已经创建的节点，以后不再和它们共享
+     */
+    public void clear() {
+        if (sharing) {
+            table = new ExpressionNode[64];
+            hashes = new int[64];
+            count = 0;
+            requests = 0;
+        }
+    }
+
+    @Override
+    public String toString() {
+        if (!sharing) {
+            return "plain node factory";
+        }
+        return "distinct nodes: " + count + ", requests: " + requests;
+    }
+
+}
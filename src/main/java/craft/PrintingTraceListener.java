@@ -0,0 +1,47 @@
+package craft;
+
+import java.io.PrintStream;
+
+/**
+ * 把求值过程打印出来，每一级缩进一个tab。
+ * 这就是SimpleScript和SimpleCalculator的verbose模式的输出。
+ */
+public class PrintingTraceListener implements TraceListener {
+
+    public static void main(String[] args) throws Exception {
+        SimpleScript script = new SimpleScript();
+        script.setTraceListener(new PrintingTraceListener(System.out));
+        script.evaluate(new SimpleParser(script.getSymbols()).parse("int a = 2 + 3; a * 4;"));
+    }
+
+    private final PrintStream out;
+
+    //缓存各级的缩进，打印时不用每次拼接
+    private String[] indents = {""};
+
+    public PrintingTraceListener(PrintStream out) {
+        this.out = out;
+    }
+
+    @Override
+    public void enter(ASTNode node, int depth) {
+        out.println(this.indent(depth) + "Calculating:" + node.getType());
+    }
+
+    @Override
+    public void exit(ASTNode node, int depth, Number result) {
+        out.println(this.indent(depth) + "Result:" + result);
+    }
+
+    private String indent(int depth) {
+        if (depth >= indents.length) {
+            String[] array = new String[Math.max(depth + 1, indents.length * 2)];
+            for (int i = 0; i < array.length; i++) {
+                array[i] = i < indents.length ? indents[i] : array[i - 1] + "\t";
+            }
+            indents = array;
+        }
+        return indents[depth];
+    }
+
+}
@@ -0,0 +1,177 @@
+package craft;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * 解析结果的缓存，以脚本的源代码为键。
+ * 缓存的是解析并做过常量折叠的AST，同样的脚本再次出现时直接返回，不再经过词法分析和语法分析。
+ * 需要时还会缓存AST用ClosureCompiler编译的结果。返回的AST会被多个调用者共用，不能修改。
+ * 缓存的程序会执行很多次，所以AST中相同的子表达式只保留一份，编译时也做公共子表达式消除。
+ * 没有指定符号表时，每个脚本用自己的符号表解析，淘汰脚本时它用到的变量名也一起释放。
+ *
+ * 按最近最少使用(LRU)的顺序淘汰，同时限制条目数和总权重，权重是源代码的长度。
+ * 可以被多个线程同时使用，解析在锁外进行，不会阻塞命中缓存的调用。
+ */
+public class ProgramCache {
+
+    public static void main(String[] args) throws Exception {
+        ProgramCache cache = new ProgramCache(2, 1024);
+        String[] scripts = {"1 + 2 * 3;", "4 * (5 + 6);", "1 + 2 * 3;", "7 - 8 / 2;", "4 * (5 + 6);", "1 + 2 * 3;"};
+        SimpleScript script = new SimpleScript();
+        for (String source : scripts) {
+            System.out.println(source + "\t" + script.evaluate(cache.get(source)));
+        }
+        System.out.println(cache);
+    }
+
+    private final SymbolTable symbols;
+    private final ConstantFolder folder = new ConstantFolder();
+    private final ClosureCompiler compiler = new ClosureCompiler();
+
+    private final int maxEntries;
+    private final long maxWeight;
+
+    //按访问顺序排列，最早的条目在最前面
+    private final LinkedHashMap<String, Entry> programs = new LinkedHashMap<>(16, 0.75f, true);
+    private long weight = 0;
+
+    private long hits = 0;
+    private long misses = 0;
+    private long evictions = 0;
+
+    /**
+     * 每个脚本的变量名登记在它自己的符号表中
+     * @param maxEntries 最多缓存的条目数
+     * @param maxWeight 缓存的源代码总长度的上限
+     */
+    public ProgramCache(int maxEntries, long maxWeight) {
+        this(null, maxEntries, maxWeight);
+    }
+
+    /**
+     * AST上的变量名登记在指定的符号表中，和执行时的Environment共用时，符号编号可以直接作为槽位。
+     * 这个符号表只增不减，会登记所有缓存过的脚本中的变量名
+     * @param symbols 为null时每个脚本用自己的符号表
+     * @param maxEntries 最多缓存的条目数
+     * @param maxWeight 缓存的源代码总长度的上限
+     */
+    public ProgramCache(SymbolTable symbols, int maxEntries, long maxWeight) {
+        this.symbols = symbols;
+        this.maxEntries = maxEntries;
+        compiler.setEliminateCommonSubexpressions(true);
+        this.maxWeight = maxWeight;
+    }
+
+    /**
+     * 返回源代码对应的AST，没有缓存时解析并放进缓存
+     * @param source
+     * @return
+     * @throws Exception 语法错误，出错的脚本不会被缓存
+     */
+    public ASTNode get(String source) throws Exception {
+        return this.entry(source).tree;
+    }
+
+    /**
+     * 返回源代码用ClosureCompiler编译的结果，和AST一起缓存。
+     * 变量在执行时按变量名绑定到槽位，可以在任何Environment上执行。
+     * @param source
+     * @return
+     * @throws Exception 语法错误
+     */
+    public ClosureCompiler.Program getCompiled(String source) throws Exception {
+        Entry entry = this.entry(source);
+        ClosureCompiler.Program compiled = entry.compiled;
+        if (compiled == null) {
+            //多个线程同时编译时结果是等价的，保留哪一个都可以
+            compiled = compiler.compile(entry.tree);
+            entry.compiled = compiled;
+        }
+        return compiled;
+    }
+
+    private Entry entry(String source) throws Exception {
+        synchronized (this) {
+            Entry entry = programs.get(source);
+            if (entry != null) {
+                hits++;
+                return entry;
+            }
+            misses++;
+        }
+
+        //每个脚本用自己的NodeFactory，只在脚本内部共享节点，缓存淘汰脚本时节点也一起释放
+        NodeFactory nodes = new NodeFactory();
+        ASTNode tree = new SimpleParser(symbols != null ? symbols : new SymbolTable(), nodes).parse(source);
+        Entry entry = new Entry(folder.fold(tree, nodes));
+
+        synchronized (this) {
+            Entry existing = programs.get(source);
+            if (existing != null) {
+                return existing;    //其他线程已经解析好了
+            }
+            if (source.length() <= maxWeight) {
+                programs.put(source, entry);
+                weight += source.length();
+                this.evict();
+            }
+        }
+        return entry;
+    }
+
+    private void evict() {
+        Iterator<Map.Entry<String, Entry>> it = programs.entrySet().iterator();
+        while (programs.size() > maxEntries || weight > maxWeight) {
+            String source = it.next().getKey();
+            it.remove();
+            weight -= source.length();
+            evictions++;
+        }
+    }
+
+    /**
+     * 清空缓存，统计数据保留
+     */
+    public synchronized void clear() {
+        programs.clear();
+        weight = 0;
+    }
+
+    public synchronized int size() {
+        return programs.size();
+    }
+
+    public synchronized long getWeight() {
+        return weight;
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    private static final class Entry {
+        final ASTNode tree;
+        volatile ClosureCompiler.Program compiled = null;
+
+        Entry(ASTNode tree) {
+            this.tree = tree;
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "entries: " + programs.size() + ", weight: " + weight
+                + ", hits: " + hits + ", misses: " + misses + ", evictions: " + evictions;
+    }
+
+}
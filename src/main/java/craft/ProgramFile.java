@@ -0,0 +1,362 @@
+package craft;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.zip.CRC32C;
+
+/**
+ * 解析好的程序(FlatAST)的二进制文件格式，用于启动时跳过词法分析和语法分析。
+ * 第一次加载脚本时解析源代码并写出程序文件，以后只要源代码没有变化，
+ * 就用FileChannel.map把整个文件映射进来，按块复制出FlatAST的数组，不再经过SimpleLexer和SimpleParser。
+ *
+ * 文件的格式(大端字节序)：
+ * 头部24个字节：魔数"PWC1"、版本号、源代码的哈希(8字节)、内容的CRC32C校验和、内容的长度；
+ * 内容：Program的名字，用到的变量名，节点的kinds、payloads、starts三个数组，
+ * 超出int范围的字面量，每条语句的根节点的位置。字符串都是长度加UTF-8字节。
+ * 变量名按第一次出现的顺序重新编号，加载时登记到指定的符号表，payload换成那个符号表中的编号。
+ *
+ * 版本号不同、源代码的哈希不同、校验和不对或者内容不完整时，都当作过期的缓存，重新解析源代码。
+ * 加载时还会检查节点数组的结构，损坏的文件不会在求值时导致越界。
+ */
+public class ProgramFile {
+
+    public static void main(String[] args) throws Exception {
+        if (args.length == 0) {
+            System.out.println("usage: java craft.ProgramFile <script file> [program file]");
+            return;
+        }
+        Path source = Paths.get(args[0]);
+        Path cache = args.length > 1 ? Paths.get(args[1]) : Paths.get(args[0] + ".pwc");
+        SimpleScript script = new SimpleScript();
+
+        long start = System.nanoTime();
+        FlatAST program = ProgramFile.read(cache, script.getSymbols(), hash(readSource(source)));
+        boolean fresh = program != null;
+        if (!fresh) {
+            program = ProgramFile.load(source, cache, script.getSymbols());
+        }
+        long loaded = System.nanoTime();
+        Number result = script.evaluate(program);
+        long end = System.nanoTime();
+        System.out.println((fresh ? "loaded " : "parsed and saved ") + cache + ": " + program);
+        System.out.printf("load %.3f ms, evaluate %.3f ms, result %s%n", (loaded - start) / 1e6, (end - loaded) / 1e6, result);
+    }
+
+    private static final int MAGIC = 0x50574331;    //"PWC1"
+    private static final int VERSION = 1;
+    private static final int HEADER = 24;
+
+    private ProgramFile() {
+    }
+
+    /**
+     * 加载脚本：程序文件有效时直接读取，否则解析源代码，并把结果写到程序文件中供下次使用
+     * @param source 脚本文件
+     * @param cache 程序文件，可以不存在
+     * @param symbols 变量名登记在这个符号表中
+     * @return
+     * @throws Exception 读取源代码失败，或者源代码有语法错误
+     */
+    public static FlatAST load(Path source, Path cache, SymbolTable symbols) throws Exception {
+        String text = readSource(source);
+        long hash = hash(text);
+        FlatAST program = read(cache, symbols, hash);
+        if (program == null) {
+            program = FlatAST.encode(new SimpleParser(symbols).parse(text), symbols);
+            try {
+                write(program, hash, cache);
+            } catch (IOException e) {
+                //写不了缓存(比如目录是只读的)不影响这次加载，下次还是解析源代码
+            }
+        }
+        return program;
+    }
+
+    private static String readSource(Path source) throws IOException {
+        return new String(Files.readAllBytes(source), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * 源代码的哈希，取SHA-256的前8个字节
+     * @param source
+     * @return
+     */
+    public static long hash(String source) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(source.getBytes(StandardCharsets.UTF_8));
+            return ByteBuffer.wrap(digest).getLong();
+        } catch (java.security.NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);     //每个Java平台都必须支持SHA-256
+        }
+    }
+
+    /**
+     * 把程序写到文件中。先写到同一目录下的临时文件，再改名，读取的进程不会看到写了一半的文件。
+     * @param program
+     * @param sourceHash 源代码的哈希，见hash()
+     * @param file
+     * @throws IOException
+     */
+    public static void write(FlatAST program, long sourceHash, Path file) throws IOException {
+        //变量名按第一次出现的顺序重新编号
+        SymbolTable symbols = program.getSymbols();
+        int[] local = new int[symbols.size()];
+        Arrays.fill(local, -1);
+        String[] names = new String[8];
+        int nameCount = 0;
+        int count = program.size();
+        int[] payloads = program.payloads.clone();
+        for (int i = 0; i < count; i++) {
+            if (hasSymbol(program.kinds[i])) {
+                int symbol = payloads[i];
+                if (local[symbol] < 0) {
+                    if (nameCount == names.length) {
+                        names = Arrays.copyOf(names, nameCount * 2);
+                    }
+                    names[nameCount] = symbols.nameOf(symbol);
+                    local[symbol] = nameCount++;
+                }
+                payloads[i] = local[symbol];
+            }
+        }
+
+        byte[] name = program.getName().getBytes(StandardCharsets.UTF_8);
+        byte[][] encoded = new byte[nameCount][];
+        long size = HEADER + 4 + name.length + 4;
+        for (int i = 0; i < nameCount; i++) {
+            encoded[i] = names[i].getBytes(StandardCharsets.UTF_8);
+            size += 4 + encoded[i].length;
+        }
+        size += 4 + count * 12L + 4 + program.constants.length * 8L + 4 + program.statements.length * 4L;
+        if (size > Integer.MAX_VALUE) {
+            throw new IOException("program is too large: " + size + " bytes");
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate((int) size);
+        buffer.putInt(MAGIC).putInt(VERSION).putLong(sourceHash).putInt(0).putInt((int) size - HEADER);
+        buffer.putInt(name.length).put(name);
+        buffer.putInt(nameCount);
+        for (int i = 0; i < nameCount; i++) {
+            buffer.putInt(encoded[i].length).put(encoded[i]);
+        }
+        buffer.putInt(count);
+        putInts(buffer, program.kinds);
+        putInts(buffer, payloads);
+        putInts(buffer, program.starts);
+        buffer.putInt(program.constants.length);
+        buffer.asLongBuffer().put(program.constants);
+        buffer.position(buffer.position() + program.constants.length * 8);
+        buffer.putInt(program.statements.length);
+        putInts(buffer, program.statements);
+
+        CRC32C crc = new CRC32C();
+        crc.update(buffer.array(), HEADER, (int) size - HEADER);
+        buffer.putInt(16, (int) crc.getValue());
+
+        Path directory = file.toAbsolutePath().getParent();
+        Path temp = Files.createTempFile(directory, file.getFileName().toString(), ".tmp");
+        try {
+            try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+            }
+            try {
+                Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    private static void putInts(ByteBuffer buffer, int[] values) {
+        buffer.asIntBuffer().put(values);
+        buffer.position(buffer.position() + values.length * 4);
+    }
+
+    /**
+     * 映射并读取程序文件
+     * @param file
+     * @param symbols 变量名登记在这个符号表中
+     * @param sourceHash 当前源代码的哈希，和文件中记录的不同时文件已经过期
+     * @return 文件不存在、已经过期或者已经损坏时返回null
+     * @throws IOException 读取文件出错
+     */
+    public static FlatAST read(Path file, SymbolTable symbols, long sourceHash) throws IOException {
+        MappedByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            if (channel.size() < HEADER || channel.size() > Integer.MAX_VALUE) {
+                return null;
+            }
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+        if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION || buffer.getLong() != sourceHash) {
+            return null;
+        }
+        int checksum = buffer.getInt();
+        int length = buffer.getInt();
+        if (length != buffer.limit() - HEADER) {
+            return null;
+        }
+        CRC32C crc = new CRC32C();
+        crc.update(buffer.duplicate());
+        if ((int) crc.getValue() != checksum) {
+            return null;
+        }
+
+        try {
+            String name = getString(buffer);
+            int nameCount = buffer.getInt();
+            int[] global = new int[checkCount(nameCount, buffer, 4)];
+            for (int i = 0; i < nameCount; i++) {
+                global[i] = symbols.intern(getString(buffer));
+            }
+            int count = checkCount(buffer.getInt(), buffer, 12);
+            int[] kinds = getInts(buffer, count);
+            int[] payloads = getInts(buffer, count);
+            int[] starts = getInts(buffer, count);
+            long[] constants = new long[checkCount(buffer.getInt(), buffer, 8)];
+            buffer.asLongBuffer().get(constants);
+            buffer.position(buffer.position() + constants.length * 8);
+            int[] statements = getInts(buffer, checkCount(buffer.getInt(), buffer, 4));
+
+            int maxDepth = validate(kinds, payloads, starts, nameCount, constants.length, statements);
+            if (maxDepth < 0 || buffer.hasRemaining()) {
+                return null;
+            }
+            for (int i = 0; i < count; i++) {
+                if (hasSymbol(kinds[i])) {
+                    payloads[i] = global[payloads[i]];
+                }
+            }
+            return new FlatAST(name, symbols, kinds, payloads, starts, constants, statements, maxDepth);
+        } catch (BufferUnderflowException | IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    private static boolean hasSymbol(int kind) {
+        return kind == FlatAST.LOAD || kind >= FlatAST.DECLARE;
+    }
+
+    //数量不能是负数，也不能超过剩下的字节数，避免损坏的文件导致分配巨大的数组
+    private static int checkCount(int count, ByteBuffer buffer, int bytesEach) {
+        if (count < 0 || (long) count * bytesEach > buffer.remaining()) {
+            throw new IllegalArgumentException("bad count: " + count);
+        }
+        return count;
+    }
+
+    private static String getString(ByteBuffer buffer) {
+        byte[] bytes = new byte[checkCount(buffer.getInt(), buffer, 1)];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static int[] getInts(ByteBuffer buffer, int count) {
+        int[] values = new int[checkCount(count, buffer, 4)];
+        buffer.asIntBuffer().get(values);
+        buffer.position(buffer.position() + count * 4);
+        return values;
+    }
+
+    /**
+     * 按求值的顺序模拟一遍值栈，检查每个节点的种类、payload和starts都是FlatAST.encode()能生成的，
+     * 语句的根节点也在正确的位置上
+     * @return 值栈的最大深度，结构不对时返回-1
+     */
+    private static int validate(int[] kinds, int[] payloads, int[] starts, int nameCount, int constantCount,
+                                int[] statements) {
+        //值栈上每个值对应的子树的开始位置
+        int[] subtrees = new int[kinds.length + 1];
+        int top = 0;
+        int maxDepth = 0;
+        int next = 0;
+        for (int i = 0; i < kinds.length; i++) {
+            int kind = kinds[i];
+            int payload = payloads[i];
+            int start;
+            switch (kind) {
+                case FlatAST.LITERAL:
+                    start = i;
+                    subtrees[top++] = i;
+                    break;
+                case FlatAST.WIDE_LITERAL:
+                    if (payload < 0 || payload >= constantCount) {
+                        return -1;
+                    }
+                    start = i;
+                    subtrees[top++] = i;
+                    break;
+                case FlatAST.LOAD:
+                    if (payload < 0 || payload >= nameCount) {
+                        return -1;
+                    }
+                    start = i;
+                    subtrees[top++] = i;
+                    break;
+                case FlatAST.ADD:
+                case FlatAST.SUB:
+                case FlatAST.MUL:
+                case FlatAST.DIV:
+                    if (top < 2) {
+                        return -1;
+                    }
+                    top--;
+                    start = subtrees[top - 1];
+                    break;
+                case FlatAST.DECLARE:
+                    if (payload < 0 || payload >= nameCount || top != 0) {
+                        return -1;
+                    }
+                    start = i;
+                    break;
+                case FlatAST.DECLARE_INIT:
+                case FlatAST.ASSIGN:
+                    if (payload < 0 || payload >= nameCount || top != 1) {
+                        return -1;
+                    }
+                    start = subtrees[--top];
+                    break;
+                default:
+                    return -1;
+            }
+            if (starts[i] != start) {
+                return -1;
+            }
+            maxDepth = Math.max(maxDepth, top);
+            if (next < statements.length && statements[next] == i) {
+                //表达式语句的值留在栈上，赋值和声明语句已经把值取走了
+                if (kind < FlatAST.DECLARE) {
+                    if (top != 1) {
+                        return -1;
+                    }
+                    top = 0;
+                }
+                next++;
+            } else if (kind >= FlatAST.DECLARE) {
+                return -1;
+            }
+        }
+        return next == statements.length && top == 0 ? maxDepth : -1;
+    }
+
+}
@@ -0,0 +1,120 @@
+package craft;
+
+/**
+ * 可以被多个线程共用的脚本引擎。
+ * 引擎保存编译好的程序，ProgramCache是线程安全的，编译好的程序是不可变的；
+ * 变量保存在Session中，每个会话有自己的Environment和符号表，同一个会话同一时间只能在一个线程中使用。
+ *
+ * 编译好的程序按程序内的编号使用变量，执行时才按变量名绑定到会话的槽位，
+ * 所以可以在任何会话上执行，执行时不需要加锁。
+ * 每个会话的存储空间只和它自己用到的变量有关，不会因为其他会话使用了新的变量名而增长；
+ * 引擎也不保存全局的符号表，缓存的脚本被淘汰时，它们的变量名也一起释放。
+ */
+public class ScriptEngine {
+
+    public static void main(String[] args) throws Exception {
+        ScriptEngine engine = new ScriptEngine();
+        Session alice = engine.newSession();
+        Session bob = engine.newSession();
+        System.out.println(alice.eval("int age = 45 + 2;"));
+        System.out.println(bob.eval("int age = 20;"));
+        System.out.println(alice.eval("age * 2;") + " " + bob.eval("age * 2;"));
+        System.out.println(alice.getVariables() + " " + bob.getVariables());
+        System.out.println(engine.getCache());
+    }
+
+    private final ProgramCache cache;
+    private final ClosureCompiler compiler = new ClosureCompiler();
+
+    public ScriptEngine() {
+        this(10000, 1 << 24);
+    }
+
+    /**
+     * @param maxPrograms 最多缓存的程序数
+     * @param maxWeight 缓存的源代码总长度的上限
+     */
+    public ScriptEngine(int maxPrograms, long maxWeight) {
+        this.cache = new ProgramCache(maxPrograms, maxWeight);
+    }
+
+    /**
+     * 创建一个新的会话，会话之间的变量互不影响
+     * @return
+     */
+    public Session newSession() {
+        return new Session(this);
+    }
+
+    /**
+     * 编译一段脚本，同样的脚本只编译一次。
+     * 结果可以在这个引擎的任何会话上反复执行，但不能在其他引擎的会话上执行。
+     * @param source
+     * @return
+     * @throws Exception 语法错误
+     */
+    public ClosureCompiler.Program prepare(String source) throws Exception {
+        return cache.getCompiled(source);
+    }
+
+    public ProgramCache getCache() {
+        return cache;
+    }
+
+    /**
+     * 一个会话，保存自己的变量。不是线程安全的，但可以在不同时间交给不同的线程使用。
+     */
+    public static final class Session {
+        private final ScriptEngine engine;
+        private final Environment variables;
+
+        Session(ScriptEngine engine) {
+            this.engine = engine;
+            this.variables = new Environment();
+        }
+
+        /**
+         * 执行一段脚本，返回最后一条语句的值
+         * @param source
+         * @return
+         * @throws Exception
+         */
+        public Number eval(String source) throws Exception {
+            return this.execute(engine.prepare(source));
+        }
+
+        /**
+         * 执行这个引擎编译好的程序
+         * @param program
+         * @return
+         * @throws Exception
+         */
+        public Number execute(ClosureCompiler.Program program) throws Exception {
+            return program.execute(variables);
+        }
+
+        /**
+         * 编译并执行一棵已经解析好的AST，例如逐行输入时由IncrementalParser生成的语句。
+         * AST最好用这个会话的符号表(getSymbols())解析
+         * @param tree
+         * @return
+         * @throws Exception
+         */
+        public Number evaluate(ASTNode tree) throws Exception {
+            return this.execute(engine.compiler.compile(tree, variables));
+        }
+
+        public Environment getVariables() {
+            return variables;
+        }
+
+        /**
+         * 这个会话的符号表，只登记这个会话用到的变量名
+         * @return
+         */
+        public SymbolTable getSymbols() {
+            return variables.getSymbols();
+        }
+    }
+
+}
@@ -0,0 +1,154 @@
+package craft;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Recording;
+import jdk.jfr.StackTrace;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * Java Flight Recorder(JFR)的自定义事件，记录词法分析、语法分析、求值各阶段以及每条顶层语句的耗时。
+ * 和JFR自己的GC、安全点等事件放在同一个记录里，就能看出脚本变慢时时间花在了哪里。
+ *
+ * 事件的用法是JFR的标准写法：begin()、end()之后用shouldCommit()判断是否需要提交。
+ * 没有在记录时shouldCommit()直接返回false，节点数、结果的文本等字段只在提交前才计算，
+ * 事件对象本身也会被JIT的逃逸分析消除，所以关闭记录时几乎没有开销。
+ *
+ * 在命令行上记录：java -XX:StartFlightRecording:filename=script.jfr craft.SimpleScript
+ * 然后用 jfr print --categories "Play With Compiler" script.jfr 查看。
+ */
+public final class ScriptEvents {
+
+    /**
+     * 在程序中开启一次记录，执行一段脚本，打印记录到的事件
+     */
+    public static void main(String[] args) throws Exception {
+        Path file = Files.createTempFile("script", ".jfr");
+        try (Recording recording = new Recording()) {
+            recording.enable(LexEvent.class);
+            recording.enable(ParseEvent.class);
+            recording.enable(EvaluateEvent.class);
+            recording.enable(StatementEvent.class);
+            recording.start();
+
+            SimpleScript script = new SimpleScript();
+            SimpleParser parser = new SimpleParser(script.getSymbols());
+            script.evaluate(parser.parse("int age = 45 + 2; age = 20; age + 10 * 2;"));
+
+            recording.stop();
+            recording.dump(file);
+        }
+        for (RecordedEvent event : RecordingFile.readAllEvents(file)) {
+            System.out.println(event);
+        }
+        Files.delete(file);
+    }
+
+    private ScriptEvents() {
+    }
+
+    /**
+     * 统计以node为根的AST的节点数
+     * @param node
+     * @return
+     */
+    static int countNodes(ASTNode node) {
+        int count = 0;
+        Deque<ASTNode> nodes = new ArrayDeque<>();
+        nodes.push(node);
+        while (!nodes.isEmpty()) {
+            count++;
+            for (ASTNode child : nodes.pop().getChildren()) {
+                nodes.push(child);
+            }
+        }
+        return count;
+    }
+
+    /**
+     * 一次词法分析
+     */
+    @Name("craft.Lex")
+    @Label("Lex")
+    @Category("Play With Compiler")
+    @Description("把一段源代码分析成Token")
+    @StackTrace(false)
+    static final class LexEvent extends Event {
+        @Label("Source Length")
+        int sourceLength;
+
+        @Label("Token Count")
+        int tokenCount;
+    }
+
+    /**
+     * 一次语法分析，不包括之前的词法分析
+     */
+    @Name("craft.Parse")
+    @Label("Parse")
+    @Category("Play With Compiler")
+    @Description("把Token解析成AST")
+    @StackTrace(false)
+    static final class ParseEvent extends Event {
+        @Label("Token Count")
+        int tokenCount;
+
+        @Label("Statement Count")
+        int statementCount;
+
+        @Label("Node Count")
+        int nodeCount;
+    }
+
+    /**
+     * 一次SimpleScript.evaluate()，包括编译
+     */
+    @Name("craft.Evaluate")
+    @Label("Evaluate")
+    @Category("Play With Compiler")
+    @Description("对一棵AST求值")
+    @StackTrace(false)
+    static final class EvaluateEvent extends Event {
+        @Label("Statement Count")
+        int statementCount;
+
+        @Label("Node Count")
+        int nodeCount;
+
+        @Label("Result")
+        String result;
+    }
+
+    /**
+     * 执行一条顶层语句
+     */
+    @Name("craft.Statement")
+    @Label("Statement")
+    @Category("Play With Compiler")
+    @Description("执行Program中的一条语句")
+    @StackTrace(false)
+    static final class StatementEvent extends Event {
+        @Label("Index")
+        @Description("语句在Program中的序号，从0开始")
+        int index;
+
+        @Label("Statement Type")
+        String statementType;
+
+        @Label("Node Count")
+        int nodeCount;
+
+        @Label("Result")
+        String result;
+    }
+
+}
@@ -0,0 +1,331 @@
+package craft;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.reflect.Method;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 网络版的REPL。
+ * 接受TCP或者Unix domain socket连接，每个连接是一个独立的会话，有自己的变量，所有会话共用一个ScriptEngine。
+ * 协议和SimpleScript的REPL一样：逐行输入，语句在分号出现时立即执行，
+ * 一行结束并且没有未完成的语句时返回最后一条语句的结果和提示符，exit();关闭连接。
+ *
+ * 每个连接由一个线程处理。JDK支持虚拟线程时(Java 21及以上)使用虚拟线程，空闲的会话几乎不占资源；
+ * 否则使用栈比较小的平台线程。
+ * 输出先写到缓冲区，已经收到的输入都处理完以后才写到socket，客户端连续发送的多行输入只需要一次写操作。
+ *
+ * 读写socket都是阻塞的，没有用Selector。会话线程是虚拟线程时，阻塞只会挂起这个虚拟线程，不占用平台线程。
+ * 客户端读得慢时，只有它自己的会话停在写操作上，也不再读它的输入，其他会话不受影响；
+ * 每个会话缓冲的输入和输出都不超过BUFFER_SIZE，慢的客户端不会让服务器堆积内存。
+ * 为了防止一个客户端耗尽内存，一行输入最多MAX_LINE_LENGTH个字节，一个会话最多MAX_VARIABLES个变量名，
+ * 超出时返回错误信息并断开连接。
+ */
+public class ScriptServer implements Closeable {
+
+    public static void main(String[] args) throws Exception {
+        String address = args.length > 0 ? args[0] : "7777";
+        ScriptServer server = new ScriptServer(new ScriptEngine());
+        SocketAddress bound = server.bind(parseAddress(address));
+        System.out.println("listening on " + bound + ", " + server.getThreadKind() + " thread per session");
+        server.serve();
+    }
+
+    /**
+     * 解析监听地址：端口、主机:端口，或者unix:路径
+     * @param address
+     * @return
+     */
+    static SocketAddress parseAddress(String address) {
+        if (address.startsWith("unix:")) {
+            return UnixDomainSocketAddress.of(address.substring("unix:".length()));
+        }
+        int colon = address.lastIndexOf(':');
+        if (colon < 0) {
+            return new InetSocketAddress(Integer.parseInt(address));
+        }
+        return new InetSocketAddress(address.substring(0, colon), Integer.parseInt(address.substring(colon + 1)));
+    }
+
+    //没有虚拟线程时，平台线程的栈大小
+    private static final long PLATFORM_STACK_SIZE = 256 * 1024;
+
+    //每个会话的输入、输出缓冲区的大小，缓冲区小一些，空闲的会话占用的内存就少
+    private static final int BUFFER_SIZE = 1024;
+
+    //一行输入的最大字节数
+    static final int MAX_LINE_LENGTH = 16 * 1024;
+
+    //一个会话最多登记的变量名
+    static final int MAX_VARIABLES = 10000;
+
+    private static final String PROMPT = "\n>\n";
+
+    private final ScriptEngine engine;
+    private final ExecutorService sessions;
+    private final String threadKind;
+    private final AtomicInteger activeSessions = new AtomicInteger();
+
+    private ServerSocketChannel channel = null;
+
+    public ScriptServer(ScriptEngine engine) {
+        this.engine = engine;
+        ExecutorService executor = newVirtualThreadExecutor();
+        if (executor != null) {
+            this.sessions = executor;
+            this.threadKind = "virtual";
+        } else {
+            this.sessions = Executors.newCachedThreadPool(task -> {
+                Thread thread = new Thread(null, task, "script-session", PLATFORM_STACK_SIZE);
+                thread.setDaemon(true);
+                return thread;
+            });
+            this.threadKind = "platform";
+        }
+    }
+
+    /**
+     * 用反射调用Executors.newVirtualThreadPerTaskExecutor()，这样在Java 21以前的JDK上也能编译和运行
+     * @return 不支持虚拟线程时返回null
+     */
+    private static ExecutorService newVirtualThreadExecutor() {
+        try {
+            Method method = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) method.invoke(null);
+        } catch (ReflectiveOperationException | UnsupportedOperationException e) {
+            return null;    //没有这个方法，或者是需要--enable-preview的版本
+        }
+    }
+
+    /**
+     * 开始监听一个地址，InetSocketAddress表示TCP，UnixDomainSocketAddress表示Unix domain socket
+     * @param address
+     * @return 实际监听的地址，例如端口为0时分配的端口
+     * @throws IOException
+     */
+    public SocketAddress bind(SocketAddress address) throws IOException {
+        if (address instanceof UnixDomainSocketAddress) {
+            Files.deleteIfExists(((UnixDomainSocketAddress) address).getPath());
+            channel = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+        } else {
+            channel = ServerSocketChannel.open();
+        }
+        channel.bind(address, 1024);
+        return channel.getLocalAddress();
+    }
+
+    /**
+     * 在当前线程中接受连接，直到close()
+     * @throws IOException
+     */
+    public void serve() throws IOException {
+        while (channel.isOpen()) {
+            SocketChannel client;
+            try {
+                client = channel.accept();
+            } catch (ClosedChannelException e) {
+                break;
+            }
+            sessions.execute(() -> this.handle(client));
+        }
+    }
+
+    /**
+     * 在后台线程中接受连接
+     */
+    public void start() {
+        Thread acceptor = new Thread(() -> {
+            try {
+                this.serve();
+            } catch (IOException e) {
+                if (channel.isOpen()) {
+                    e.printStackTrace();
+                }
+            }
+        }, "script-server");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    /**
+     * 处理一个连接，直到客户端断开或者输入exit();
+     * @param client
+     */
+    private void handle(SocketChannel client) {
+        activeSessions.incrementAndGet();
+        try (SocketChannel ch = client) {
+            LineReader in = new LineReader(ch, BUFFER_SIZE, MAX_LINE_LENGTH);
+            Writer out = new BufferedWriter(
+                    Channels.newWriter(ch, StandardCharsets.UTF_8.newEncoder(), BUFFER_SIZE), BUFFER_SIZE);
+            ScriptEngine.Session session = engine.newSession();
+            IncrementalParser input = new IncrementalParser(new SimpleParser(session.getSymbols()));
+            ConstantFolder folder = new ConstantFolder();
+
+            out.write("Simple script language!\n" + PROMPT);
+            out.flush();
+            String line = null;
+            while ((line = in.readLine()) != null) {
+                line = line.trim();
+                if (line.equals("exit();")) {
+                    out.write("good bye!\n");
+                    break;
+                }
+                try {
+                    input.feed(line);
+                    boolean executed = false;
+                    Number result = null;
+                    ASTNode tree = null;
+                    while ((tree = input.next()) != null) {
+                        result = session.evaluate(folder.fold(tree));
+                        executed = true;
+                    }
+                    if (executed && !input.isPending()) {
+                        out.write(result + "\n" + PROMPT);
+                    }
+                } catch (Exception e) {
+                    out.write(e.getMessage() + "\n" + PROMPT);
+                    input.reset();
+                }
+                //变量名在词法分析时登记，出错的语句中的变量名也算
+                if (session.getSymbols().size() > MAX_VARIABLES) {
+                    out.write("too many variables, at most " + MAX_VARIABLES + "\n");
+                    break;
+                }
+                if (!in.hasBuffered()) {
+                    out.flush();    //收到的输入都处理完了，才把结果发出去
+                }
+            }
+            if (in.isTooLong()) {
+                out.write("line is too long, at most " + MAX_LINE_LENGTH + " bytes\n");
+            }
+            out.flush();
+        } catch (IOException e) {
+            //客户端断开，会话结束
+        } finally {
+            activeSessions.decrementAndGet();
+        }
+    }
+
+    /**
+     * 从socket中按行读取输入，限制一行的长度，超出时不再读取
+     */
+    private static final class LineReader {
+        private final ReadableByteChannel channel;
+        private final ByteBuffer buffer;
+        private final int maxLength;
+        //正在读取的一行
+        private byte[] line = new byte[128];
+        private boolean tooLong = false;
+
+        LineReader(ReadableByteChannel channel, int bufferSize, int maxLength) {
+            this.channel = channel;
+            this.buffer = ByteBuffer.allocate(bufferSize);
+            this.buffer.flip();
+            this.maxLength = maxLength;
+        }
+
+        /**
+         * 读取一行，不包括行尾的\n和\r
+         * @return 输入结束，或者这一行超过了最大长度时返回null
+         * @throws IOException
+         */
+        String readLine() throws IOException {
+            int length = 0;
+            while (true) {
+                if (!buffer.hasRemaining()) {
+                    buffer.clear();
+                    int n = channel.read(buffer);
+                    buffer.flip();
+                    if (n < 0) {
+                        return length > 0 ? this.decode(length) : null;
+                    }
+                    continue;
+                }
+                byte b = buffer.get();
+                if (b == '\n') {
+                    return this.decode(length);
+                }
+                if (length == maxLength) {
+                    tooLong = true;
+                    return null;
+                }
+                if (length == line.length) {
+                    line = Arrays.copyOf(line, Math.min(length * 2, maxLength));
+                }
+                line[length++] = b;
+            }
+        }
+
+        private String decode(int length) {
+            if (length > 0 && line[length - 1] == '\r') {
+                length--;
+            }
+            String text = new String(line, 0, length, StandardCharsets.UTF_8);
+            if (line.length > 1024) {
+                line = new byte[128];   //读过很长的行以后，空闲的会话不保留大的缓冲区
+            }
+            return text;
+        }
+
+        /**
+         * 是不是还有已经收到、没有读取的输入
+         */
+        boolean hasBuffered() {
+            return buffer.hasRemaining();
+        }
+
+        boolean isTooLong() {
+            return tooLong;
+        }
+    }
+
+    /**
+     * 正在连接的会话数
+     * @return
+     */
+    public int getActiveSessions() {
+        return activeSessions.get();
+    }
+
+    /**
+     * 每个会话使用的线程："virtual"或者"platform"
+     * @return
+     */
+    public String getThreadKind() {
+        return threadKind;
+    }
+
+    public ScriptEngine getEngine() {
+        return engine;
+    }
+
+    /**
+     * 停止接受新的连接，已经建立的会话继续运行到客户端断开
+     * @throws IOException
+     */
+    @Override
+    public void close() throws IOException {
+        if (channel != null) {
+            channel.close();
+        }
+        sessions.shutdown();
+    }
+
+}
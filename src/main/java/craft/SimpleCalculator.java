@@ -10,6 +10,7 @@ public class SimpleCalculator {
 
     public static void main(String[] args){
         SimpleCalculator calculator = new SimpleCalculator();
+        calculator.setTraceListener(new PrintingTraceListener(System.out));     //打印求值过程
 
         //测试变量声明语句的解析
         String script = "int a = b+3;";
@@ -41,37 +42,52 @@ public class SimpleCalculator {
         calculator.evaluate(script);
     }
 
-    public void evaluate(String script) throws RuntimeException {
+    //求值过程的监听器，为null时不跟踪
+    private TraceListener listener = null;
+
+    /**
+     * 安装求值过程的监听器，安装后求值前还会打印AST
+     * @param listener
+     */
+    public void setTraceListener(TraceListener listener) {
+        this.listener = listener;
+    }
+
+    public int evaluate(String script) throws RuntimeException {
         try{
             ASTNode tree = this.parse(script);
 
-            this.dumpAST(tree, "");
-            this.evaluate(tree, "");
+            if(listener != null){
+                this.dumpAST(tree, "");
+            }
+            return this.evaluate(tree, 0);
         }catch (Exception e){
             throw new RuntimeException(e);
         }
     }
 
     /**
-     * 对某个AST节点求值，并打印求值过程。
+     * 对某个AST节点求值，安装了监听器时通知求值过程。
      * @param node
-     * @param indent
+     * @param depth 节点的深度，只用于通知监听器
      * @return
      */
-    private int evaluate(ASTNode node, String indent){
+    private int evaluate(ASTNode node, int depth){
         int result = 0;
-        System.out.println(indent + "Calculating: " + node.getType());
+        if(listener != null){
+            listener.enter(node, depth);
+        }
         switch (node.getType()){
             case Program:
                 for(ASTNode child : node.getChildren()){
-                    result = this.evaluate(child, indent + "\t");
+                    result = this.evaluate(child, depth + 1);
                 }
                 break;
             case Additive:
                 ASTNode child1 = node.getChildren().get(0);
-                int value1 = this.evaluate(child1, indent + "\t");
+                int value1 = this.evaluate(child1, depth + 1);
                 ASTNode child2 = node.getChildren().get(1);
-                int value2 = this.evaluate(child2, indent + "\t");
+                int value2 = this.evaluate(child2, depth + 1);
                 if(node.getText().equalsIgnoreCase("+")){
                     result = value1 + value2;
                 }else {
@@ -80,9 +96,9 @@ public class SimpleCalculator {
                 break;
             case Multiplicative:
                 child1 = node.getChildren().get(0);
-                value1 = this.evaluate(child1, indent + "\t");
+                value1 = this.evaluate(child1, depth + 1);
                 child2 = node.getChildren().get(1);
-                value2 = this.evaluate(child2, indent + "\t");
+                value2 = this.evaluate(child2, depth + 1);
                 if(node.getText().equalsIgnoreCase("*")){
                     result = value1 * value2;
                 }else {
@@ -94,7 +110,9 @@ public class SimpleCalculator {
                 break;
             default:
         }
-        System.out.println(indent + "Result:" + result);
+        if(listener != null){
+            listener.exit(node, depth, result);
+        }
         return result;
     }
 
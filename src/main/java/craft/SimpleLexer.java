@@ -1,8 +1,5 @@
 package craft;
 
-import java.io.CharArrayReader;
-import java.io.IOException;
-import java.util.ArrayList;
 import java.util.List;
 
 public class SimpleLexer {
@@ -41,11 +38,41 @@ public class SimpleLexer {
 		dump(tokenReader);
 	}
 	
-	private StringBuffer tokenText = null;
+	//标识符登记在这个符号表中
+	private final SymbolTable symbols;
 	
+	//tokenize()的输出，Token只记录在源代码中的位置
+	private TokenBuffer buffer = null;
+	
+	//逐个送入字符时的输出，这时源代码不会保留下来，Token的文本要单独记下
 	private List<Token> tokens = null;
+	private StringBuilder tokenText = null;
+	
+	//正在识别的Token
+	private TokenType tokenType = null;
+	private int tokenStart = 0;
+	private int tokenLength = 0;
+	
+	//当前字符在源代码中的位置
+	private int pos = 0;
 	
-	private SimpleToken token = null;
+	private DfaState state = DfaState.Initial;
+	
+	public SimpleLexer() {
+		this(new SymbolTable());
+	}
+	
+	/**
+	 * 使用指定的符号表，和SimpleParser、Environment共用时，标识符在整个会话中只保存一份
+	 * @param symbols
+	 */
+	public SimpleLexer(SymbolTable symbols) {
+		this.symbols = symbols;
+	}
+	
+	public SymbolTable getSymbols() {
+		return symbols;
+	}
 	
 	private boolean isAlpha(int ch) {
 		return ch >= 'a' && ch <= 'z' || ch >= 'A' && ch <= 'Z';
@@ -59,13 +86,34 @@ public class SimpleLexer {
 		return ch == ' ' || ch == '\t' || ch == '\n';
 	}
 	
+	/**
+	 * 把当前字符并入正在识别的Token
+	 * @param ch
+	 */
+	private void append(char ch) {
+		if(tokenLength == 0) {
+			tokenStart = pos;
+		}
+		tokenLength++;
+		if(tokenText != null) {
+			tokenText.append(ch);
+		}
+	}
+	
 	private DfaState initToken(char ch) {
-		if(tokenText.length() > 0) {
-			token.text = tokenText.toString();
-			tokens.add(token);
-			
-			tokenText = new StringBuffer();
-			token = new SimpleToken();
+		if(tokenLength > 0) {
+			if(buffer != null) {
+				buffer.add(tokenType, tokenStart, tokenLength);
+			}else {
+				if(tokenType == TokenType.Identifier) {
+					int symbol = symbols.intern(tokenText, 0, tokenLength);
+					tokens.add(new SimpleToken(tokenType, symbols.nameOf(symbol), symbol));
+				}else {
+					tokens.add(new SimpleToken(tokenType, tokenText.toString(), -1));
+				}
+				tokenText.setLength(0);
+			}
+			tokenLength = 0;
 		}
 		
 		DfaState newState = DfaState.Initial;
@@ -75,49 +123,49 @@ public class SimpleLexer {
 			}else {
 				newState = DfaState.Id;//进入 Id状态
 			}
-			token.type = TokenType.Identifier;
-			tokenText.append(ch);
+			tokenType = TokenType.Identifier;
+			this.append(ch);
 		}else if(this.isDigit(ch)) {	// 第一个字符是数字
 			newState = DfaState.IntLiteral;	//
-			token.type = TokenType.IntLiteral;
-			tokenText.append(ch);
+			tokenType = TokenType.IntLiteral;
+			this.append(ch);
 		}else if(ch == '>') {			//第一个字符是>
 			newState = DfaState.GT;
-			token.type = TokenType.GT;
-			tokenText.append(ch);
+			tokenType = TokenType.GT;
+			this.append(ch);
 		}else if(ch == '+'){
 			newState = DfaState.Plus;
-			token.type = TokenType.Plus;
-			tokenText.append(ch);
+			tokenType = TokenType.Plus;
+			this.append(ch);
 		}else if(ch == '-'){
 			newState = DfaState.Minus;
-			token.type = TokenType.Minus;
-			tokenText.append(ch);
+			tokenType = TokenType.Minus;
+			this.append(ch);
 		}else if(ch == '*'){
 			newState = DfaState.Star;
-			token.type = TokenType.Star;
-			tokenText.append(ch);
+			tokenType = TokenType.Star;
+			this.append(ch);
 		}else if(ch == '/'){
 			newState = DfaState.Slash;
-			token.type = TokenType.Slash;
-			tokenText.append(ch);
+			tokenType = TokenType.Slash;
+			this.append(ch);
 		}else if(ch == ';'){
 			newState = DfaState.SemiColon;
-			token.type = TokenType.SemiColon;
-			tokenText.append(ch);
+			tokenType = TokenType.SemiColon;
+			this.append(ch);
 		}else if(ch == '('){
 			newState = DfaState.LeftParen;
-			token.type = TokenType.LeftParen;
-			tokenText.append(ch);
+			tokenType = TokenType.LeftParen;
+			this.append(ch);
 		}else if(ch == ')'){
 			newState = DfaState.RightParen;
-			token.type = TokenType.RightParen;
-			tokenText.append(ch);
+			tokenType = TokenType.RightParen;
+			this.append(ch);
 		}
 		else if(ch == '='){
 			newState = DfaState.Assignment;
-			token.type = TokenType.Assignment;
-			tokenText.append(ch);
+			tokenType = TokenType.Assignment;
+			this.append(ch);
 		}
 		else {
 			newState = DfaState.Initial;// skip all unknown pattern
@@ -127,108 +175,158 @@ public class SimpleLexer {
 		return newState;
 	}
 	
-	public SimpleTokenReader tokenize(String code) {
-		tokens = new ArrayList<>();
-		CharArrayReader reader = new CharArrayReader(code.toCharArray());
-		tokenText = new StringBuffer();
-		token = new SimpleToken();
-		int ich = 0;
-		char ch = 0;
-		DfaState state = DfaState.Initial;
-		
-		try {
-			while((ich = reader.read()) != -1) {
-				ch = (char) ich;
-				switch (state) {
-				case Initial:
-					state = this.initToken(ch);//重新确定后续状态
-					break;
-				case Id:
-					if(this.isAlpha(ch) || this.isDigit(ch)) {
-						tokenText.append(ch);	//	保持标识符状态
-					}else {
-						state = this.initToken(ch); //退出标识符状态，并保存 Token
-					}
-					break;
-				case GT:
-					if(ch == '=') {
-						token.type = TokenType.GE; //装换成GE
-						state = DfaState.GE;
-						tokenText.append(ch);
-					}else {
-						state = this.initToken(ch); //退出GT，并保存Token
-					}
-					break;
-				case GE:
-				case Assignment:
-				case Plus:
-				case Minus:
-				case Star:
-				case Slash:
-				case SemiColon:
-				case LeftParen:
-				case RightParen:
-					state = this.initToken(ch);	//退出当前状态,并保存 Token
-					break;
-				case IntLiteral:
-					if(this.isDigit(ch)) {
-						tokenText.append(ch); //继续保持在数字字面量状态
-					}else {
-						state = this.initToken(ch);//退出当前状态,并保存 Token
-					}
-					break;
-				case Id_int1:
-					if(ch == 'n'){
-						state = DfaState.Id_int2;
-						tokenText.append(ch);
-					}else if(isDigit(ch) || isAlpha(ch)){
-						state = DfaState.Id;	//切换为Id状态
-						tokenText.append(ch);
-					}else{
-						state = initToken(ch);
-					}
-					break;
-				case Id_int2:
-					if(ch == 't'){
-						state = DfaState.Id_int3;
-						tokenText.append(ch);
-					}else if(isDigit(ch) || isAlpha(ch)){
-						state = DfaState.Id;	//切换为Id状态
-						tokenText.append(ch);
-					}else{
-						state = initToken(ch);
-					}
-					break;
-				case Id_int3:
-					if(isBlank(ch)){
-						token.type = TokenType.Int;
-						state = initToken(ch);
-					}else {
-						state = DfaState.Id;	//切换为Id状态
-						tokenText.append(ch);
-					}
-					break;
-				default:
-					break;
-				}
+	/**
+	 * 对一段源代码做词法分析。code可以是任意的CharSequence，比如MappedLexer对映射文件的字符视图
+	 * @param code
+	 * @return
+	 */
+	public SimpleTokenReader tokenize(CharSequence code) {
+		ScriptEvents.LexEvent event = new ScriptEvents.LexEvent();
+		event.begin();
+		this.reset();
+		buffer = new TokenBuffer(code, symbols);
+		for(int i = 0; i < code.length(); i++) {
+			this.feed(code.charAt(i));
+		}
+		this.finish();
+		SimpleTokenReader reader = new SimpleTokenReader(buffer);
+		event.end();
+		if(event.shouldCommit()) {
+			event.sourceLength = code.length();
+			event.tokenCount = buffer.size();
+			event.commit();
+		}
+		buffer = null;
+		return reader;
+	}
+	
+	/**
+	 * 开始一次新的词法分析，解析出来的Token依次加到output中。
+	 * 之后用feed()逐个送入字符，最后调用finish()。
+	 * @param output
+	 */
+	void begin(List<Token> output) {
+		this.reset();
+		tokens = output;
+		tokenText = new StringBuilder();
+	}
+	
+	private void reset() {
+		buffer = null;
+		tokens = null;
+		tokenText = null;
+		tokenType = null;
+		tokenLength = 0;
+		pos = 0;
+		state = DfaState.Initial;
+	}
+	
+	/**
+	 * 送入一个字符，推动有限状态机。
+	 * 一个Token要等到它后面的字符送进来以后才会被加到output中。
+	 * @param ch
+	 */
+	void feed(char ch) {
+		switch (state) {
+		case Initial:
+			state = this.initToken(ch);//重新确定后续状态
+			break;
+		case Id:
+			if(this.isAlpha(ch) || this.isDigit(ch)) {
+				this.append(ch);	//	保持标识符状态
+			}else {
+				state = this.initToken(ch); //退出标识符状态，并保存 Token
 			}
-			// 把最后一个token送进去
-			if(tokenText.length() > 0) {
-				this.initToken(ch);
+			break;
+		case GT:
+			if(ch == '=') {
+				tokenType = TokenType.GE; //装换成GE
+				state = DfaState.GE;
+				this.append(ch);
+			}else {
+				state = this.initToken(ch); //退出GT，并保存Token
 			}
-		} catch (IOException e) {
-			e.printStackTrace();
+			break;
+		case GE:
+		case Assignment:
+		case Plus:
+		case Minus:
+		case Star:
+		case Slash:
+		case SemiColon:
+		case LeftParen:
+		case RightParen:
+			state = this.initToken(ch);	//退出当前状态,并保存 Token
+			break;
+		case IntLiteral:
+			if(this.isDigit(ch)) {
+				this.append(ch); //继续保持在数字字面量状态
+			}else {
+				state = this.initToken(ch);//退出当前状态,并保存 Token
+			}
+			break;
+		case Id_int1:
+			if(ch == 'n'){
+				state = DfaState.Id_int2;
+				this.append(ch);
+			}else if(isDigit(ch) || isAlpha(ch)){
+				state = DfaState.Id;	//切换为Id状态
+				this.append(ch);
+			}else{
+				state = initToken(ch);
+			}
+			break;
+		case Id_int2:
+			if(ch == 't'){
+				state = DfaState.Id_int3;
+				this.append(ch);
+			}else if(isDigit(ch) || isAlpha(ch)){
+				state = DfaState.Id;	//切换为Id状态
+				this.append(ch);
+			}else{
+				state = initToken(ch);
+			}
+			break;
+		case Id_int3:
+			if(isBlank(ch)){
+				tokenType = TokenType.Int;
+				state = initToken(ch);
+			}else {
+				state = DfaState.Id;	//切换为Id状态
+				this.append(ch);
+			}
+			break;
+		default:
+			break;
+		}
+		pos++;
+	}
+	
+	/**
+	 * 输入结束，把最后一个token送进去
+	 */
+	void finish() {
+		if(tokenLength > 0) {
+			this.initToken(' ');
 		}
-		return new SimpleTokenReader(tokens);
+		state = DfaState.Initial;
 	}
 	
 	
 
-	private final class SimpleToken implements Token{
+	private static final class SimpleToken implements Token{
 		
-		private TokenType type;
+		private final TokenType type;
 
-		private String text;
+		private final String text;
+		
+		private final int symbol;
+		
+		SimpleToken(TokenType type, String text, int symbol) {
+			this.type = type;
+			this.text = text;
+			this.symbol = symbol;
+		}
 		
 		@Override
 		public TokenType getType() {
@@ -239,6 +337,11 @@ public class SimpleLexer {
 		public String getText() {
 			return text;
 		}
+
+		@Override
+		public int getSymbol() {
+			return symbol;
+		}
 	}
 	
 	/**
@@ -272,16 +375,17 @@ public class SimpleLexer {
 	}
 	
 	/**
-	 * 一个简单的Token流，是把一个Token列表进行了封装。
+	 * 一个简单的Token流，是把一个TokenBuffer进行了封装。
+	 * 读取位置就是Token在TokenBuffer中的下标。
 	 * @author thewangzl
 	 *
 	 */
-	private class SimpleTokenReader implements TokenReader{
+	private static class SimpleTokenReader implements TokenReader{
 
-		List<Token> tokens;
+		TokenBuffer tokens;
 		int pos = 0;
 	
-		public SimpleTokenReader(List<Token> tokens) {
+		public SimpleTokenReader(TokenBuffer tokens) {
 			this.tokens = tokens;
 		}
 
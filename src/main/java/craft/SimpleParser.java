@@ -1,19 +1,31 @@
 package craft;
 
-import java.util.ArrayList;
-import java.util.Collections;
+import craft.TypedASTNode.AssignmentNode;
+import craft.TypedASTNode.DeclarationNode;
+import craft.TypedASTNode.ExpressionNode;
+import craft.TypedASTNode.ProgramNode;
+
+import java.io.Reader;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
 import java.util.List;
 
 /**
  * 一个点单的语法解析器。
  * 能够解析简单的表达式、变量声明和初始化语句、赋值语句。
  * 它支持的语法规则为：
- * program -> intDeclare | expressionStatement | assignmentStatement
- * intDeclare -> 'int' Id ( = additive) ';'
- * expressionStatement -> additive ';'
- * additive -> multiplicative ( + | -) muliplicative)*
- * multiplicative -> primary ( (* | /) primary)*
- * primary -> IntLiteral | Id | (additive)
+ * program -> statement*
+ * statement -> intDeclare | assignmentStatement | expressionStatement
+ * intDeclare -> 'int' Id ( = expression) ';'
+ * assignmentStatement -> Id = expression ';'
+ * expressionStatement -> expression ';'
+ * expression -> primary (binaryOperator primary)*
+ * primary -> IntLiteral | Id | (expression)
+ * 二元运算符的优先级由PRECEDENCE表决定，同一优先级从左到右结合。
+ * 语句和表达式都只向前看一个Token就能决定怎么解析，不回溯。
+ * 表达式用显式的栈解析，不使用Java的递归，很长的运算链或者很深的括号嵌套也不会栈溢出。
+ * 生成的AST节点是TypedASTNode，字面量在解析时就转换成int。
  */
 public class SimpleParser {
 
@@ -55,13 +67,57 @@ public class SimpleParser {
 
 
 
+    //二元运算符的优先级，按TokenType的序号索引，数字越大结合得越紧，0表示不是二元运算符。
+    //增加运算符时在这里加上它的优先级，并在BinaryOperator中定义它的计算。
+    private static final int[] PRECEDENCE = new int[TokenType.values().length];
+
+    static {
+        PRECEDENCE[TokenType.Plus.ordinal()] = 1;
+        PRECEDENCE[TokenType.Minus.ordinal()] = 1;
+        PRECEDENCE[TokenType.Star.ordinal()] = 2;
+        PRECEDENCE[TokenType.Slash.ordinal()] = 2;
+    }
+
+    //变量名登记在这个符号表中，AST节点上记录符号的编号
+    private final SymbolTable symbols;
+
+    //表达式节点都由它创建
+    private final NodeFactory nodes;
+
+    public SimpleParser() {
+        this(new SymbolTable());
+    }
+
+    /**
+     * 使用指定的符号表，和Environment共用时，执行时可以直接用AST节点上的符号编号作为槽位
+     * @param symbols
+     */
+    public SimpleParser(SymbolTable symbols) {
+        this(symbols, NodeFactory.PLAIN);
+    }
+
+    /**
+     * 用指定的工厂创建表达式节点。使用共享节点的NodeFactory时，相同的子表达式在AST中只有一份，
+     * 这时解析器和工厂一样不能被多个线程同时使用。
+     * @param symbols
+     * @param nodes
+     */
+    public SimpleParser(SymbolTable symbols, NodeFactory nodes) {
+        this.symbols = symbols;
+        this.nodes = nodes;
+    }
+
+    public SymbolTable getSymbols() {
+        return symbols;
+    }
+
     /**
      * 解析脚本，并返回根节点
      * @param code
      * @return
      */
     public ASTNode parse(String code) throws Exception {
-        SimpleLexer lexer = new SimpleLexer();
+        SimpleLexer lexer = new SimpleLexer(symbols);
         TokenReader tokens = lexer.tokenize(code);
 
         ASTNode rootNode = this.prog(tokens);
@@ -69,86 +125,103 @@ public class SimpleParser {
     }
 
     /**
-     * 解析的入口
-     * @param tokens
+     * 从Reader中边读边解析，不需要把整个脚本读进内存
+     * @param reader
      * @return
      * @throws Exception
      */
-    private SimpleASTNode prog(TokenReader tokens) throws Exception {
-        SimpleASTNode node = new SimpleASTNode(ASTNodeType.Program, "pwc");
+    public ASTNode parse(Reader reader) throws Exception {
+        TokenReader tokens = new StreamingTokenReader(reader, StreamingTokenReader.DEFAULT_WINDOW, symbols);
 
-        while (tokens.peek() != null){
-            SimpleASTNode child = this.intDeclare(tokens);
+        ASTNode rootNode = this.prog(tokens);
+        return rootNode;
+    }
 
-            if(child == null){
-                child = this.expressionStatement(tokens);
-            }
-            if(child == null){
-                child = this.assignmentStatement(tokens);
-            }
-            if(child != null){
-                node.addChild(child);
-            }else{
-                throw new Exception("unknown statement");
-            }
-        }
-        return node;
+    /**
+     * 解析一个已经准备好的Token流，例如MappedLexer生成的Token流
+     * @param tokens
+     * @return
+     * @throws Exception
+     */
+    public ASTNode parse(TokenReader tokens) throws Exception {
+        ASTNode rootNode = this.prog(tokens);
+        return rootNode;
     }
 
     /**
-     * 表达式语句，即表达式后面跟个分号。
+     * 解析的入口
      * @param tokens
      * @return
      * @throws Exception
      */
-    private SimpleASTNode expressionStatement(TokenReader tokens) throws Exception{
-        int pos = tokens.getPosition();     //记下初始位置
-        SimpleASTNode node = this.additive(tokens);     //匹配加法规则
-        if(node != null){
-            Token token = tokens.peek();
-            if(token != null && token.getType() == TokenType.SemiColon){    //要求一定要以分号结尾
-                tokens.read();
-            }else{
-                node = null;
-                tokens.setPosition(pos);
-            }
+    private ProgramNode prog(TokenReader tokens) throws Exception {
+        ScriptEvents.ParseEvent event = new ScriptEvents.ParseEvent();
+        event.begin();
+        ProgramNode node = new ProgramNode("pwc");
+
+        while (tokens.peek() != null){
+            node.addStatement(this.statement(tokens));
         }
-        return node;    //  直接返回子节点，简化了AST
+        event.end();
+        if(event.shouldCommit()){
+            event.tokenCount = tokens.getPosition();    //读取位置就是已经读过的Token数
+            event.statementCount = node.getChildren().size();
+            event.nodeCount = ScriptEvents.countNodes(node);
+            event.commit();
+        }
+        return node;
     }
 
     /**
-     * 赋值语句
+     * 一条语句。
+     * 由第一个Token决定是哪种语句：int开头的是变量声明；标识符后面紧跟等号的是赋值语句，
+     * 否则这个标识符就是表达式的第一个操作数。整个过程只向前看，不回溯。
      * @param tokens
      * @return
      * @throws Exception
      */
-    private SimpleASTNode assignmentStatement(TokenReader tokens) throws Exception {
-        SimpleASTNode node = null;
-        Token token = tokens.peek();    //预读，看看下面是不是标识符
-        if(token != null && token.getType() == TokenType.Identifier){
+    private TypedASTNode statement(TokenReader tokens) throws Exception {
+        Token token = tokens.peek();
+        if(token.getType() == TokenType.Int){
+            return this.intDeclare(tokens);
+        }
+
+        ExpressionNode node = null;
+        if(token.getType() == TokenType.Identifier){
             token = tokens.read();  //读入标识符
-            node = new SimpleASTNode(ASTNodeType.AssignmentStmt,token.getText());
+            int symbol = this.symbolOf(token);
+            String varName = symbols.nameOf(symbol);
             token = tokens.peek();  //预读，看看下面是不是等号
             if(token != null && token.getType() == TokenType.Assignment){
-                tokens.read();  //取出等号
-                SimpleASTNode child = this.additive(tokens);
-                if(child == null){  //出错，等号右边没有一个合法的表达式
-                    throw new Exception("invaid assignment statememt, expecting an expression");
-                }else{
-                    node.addChild(child);       //添加子节点
-                    token = tokens.peek();      //预读，看看后面是不是分号
-                    if(token != null && token.getType() == TokenType.SemiColon){
-                        tokens.read();
-                    }else{          //缺少分号，报错
-                        throw new Exception("invalid statement, expecting semicolon");
-                    }
-                }
+                return this.assignmentStatement(tokens, varName, symbol);
             }
+            node = this.expression(tokens, nodes.identifier(varName, symbol));
         }else{
-            tokens.unread();        //回溯，吐出之前消化掉的标识符
-            node = null;
+            node = this.expression(tokens, null);
+            if(node == null){
+                throw new Exception("unknown statement");
+            }
         }
-        return node;
+        this.semicolon(tokens);     //表达式语句，要求一定要以分号结尾
+        return node;    //  直接返回表达式，简化了AST
+    }
+
+    /**
+     * 赋值语句，变量名已经读过了，下一个Token是等号
+     * @param tokens
+     * @param varName
+     * @param symbol
+     * @return
+     * @throws Exception
+     */
+    private AssignmentNode assignmentStatement(TokenReader tokens, String varName, int symbol) throws Exception {
+        tokens.read();  //取出等号
+        ExpressionNode child = this.expression(tokens, null);
+        if(child == null){  //出错，等号右边没有一个合法的表达式
+            throw new Exception("invaid assignment statememt, expecting an expression");
+        }
+        this.semicolon(tokens);
+        return new AssignmentNode(varName, symbol, child);
     }
 
     /**
@@ -160,175 +233,183 @@ public class SimpleParser {
      * @return
      * @throws Exception
      */
-    private SimpleASTNode intDeclare(TokenReader tokens) throws Exception {
-        SimpleASTNode node = null;
-        Token token = tokens.peek();    //预读
-        if(token != null && token.getType() == TokenType.Int){ //匹配int
-            token = tokens.read();  //消耗掉int
-            if(tokens.peek().getType() == TokenType.Identifier){    //匹配标识符
-                token = tokens.read();  //消耗掉标识符
-                //创建当前节点，并把变量名记到AST节点的文本值中
-                node = new SimpleASTNode(ASTNodeType.IntDeclaration, token.getText());
-                token = tokens.peek();  //预读
-                if(token != null && token.getType() == TokenType.Assignment){
-                    tokens.read();  //消耗掉等号
-                    SimpleASTNode child = this.additive(tokens);    //消耗一个表达式
-                    if(child == null){
-                        throw new Exception("invalide variable initialization,expecting an expression");
-                    }else{
-                        node.addChild(child);
-                    }
-                }
-            }else{
-                throw new Exception("variable name expected");
-            }
-            if(node != null){
-                token = tokens.peek();
-                if(token != null && token.getType() == TokenType.SemiColon){
-                    tokens.read();
-                }else{
-                    throw new Exception("invalid statement, expecting semicolon");
-                }
+    private DeclarationNode intDeclare(TokenReader tokens) throws Exception {
+        tokens.read();  //消耗掉int
+        Token token = tokens.peek();
+        if(token == null || token.getType() != TokenType.Identifier){    //匹配标识符
+            throw new Exception("variable name expected");
+        }
+        token = tokens.read();  //消耗掉标识符
+        int symbol = this.symbolOf(token);
+        String varName = symbols.nameOf(symbol);
+        ExpressionNode child = null;
+        token = tokens.peek();  //预读
+        if(token != null && token.getType() == TokenType.Assignment){
+            tokens.read();  //消耗掉等号
+            child = this.expression(tokens, null);    //消耗一个表达式
+            if(child == null){
+                throw new Exception("invalide variable initialization,expecting an expression");
             }
         }
-        return node;
+        this.semicolon(tokens);
+        //创建当前节点，并把变量名记到AST节点中
+        return new DeclarationNode(varName, symbol, child);
     }
 
     /**
-     * 语法解析：加法表达式
-     * 规则:add -> mul (+ mul)*
-     * 伪代码:mul();
-     *       while(next token is +){
-     *          mul()
-     *          createAddNode
-     *      }
+     * 语句结尾的分号
+     */
+    private void semicolon(TokenReader tokens) throws Exception {
+        Token token = tokens.peek();
+        if(token != null && token.getType() == TokenType.SemiColon){
+            tokens.read();
+        }else{
+            throw new Exception("invalid statement, expecting semicolon");
+        }
+    }
+
+    /**
+     * 语法解析：表达式。
+     * 规则:expr -> operand (op operand)*，operand -> IntLiteral | Id | (expr)
+     * 不用递归，而是用两个栈(调度场算法)：操作数栈保存已经解析好的子树，运算符栈保存还没有归约的运算符和左括号。
+     * 读到一个运算符时，先把栈顶优先级不低于它的运算归约成BinaryNode，所以同一优先级从左到右结合，例如2*3*4和1-2-3；
+     * 读到右括号时归约到对应的左括号为止。
+     * 每个Token只读一次，解析的时间和Token数成正比，表达式的长度和括号的嵌套深度只受堆大小的限制。
      * @param tokens
-     * @return
+     * @param first 已经读过的第一个操作数，没有时为null
+     * @return 不是以操作数或左括号开头时返回null
+     * @throws Exception
      */
-    private SimpleASTNode additive(TokenReader tokens) throws Exception {
-        SimpleASTNode child1 = this.multiplicative(tokens); //计算第一个子节点
-        SimpleASTNode node = child1;    //
-        if(child1 != null){
-            while (true){           //循环应用 add'
+    private ExpressionNode expression(TokenReader tokens, ExpressionNode first) throws Exception {
+        ExpressionNode[] operands = new ExpressionNode[4];
+        int operandCount = 0;
+        //运算符栈，levels是运算符的优先级，0表示左括号
+        BinaryOperator[] operators = new BinaryOperator[4];
+        int[] levels = new int[4];
+        int operatorCount = 0;
+        int parens = 0;     //还没有匹配的左括号
+
+        ExpressionNode operand = first;
+        while (true){
+            if(operand == null){
+                //操作数前面可以有若干个左括号
                 Token token = tokens.peek();
-                if(token != null && (token.getType() == TokenType.Plus || token.getType() == TokenType.Minus)){
-                    token = tokens.read();      //读出加号
-                    SimpleASTNode child2 = this.multiplicative(tokens);       //计算下级节点
-                    if(child2 != null) {
-                        node = new SimpleASTNode(ASTNodeType.Additive, token.getText());
-                        node.addChild(child1);          //注意，新节点在顶层，保证正确的结合性
-                        node.addChild(child2);
-                        child1 = node;
-                    }else{
-                        throw new Exception("invalid additive expression, expecting the right part.");
+                while(token != null && token.getType() == TokenType.LeftParen){
+                    tokens.read();
+                    if(operatorCount == operators.length){
+                        operators = Arrays.copyOf(operators, operatorCount * 2);
+                        levels = Arrays.copyOf(levels, operatorCount * 2);
                     }
-                }else{
-                    break;
+                    operators[operatorCount] = null;
+                    levels[operatorCount++] = 0;
+                    parens++;
+                    token = tokens.peek();
                 }
+                operand = this.primary(tokens);
+                if(operand == null){
+                    if(operatorCount == 0){
+                        return null;
+                    }
+                    if(levels[operatorCount - 1] == 0){
+                        throw new Exception("expecting an additive expression inside parenthesis");
+                    }
+                    if(operators[operatorCount - 1].getNodeType() == ASTNodeType.Multiplicative){
+                        throw new Exception("invalid multiplicative expression, expecting the right parts.");
+                    }
+                    throw new Exception("invalid additive expression, expecting the right part.");
+                }
+            }
+            if(operandCount == operands.length){
+                operands = Arrays.copyOf(operands, operandCount * 2);
+            }
+            operands[operandCount++] = operand;
+            operand = null;
+
+            //操作数后面是运算符、右括号，或者表达式到此结束
+            while (true){
+                Token token = tokens.peek();
+                int precedence = token == null ? 0 : PRECEDENCE[token.getType().ordinal()];
+                if(precedence > 0){
+                    while(operatorCount > 0 && levels[operatorCount - 1] >= precedence){
+                        operandCount = this.reduce(operands, operandCount, operators[--operatorCount]);
+                    }
+                    token = tokens.read();      //读出运算符
+                    if(operatorCount == operators.length){
+                        operators = Arrays.copyOf(operators, operatorCount * 2);
+                        levels = Arrays.copyOf(levels, operatorCount * 2);
+                    }
+                    operators[operatorCount] = BinaryOperator.of(token.getType());
+                    levels[operatorCount++] = precedence;
+                    break;      //接下来是右边的操作数
+                }
+                if(parens > 0){
+                    if(token == null || token.getType() != TokenType.RightParen){
+                        throw new Exception("expecting right parenthesis");
+                    }
+                    tokens.read();
+                    while(levels[operatorCount - 1] != 0){
+                        operandCount = this.reduce(operands, operandCount, operators[--operatorCount]);
+                    }
+                    operatorCount--;    //弹出左括号
+                    parens--;
+                    continue;   //括号里的表达式作为一个操作数，后面还可以接运算符
+                }
+                while(operatorCount > 0){
+                    operandCount = this.reduce(operands, operandCount, operators[--operatorCount]);
+                }
+                return operands[0];
             }
         }
-        return node;
     }
 
     /**
-     * 语法解析：乘法表达式
-     * @param tokens
-     * @return
+     * 用操作数栈顶的两个操作数和运算符构造BinaryNode，放回栈顶，返回新的操作数个数
      */
-    private SimpleASTNode multiplicative(TokenReader tokens) throws Exception {
-        SimpleASTNode child1 = this.primary(tokens);
-        SimpleASTNode node = child1;
+    private int reduce(ExpressionNode[] operands, int operandCount, BinaryOperator operator) {
+        ExpressionNode right = operands[--operandCount];
+        ExpressionNode left = operands[--operandCount];
+        operands[operandCount++] = nodes.binary(operator, left, right);
+        return operandCount;
+    }
 
-        Token token = tokens.peek();
-        if(child1 != null && token != null){
-            if(token.getType() == TokenType.Star || token.getType() == TokenType.Slash){
-                token = tokens.read();
-                SimpleASTNode child2 = this.primary(tokens);
-                if(child2 != null){
-                    node = new SimpleASTNode(ASTNodeType.Multiplicative, token.getText());
-                    node.addChild(child1);
-                    node.addChild(child2);
-                }else{
-                    throw new Exception("invalid multiplicative expression, expecting the right parts.");
-                }
-            }
+    /**
+     * 标识符在符号表中的编号。
+     * Token如果是由使用同一个符号表的词法分析器生成的，直接使用它记录的编号，否则按文本登记。
+     * @param token
+     * @return
+     */
+    private int symbolOf(Token token) {
+        String name = token.getText();
+        int symbol = token.getSymbol();
+        if (symbol >= 0 && symbol < symbols.size() && symbols.nameOf(symbol) == name) {
+            return symbol;
         }
-        return node;
+        return symbols.intern(name);
     }
 
     /**
-     * 语法解析：基础表达式
+     * 语法解析：基础表达式，只包括字面量和变量，括号由expression()处理
      * @param tokens
      * @return
      */
-    private SimpleASTNode primary(TokenReader tokens) throws Exception{
-        SimpleASTNode node = null;
+    private ExpressionNode primary(TokenReader tokens) throws Exception{
+        ExpressionNode node = null;
         Token token = tokens.peek();
         if(token != null){
             if(token.getType() == TokenType.IntLiteral){
                 token = tokens.read();
-                node = new SimpleASTNode(ASTNodeType.IntLiteral, token.getText());
+                try {
+                    node = nodes.literal(token.getLongValue());
+                } catch (NumberFormatException e) {
+                    throw new Exception("integer literal is too large: " + token.getText());
+                }
             } else if(token.getType() == TokenType.Identifier){
                 token = tokens.read();
-                node = new SimpleASTNode(ASTNodeType.Identifier, token.getText());
-            } else if(token.getType() == TokenType.LeftParen){
-                tokens.read();
-                node = additive(tokens);
-                if(node != null){
-                    token = tokens.peek();
-                    if(token != null && token.getType() == TokenType.RightParen){
-                        tokens.read();
-                    }else {
-                        throw new Exception("expecting right parenthesis");
-                    }
-                }else{
-                    throw new Exception("expecting an additive expression inside parenthesis");
-                }
+                int symbol = this.symbolOf(token);
+                node = nodes.identifier(symbols.nameOf(symbol), symbol);
             }
         }
-        return node;    //这个方法也做了AST的简化，就是不用构造一个primary节点，直接返回子节点。因为它只有一个子节点。
-    }
-
-    /**
-     * 一个点单的AST节点的实现
-     * 属性包括：类型、文本值、父节点、子节点。
-     */
-    private class SimpleASTNode implements  ASTNode{
-        SimpleASTNode parent= null;
-        List<ASTNode> children = new ArrayList<>();
-        List<ASTNode> readonlyChildren = Collections.unmodifiableList(children);
-        ASTNodeType nodeType = null;
-        String text = null;
-
-        public SimpleASTNode(ASTNodeType nodeType, String text){
-            this.nodeType = nodeType;
-            this.text = text;
-        }
-
-        @Override
-        public ASTNode getParent() {
-            return parent;
-        }
-
-        @Override
-        public List<ASTNode> getChildren() {
-            return readonlyChildren;
-        }
-
-        @Override
-        public ASTNodeType getType() {
-            return nodeType;
-        }
-
-        @Override
-        public String getText() {
-            return text;
-        }
-
-        public void addChild(SimpleASTNode child){
-            children.add(child);
-            child.parent = this;
-        }
+        return node;
     }
 
     /**
@@ -337,9 +418,20 @@ public class SimpleParser {
      * @param indent 缩进字符，由tab组成，每一级多一个tab
      */
     public void dumpAST(ASTNode node, String indent){
-        System.out.println(indent + node.getType() + " " + node.getText());
-        for(ASTNode child : node.getChildren()){
-            this.dumpAST(child, indent + "\t");
+        //用栈代替递归，很深的AST也不会栈溢出
+        Deque<ASTNode> nodes = new ArrayDeque<>();
+        Deque<String> indents = new ArrayDeque<>();
+        nodes.push(node);
+        indents.push(indent);
+        while(!nodes.isEmpty()){
+            node = nodes.pop();
+            indent = indents.pop();
+            System.out.println(indent + node.getType() + " " + node.getText());
+            List<ASTNode> children = node.getChildren();
+            for(int i = children.size() - 1; i >= 0; i--){
+                nodes.push(children.get(i));
+                indents.push(indent + "\t");
+            }
         }
     }
 
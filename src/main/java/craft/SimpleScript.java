@@ -1,144 +1,618 @@
 package craft;
 
+import craft.TypedASTNode.AssignmentNode;
+import craft.TypedASTNode.BinaryNode;
+import craft.TypedASTNode.DeclarationNode;
+import craft.TypedASTNode.ExpressionNode;
+import craft.TypedASTNode.IdentifierNode;
+import craft.TypedASTNode.LiteralNode;
+
 import java.io.BufferedReader;
 import java.io.InputStreamReader;
-import java.util.HashMap;
+import java.util.Arrays;
+import java.util.List;
 
 public class SimpleScript {
 
 
-    private HashMap<String,Integer> variables = new HashMap<>();
-    private static boolean verbose = false;
+    //表达式递归计算的最大深度，更深的部分用显式的栈计算
+    private static final int MAX_RECURSION = 256;
+
+    //deepCalculate()中二元运算节点的状态
+    private static final int START = 0;
+    private static final int LEFT_DONE = 1;
+    private static final int RIGHT_DONE = 2;
+
+    private Environment variables = new Environment();
+    //求值过程的监听器，每个SimpleScript对象有自己的设置，不会影响其他线程中的脚本
+    private TraceListener listener = null;
+
+    //deepCalculate()用的栈，在多次调用之间复用
+    private ASTNode[] work = new ASTNode[16];
+    //节点的深度左移两位，低两位是节点的状态
+    private int[] workStates = new int[16];
+    private long[] values = new long[16];
+
+    //整数运算的方式
+    private ArithmeticMode mode = ArithmeticMode.WRAP;
+
+    //默认的执行方式，先把AST编译成专用的节点树再执行
+    private ClosureCompiler compiler = new ClosureCompiler();
+    //最近一次prepare()的AST和编译结果，同一棵AST反复求值时不再重新编译
+    private ASTNode preparedTree = null;
+    private ClosureCompiler.Program prepared = null;
 
     /**
      * 实现一个简单的REPL
      * @param args
      */
     public static void main(String [] args){
-        if(args.length > 0 && args[0].equalsIgnoreCase("-v")){
-            verbose = true;
-            System.out.println("verbose mode");
+        boolean verbose = false;
+        ArithmeticMode mode = ArithmeticMode.WRAP;
+        for(String arg : args){
+            if(arg.equalsIgnoreCase("-v")){
+                verbose = true;
+                System.out.println("verbose mode");
+            }else if(arg.equalsIgnoreCase("-long")){
+                mode = ArithmeticMode.LONG;
+            }else if(arg.equalsIgnoreCase("-checked")){
+                mode = ArithmeticMode.CHECKED;
+            }
         }
         System.out.println("Simple script language!");
 
-        SimpleParser parser = new SimpleParser();
         SimpleScript script = new SimpleScript();
+        script.setVerbose(verbose);
+        script.setArithmeticMode(mode);
+        SimpleParser parser = new SimpleParser(script.getSymbols());     //和变量存储共用符号表
+        ConstantFolder folder = new ConstantFolder(mode);
 
         BufferedReader reader = new BufferedReader(new InputStreamReader(System.in));
+        //每行输入只做一次词法分析，语句在分号出现时立即解析和执行
+        IncrementalParser input = new IncrementalParser(parser);
 
-        String scriptText = "";
         System.out.println("\n>");       //提示符
 
         while (true){
             try {
-                String line = reader.readLine().trim();
+                String line = reader.readLine();
+                if(line == null){
+                    break;
+                }
+                line = line.trim();
                 if(line.equals("exit();")){
                     System.out.println("good bye!");
                     break;
                 }
-                scriptText += line + "\n";
-                if(line.endsWith(";")){
-                    ASTNode tree = parser.parse(scriptText);
+                input.feed(line);
+
+                boolean executed = false;
+                Number result = null;
+                ASTNode tree = null;
+                while ((tree = input.next()) != null){
                     if(verbose){
                         parser.dumpAST(tree, "");
                     }
 
-                    script.evaluate(tree, "");
+                    tree = folder.fold(tree);      //常量折叠
+                    if(verbose){
+                        System.out.println("after constant folding:");
+                        parser.dumpAST(tree, "");
+                    }
 
-                    System.out.println("\n>");  //提示符
+                    //verbose模式要逐个节点打印求值过程，其他时候编译以后执行
+                    result = verbose ? script.evaluate(tree) : script.evaluate(script.prepare(tree));
+                    executed = true;
+                }
 
-                    scriptText = "";
+                if(executed && !input.isPending()){
+                    if(!verbose){
+                        System.out.println(result);
+                    }
+
+                    System.out.println("\n>");  //提示符
                 }
 
             }catch (Exception e){
                 System.out.println(e.getMessage());
                 System.out.println("\n>"); //提示符
-                scriptText = "";
+                input.reset();
+            }
+        }
+    }
+
+    /**
+     * 打开verbose模式后，逐个节点遍历AST求值，并打印求值过程
+     * @param verbose
+     */
+    public void setVerbose(boolean verbose) {
+        this.listener = verbose ? new PrintingTraceListener(System.out) : null;
+    }
+
+    /**
+     * 设置整数运算的方式，默认是ArithmeticMode.WRAP，和Java的int一样溢出时回绕。
+     * 编译执行和遍历AST都按这个模式计算。
+     * @param mode
+     */
+    public void setArithmeticMode(ArithmeticMode mode) {
+        this.mode = mode;
+        compiler.setArithmeticMode(mode);
+        preparedTree = null;
+        prepared = null;
+    }
+
+    /**
+     * 安装求值过程的监听器，为null时取消。安装了监听器时逐个节点遍历AST求值。
+     * @param listener
+     */
+    public void setTraceListener(TraceListener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * 变量名的符号表。用它创建SimpleParser，AST上的符号编号就是变量的槽位
+     * @return
+     */
+    public SymbolTable getSymbols() {
+        return variables.getSymbols();
+    }
+
+    /**
+     * 保存变量的Environment。在它上面编译执行的程序和这个SimpleScript共用变量
+     * @return
+     */
+    Environment getEnvironment() {
+        return variables;
+    }
+
+    /**
+     * 对AST求值，返回最后一条语句的值。
+     * 变量的值会保留在当前的SimpleScript对象中。
+     * 默认先用prepare()编译再执行，同一棵AST连续求值时只编译一次；安装了监听器时逐个节点遍历AST。
+     * @param node
+     * @return 值在int范围内时是Integer，否则是Long(只在LONG模式下出现)
+     * @throws Exception
+     */
+    public Number evaluate(ASTNode node) throws Exception {
+        if(listener == null && node.getType() == ASTNodeType.Program){
+            return this.evaluate(this.prepare(node));
+        }
+        ScriptEvents.EvaluateEvent event = new ScriptEvents.EvaluateEvent();
+        event.begin();
+        Number result = this.evaluate(node, 0);
+        event.end();
+        if(event.shouldCommit()){
+            event.statementCount = node.getType() == ASTNodeType.Program ? node.getChildren().size() : 1;
+            event.nodeCount = ScriptEvents.countNodes(node);
+            event.result = String.valueOf(result);
+            event.commit();
+        }
+        return result;
+    }
+
+    /**
+     * 用ClosureCompiler按当前的ArithmeticMode编译一个Program，结果可以用evaluate(ClosureCompiler.Program)反复执行。
+     * 变量在执行时按变量名绑定，所以编译的结果也可以在别的SimpleScript上执行。
+     * 记住最近一次编译的AST，同一棵AST再次调用时直接返回上次的结果，所以AST编译以后不能再修改。
+     * @param program
+     * @return
+     * @throws Exception 不是Program，或者AST中有不能编译的节点
+     */
+    public ClosureCompiler.Program prepare(ASTNode program) throws Exception {
+        if(program.getType() != ASTNodeType.Program){
+            throw new Exception("can not prepare node: " + program.getType());
+        }
+        if(program != preparedTree){
+            prepared = compiler.compile(program);
+            preparedTree = program;
+        }
+        return prepared;
+    }
+
+    /**
+     * 执行编译好的程序，返回最后一条语句的值。变量的值会保留在当前的SimpleScript对象中。
+     * 程序按编译时的ArithmeticMode计算，不会通知监听器。
+     * @param program prepare()或者ClosureCompiler.compile(ASTNode)编译的程序
+     * @return 值在int范围内时是Integer，否则是Long(只在LONG模式下出现)
+     * @throws Exception
+     */
+    public Number evaluate(ClosureCompiler.Program program) throws Exception {
+        ScriptEvents.EvaluateEvent event = new ScriptEvents.EvaluateEvent();
+        event.begin();
+        Number result = program.execute(variables);
+        event.end();
+        if(event.shouldCommit()){
+            event.statementCount = program.statementCount();
+            event.nodeCount = program.nodeCount();
+            event.result = String.valueOf(result);
+            event.commit();
+        }
+        return result;
+    }
+
+    /**
+     * 对用数组编码的程序求值，返回最后一条语句的值。
+     * 直接在FlatAST的数组上按顺序计算，用一个值栈保存中间结果，不创建AST节点。
+     * 安装了监听器时先还原成AST，再逐个节点遍历，以便跟踪求值过程。
+     * @param program
+     * @return 值在int范围内时是Integer，否则是Long(只在LONG模式下出现)
+     * @throws Exception
+     */
+    public Number evaluate(FlatAST program) throws Exception {
+        if(listener != null){
+            return this.evaluate(program.toTree());
+        }
+        ScriptEvents.EvaluateEvent event = new ScriptEvents.EvaluateEvent();
+        event.begin();
+        if(values.length < program.maxDepth){
+            values = new long[program.maxDepth];
+        }
+        Number result = null;
+        for(int i = 0; i < program.statements.length; i++){
+            ScriptEvents.StatementEvent statementEvent = new ScriptEvents.StatementEvent();
+            statementEvent.begin();
+            result = this.execute(program, program.statements[i]);
+            statementEvent.end();
+            if(statementEvent.shouldCommit()){
+                int root = program.statements[i];
+                statementEvent.index = i;
+                statementEvent.statementType = FlatAST.typeOf(program.kinds[root]).name();
+                statementEvent.nodeCount = root - program.starts[root] + 1;
+                statementEvent.result = String.valueOf(result);
+                statementEvent.commit();
+            }
+        }
+        event.end();
+        if(event.shouldCommit()){
+            event.statementCount = program.statements.length;
+            event.nodeCount = program.size() + 1;
+            event.result = String.valueOf(result);
+            event.commit();
+        }
+        return result;
+    }
+
+    /**
+     * 执行根节点在root位置的一条语句，检查和赋值的顺序与遍历AST时相同
+     */
+    private Number execute(FlatAST program, int root) throws Exception {
+        int kind = program.kinds[root];
+        if(kind < FlatAST.DECLARE){
+            return this.box(this.calculate(program, program.starts[root], root));
+        }
+        int symbol = program.payloads[root];
+        int slot = variables.slotOf(symbol, program.getSymbols().nameOf(symbol));
+        if(kind == FlatAST.DECLARE){
+            variables.declare(slot);
+            return null;
+        }
+        if(kind == FlatAST.ASSIGN){
+            variables.checkDeclared(slot);
+        }
+        long result = this.calculate(program, program.starts[root], root - 1);
+        variables.storeLong(slot, result);
+        return this.box(result);
+    }
+
+    /**
+     * 计算数组中from到to这一段表达式节点。节点是后序排列的，按顺序计算就是先左后右
+     */
+    private long calculate(FlatAST program, int from, int to) throws Exception {
+        int[] kinds = program.kinds;
+        int[] payloads = program.payloads;
+        long[] values = this.values;
+        //和变量存储共用符号表时，符号编号就是槽位
+        boolean sameSymbols = program.getSymbols() == variables.getSymbols();
+        int count = 0;
+        for(int i = from; i <= to; i++){
+            int kind = kinds[i];
+            if(kind == FlatAST.LITERAL){
+                values[count++] = payloads[i];
+            }else if(kind == FlatAST.LOAD){
+                int symbol = payloads[i];
+                int slot = sameSymbols ? symbol : variables.slotOf(symbol, program.getSymbols().nameOf(symbol));
+                values[count++] = mode == ArithmeticMode.WRAP ? variables.load(slot) : mode.normalize(variables.loadLong(slot));
+            }else if(kind == FlatAST.WIDE_LITERAL){
+                values[count++] = mode.normalize(program.constants[payloads[i]]);
+            }else{
+                long value2 = values[--count];
+                long value1 = values[count - 1];
+                BinaryOperator operator = FlatAST.operatorOf(kind);
+                values[count - 1] = mode == ArithmeticMode.WRAP ? operator.apply((int) value1, (int) value2)
+                        : operator.apply(value1, value2, mode);
             }
         }
+        return values[0];
     }
 
     /**
      * 遍历AST， 计算值。
+     * 按getType()和getChildren()处理任意的ASTNode，SimpleParser生成的TypedASTNode直接读取它的字段。
+     * 语句的值可能为null，表达式的值由calculate()按当前的ArithmeticMode计算。
      * @param node
-     * @param indent
+     * @param depth 节点的深度，只用于通知监听器
      * @return
      */
-    private Integer evaluate(ASTNode node, String indent) throws Exception {
-        Integer result =  null;
-        if(verbose){
-            System.out.println(indent +"Calculating:" + node.getType());
+    Number evaluate(ASTNode node, int depth) throws Exception {
+        if(isExpression(node)){
+            return this.box(this.calculate(node, depth));
+        }
+        Number result =  null;
+        if(listener != null){
+            listener.enter(node, depth);
         }
         switch (node.getType()){
             case Program:
+                int index = 0;
                 for(ASTNode child : node.getChildren()){
-                    result = this.evaluate(child, indent + "\t");
+                    ScriptEvents.StatementEvent event = new ScriptEvents.StatementEvent();
+                    event.begin();
+                    result = this.evaluate(child, depth + 1);
+                    event.end();
+                    if(event.shouldCommit()){
+                        event.index = index;
+                        event.statementType = child.getType().name();
+                        event.nodeCount = ScriptEvents.countNodes(child);
+                        event.result = String.valueOf(result);
+                        event.commit();
+                    }
+                    index++;
                 }
                 break;
-            case Additive:
-                ASTNode child1 = node.getChildren().get(0);
-                int value1 = this.evaluate(child1, indent + "\t");
-                ASTNode child2 = node.getChildren().get(1);
-                int value2 = this.evaluate(child2, indent + "\t");
-                if(node.getText().equalsIgnoreCase("+")){
-                    result = value1 + value2;
-                }else {
-                    result = value1 - value2;
-                }
+            case AssignmentStmt:
+                int slot = this.slotOf(node);
+                variables.checkDeclared(slot);
+                result = this.assign(slot, valueOf(node), depth);
                 break;
-            case Multiplicative:
-                child1 = node.getChildren().get(0);
-                value1 = this.evaluate(child1, indent + "\t");
-                child2 = node.getChildren().get(1);
-                value2 = this.evaluate(child2, indent + "\t");
-                if(node.getText().equalsIgnoreCase("*")){
-                    result = value1 * value2;
-                }else {
-                    result = value1 / value2;
-                }
+            case IntDeclaration:
+                slot = this.slotOf(node);
+                result = this.assign(slot, valueOf(node), depth);
                 break;
-            case IntLiteral:
-                result = Integer.valueOf(node.getText()).intValue();
+            case ExpressionStmt:
+                result = this.evaluate(node.getChildren().get(0), depth + 1);
                 break;
+            default:
+                throw new Exception("can not evaluate node: " + node.getType());
+        }
+        if(listener != null){
+            listener.exit(node, depth, result);
+        }
+        return result;
+    }
+
+    /**
+     * 给变量赋值，没有值时只声明变量
+     */
+    private Number assign(int slot, ASTNode value, int depth) throws Exception {
+        if(value == null){
+            variables.declare(slot);
+            return null;
+        }
+        long result = this.calculate(value, depth + 1);
+        variables.storeLong(slot, result);
+        return this.box(result);
+    }
+
+    /**
+     * 在int范围内的值用Integer表示，否则用Long
+     */
+    private Number box(long value) {
+        if((int) value == value){
+            return (int) value;
+        }
+        return value;
+    }
+
+    /**
+     * 变量声明、赋值语句或者变量引用的槽位。TypedASTNode上有符号编号，其他节点按getText()的变量名查找
+     */
+    private int slotOf(ASTNode node) {
+        if(node instanceof IdentifierNode){
+            return variables.slotOf(((IdentifierNode) node).getSymbol(), node.getText());
+        }else if(node instanceof DeclarationNode){
+            return variables.slotOf(((DeclarationNode) node).getSymbol(), node.getText());
+        }else if(node instanceof AssignmentNode){
+            return variables.slotOf(((AssignmentNode) node).getSymbol(), node.getText());
+        }
+        return variables.slotOf(node.getText());
+    }
+
+    /**
+     * 变量声明或赋值语句中的表达式，没有初始化时返回null
+     */
+    private static ASTNode valueOf(ASTNode statement) {
+        if(statement instanceof DeclarationNode){
+            return ((DeclarationNode) statement).getInit();
+        }else if(statement instanceof AssignmentNode){
+            return ((AssignmentNode) statement).getValue();
+        }
+        List<ASTNode> children = statement.getChildren();
+        return children.isEmpty() ? null : children.get(0);
+    }
+
+    private static boolean isExpression(ASTNode node) {
+        if(node instanceof TypedASTNode){
+            return node instanceof ExpressionNode;
+        }
+        switch (node.getType()){
+            case Additive:
+            case Multiplicative:
+            case Primary:
             case Identifier:
-                String varName = node.getText();
-                if(variables.containsKey(varName)){
-                    Integer value = variables.get(varName);
-                    if(value != null){
-                        result = value.intValue();
-                    }else{
-                        throw new Exception("variable " + varName + " has not been set any value");
-                    }
-                }else{
-                    throw new Exception("unknown variable:"+varName);
+            case IntLiteral:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * 二元运算的节点，Primary节点已经去掉
+     */
+    private static boolean isBinary(ASTNode node) {
+        if(node instanceof TypedASTNode){
+            return node instanceof BinaryNode;
+        }
+        ASTNodeType type = node.getType();
+        return type == ASTNodeType.Additive || type == ASTNodeType.Multiplicative;
+    }
+
+    //Primary节点只是把子表达式括起来，求值时跳过
+    private static ASTNode skipPrimary(ASTNode node) {
+        while(!(node instanceof TypedASTNode) && node.getType() == ASTNodeType.Primary){
+            node = node.getChildren().get(0);
+        }
+        return node;
+    }
+
+    private static ASTNode leftOf(ASTNode node) {
+        if(node instanceof BinaryNode){
+            return ((BinaryNode) node).getLeft();
+        }
+        return skipPrimary(node.getChildren().get(0));
+    }
+
+    private static ASTNode rightOf(ASTNode node) {
+        if(node instanceof BinaryNode){
+            return ((BinaryNode) node).getRight();
+        }
+        return skipPrimary(node.getChildren().get(1));
+    }
+
+    private static BinaryOperator operatorOf(ASTNode node) throws Exception {
+        if(node instanceof BinaryNode){
+            return ((BinaryNode) node).getOperator();
+        }
+        BinaryOperator operator = BinaryOperator.of(node.getText());
+        if(operator == null){
+            throw new Exception("can not evaluate node: " + node.getType() + " " + node.getText());
+        }
+        return operator;
+    }
+
+    /**
+     * 计算表达式的值。
+     * 一般的表达式递归计算；深度超过MAX_RECURSION的子树交给deepCalculate()，用显式的栈计算，
+     * 所以表达式的深度只受堆大小的限制，不受线程栈大小的限制。
+     * @param node
+     * @param depth
+     * @return
+     * @throws Exception
+     */
+    private long calculate(ASTNode node, int depth) throws Exception {
+        node = skipPrimary(node);
+        if(!isBinary(node)){
+            return this.leaf(node, depth);
+        }
+        if(depth >= MAX_RECURSION){
+            return this.deepCalculate(node, depth);
+        }
+        if(listener != null){
+            listener.enter(node, depth);
+        }
+        long value1 = this.calculate(leftOf(node), depth + 1);
+        long value2 = this.calculate(rightOf(node), depth + 1);
+        BinaryOperator operator = operatorOf(node);
+        long result = mode == ArithmeticMode.WRAP ? operator.apply((int) value1, (int) value2)
+                : operator.apply(value1, value2, mode);
+        if(listener != null){
+            listener.exit(node, depth, this.box(result));
+        }
+        return result;
+    }
+
+    /**
+     * 不用递归，按后序遍历的顺序用显式的栈计算：work栈保存还没有算完的二元运算节点和它们的状态，
+     * values栈保存已经算出的值。变量和字面量不进栈，轮到它们时直接算出来。
+     * 求值顺序和递归时一样，先左后右。
+     * @param root
+     * @param rootDepth
+     * @return
+     * @throws Exception
+     */
+    private long deepCalculate(ASTNode root, int rootDepth) throws Exception {
+        ASTNode[] work = this.work;
+        int[] states = this.workStates;
+        long[] values = this.values;
+        int top = 0;
+        int count = 0;
+        work[top] = root;
+        states[top++] = rootDepth << 2;
+        while (top > 0){
+            ASTNode node = work[--top];
+            int depth = states[top] >>> 2;
+            int state = states[top] & 3;
+            if(top + 2 > work.length){
+                this.work = work = Arrays.copyOf(work, work.length * 2);
+                this.workStates = states = Arrays.copyOf(states, work.length);
+            }
+            if(count + 2 > values.length){
+                this.values = values = Arrays.copyOf(values, values.length * 2);
+            }
+            if(state == START){
+                if(listener != null){
+                    listener.enter(node, depth);
                 }
-                break;
-            case AssignmentStmt:
-                varName = node.getText();
-                if(!variables.containsKey(varName)){
-                    throw new Exception("unknown variable: " + varName);
+                work[top] = node;
+                states[top++] = depth << 2 | LEFT_DONE;
+                ASTNode left = leftOf(node);
+                if(isBinary(left)){
+                    work[top] = left;
+                    states[top++] = (depth + 1) << 2;
+                }else{
+                    values[count++] = this.leaf(left, depth + 1);
                 }
-                //接着下面的代码
-            case IntDeclaration:
-                varName = node.getText();
-                Integer varValue = null;
-                if(node.getChildren().size() > 0){
-                    ASTNode child = node.getChildren().get(0);
-                    result = this.evaluate(child, indent + "\t" );
-                    varValue = Integer.valueOf(result);
+                continue;
+            }
+            long value2;
+            if(state == LEFT_DONE){
+                ASTNode right = rightOf(node);
+                if(isBinary(right)){
+                    work[top] = node;
+                    states[top++] = depth << 2 | RIGHT_DONE;
+                    work[top] = right;
+                    states[top++] = (depth + 1) << 2;
+                    continue;
                 }
-                variables.put(varName, varValue);
-                break;
-            default:
-        }
-        if(verbose){
-            System.out.println(indent + "Result:" + result);
-        }else if(indent.equals("")){    //顶层的语句
-            if(node.getType() == ASTNodeType.IntDeclaration || node.getType() == ASTNodeType.AssignmentStmt){
-                System.out.println(node.getText() + ": " +  result);
-            }else if(node.getType() == ASTNodeType.Program){
-                System.out.println(result);
+                value2 = this.leaf(right, depth + 1);
+            }else{
+                value2 = values[--count];
             }
+            work[top] = null;       //不保留对AST的引用
+            long value1 = values[--count];
+            BinaryOperator operator = operatorOf(node);
+            long result = mode == ArithmeticMode.WRAP ? operator.apply((int) value1, (int) value2)
+                    : operator.apply(value1, value2, mode);
+            if(listener != null){
+                listener.exit(node, depth, this.box(result));
+            }
+            values[count++] = result;
+        }
+        return values[0];
+    }
+
+    /**
+     * 变量或字面量的值，已经按当前的模式转换过
+     */
+    private long leaf(ASTNode node, int depth) throws Exception {
+        if(listener != null){
+            listener.enter(node, depth);
+        }
+        long result;
+        if(node instanceof LiteralNode){
+            LiteralNode literal = (LiteralNode) node;
+            result = mode == ArithmeticMode.WRAP ? literal.getValue() : mode.normalize(literal.getLongValue());
+        }else if(node.getType() == ASTNodeType.IntLiteral){
+            result = mode.normalize(LiteralNode.valueOf(node));
+        }else if(node.getType() == ASTNodeType.Identifier){
+            int slot = this.slotOf(node);
+            //WRAP模式下只需要int的值，Environment里保存的低32位就是回绕后的值
+            result = mode == ArithmeticMode.WRAP ? variables.load(slot) : mode.normalize(variables.loadLong(slot));
+        }else{
+            throw new Exception("can not evaluate node: " + node.getType());
+        }
+        if(listener != null){
+            listener.exit(node, depth, this.box(result));
         }
         return result;
     }
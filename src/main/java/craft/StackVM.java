@@ -0,0 +1,275 @@
+package craft;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+
+/**
+ * 一个基于栈的虚拟机。
+ * 先把AST编译成一个紧凑的int[]指令流，再用一个简单的循环逐条执行。
+ * 操作数栈也是一个int数组，执行过程中不创建对象。
+ *
+ * 指令流的格式：code[0]是操作数栈需要的最大深度，后面是指令，
+ * 每条指令占一个int，带操作数的指令后面紧跟一个int的操作数。
+ * 变量的操作数是Environment中的槽位。
+ */
+public class StackVM {
+
+    public static void main(String[] args) throws Exception {
+        SimpleParser parser = new SimpleParser();
+        StackVM vm = new StackVM();
+        Environment env = new Environment();
+
+        String script = "int age = 45 + 2; age = 20; int b; age + 10 *2;";
+        System.out.println("编译：" + script);
+        ASTNode tree = parser.parse(script);
+        parser.dumpAST(tree, "");
+
+        int[] code = vm.compile(tree, env);
+        vm.disassemble(code, env);
+        System.out.println(vm.run(code, env));
+    }
+
+    public static final int PUSH_CONST = 0;    //把操作数压栈
+    public static final int LOAD = 1;          //把变量的值压栈
+    public static final int STORE = 2;         //把栈顶的值存到变量中，栈顶保持不变
+    public static final int DECLARE = 3;       //声明变量，但不赋值
+    public static final int CHECK = 4;         //检查变量是否已经声明
+    public static final int ADD = 5;
+    public static final int SUB = 6;
+    public static final int MUL = 7;
+    public static final int DIV = 8;
+    public static final int POP = 9;           //弹出栈顶，作为当前语句的值
+    public static final int CLEAR = 10;        //当前语句没有值
+
+    private static final String[] NAMES = {
+            "PUSH_CONST", "LOAD", "STORE", "DECLARE", "CHECK",
+            "ADD", "SUB", "MUL", "DIV", "POP", "CLEAR"
+    };
+
+    /**
+     * 编译一个Program，变量名解析为env中的槽位
+     * @param program
+     * @param env
+     * @return
+     * @throws Exception
+     */
+    public int[] compile(ASTNode program, Environment env) throws Exception {
+        CodeBuffer code = new CodeBuffer();
+        code.emit(0);   //最大栈深度，最后再填
+        for (ASTNode child : program.getChildren()) {
+            this.statement(child, env, code);
+        }
+        code.code[0] = code.maxStack;
+        return code.toArray();
+    }
+
+    private void statement(ASTNode node, Environment env, CodeBuffer code) throws Exception {
+        switch (node.getType()) {
+            case IntDeclaration:
+                int slot = env.slotOf(node.getText());
+                if (node.getChildren().size() > 0) {
+                    this.expression(node.getChildren().get(0), env, code);
+                    code.emit(STORE, slot);
+                    code.emit(POP);
+                    code.pop();
+                } else {
+                    code.emit(DECLARE, slot);
+                    code.emit(CLEAR);
+                }
+                break;
+            case AssignmentStmt:
+                slot = env.slotOf(node.getText());
+                code.emit(CHECK, slot);
+                this.expression(node.getChildren().get(0), env, code);
+                code.emit(STORE, slot);
+                code.emit(POP);
+                code.pop();
+                break;
+            case ExpressionStmt:
+                this.expression(node.getChildren().get(0), env, code);
+                code.emit(POP);
+                code.pop();
+                break;
+            default:
+                this.expression(node, env, code);
+                code.emit(POP);
+                code.pop();
+        }
+    }
+
+    /**
+     * 按后序遍历的顺序生成表达式的指令，用显式的栈处理，很深的表达式也不会栈溢出
+     */
+    private void expression(ASTNode root, Environment env, CodeBuffer code) throws Exception {
+        //还要处理的节点，expanded表示子节点已经压栈，再次出栈时生成运算指令
+        Deque<ASTNode> nodes = new ArrayDeque<>();
+        Deque<Boolean> expanded = new ArrayDeque<>();
+        nodes.push(root);
+        expanded.push(false);
+        while (!nodes.isEmpty()) {
+            ASTNode node = nodes.pop();
+            boolean children = expanded.pop();
+            switch (node.getType()) {
+                case Additive:
+                case Multiplicative:
+                    if (!children) {
+                        nodes.push(node);
+                        expanded.push(true);
+                        nodes.push(node.getChildren().get(1));
+                        expanded.push(false);
+                        nodes.push(node.getChildren().get(0));
+                        expanded.push(false);
+                    } else {
+                        //ADD、SUB、MUL、DIV和BinaryOperator的顺序一样
+                        code.emit(ADD + BinaryOperator.of(node).ordinal());
+                        code.pop();
+                    }
+                    break;
+                case IntLiteral:
+                    //操作数栈是int，和WRAP模式一样，超出int范围的字面量按32位回绕
+                    code.emit(PUSH_CONST, (int) TypedASTNode.LiteralNode.valueOf(node));
+                    code.push();
+                    break;
+                case Identifier:
+                    code.emit(LOAD, env.slotOf(node.getText()));
+                    code.push();
+                    break;
+                case Primary:
+                    nodes.push(node.getChildren().get(0));
+                    expanded.push(false);
+                    break;
+                default:
+                    throw new Exception("can not compile node: " + node.getType());
+            }
+        }
+    }
+
+    /**
+     * 执行指令流，返回最后一条语句的值
+     * @param code
+     * @param env
+     * @return
+     * @throws Exception
+     */
+    public Integer run(int[] code, Environment env) throws Exception {
+        int[] stack = new int[code[0]];
+        int sp = 0;
+        int result = 0;
+        boolean hasResult = false;
+        int pc = 1;
+        int length = code.length;
+        while (pc < length) {
+            switch (code[pc++]) {
+                case PUSH_CONST:
+                    stack[sp++] = code[pc++];
+                    break;
+                case LOAD:
+                    stack[sp++] = env.load(code[pc++]);
+                    break;
+                case STORE:
+                    env.store(code[pc++], stack[sp - 1]);
+                    break;
+                case DECLARE:
+                    env.declare(code[pc++]);
+                    break;
+                case CHECK:
+                    env.checkDeclared(code[pc++]);
+                    break;
+                case ADD:
+                    sp--;
+                    stack[sp - 1] = stack[sp - 1] + stack[sp];
+                    break;
+                case SUB:
+                    sp--;
+                    stack[sp - 1] = stack[sp - 1] - stack[sp];
+                    break;
+                case MUL:
+                    sp--;
+                    stack[sp - 1] = stack[sp - 1] * stack[sp];
+                    break;
+                case DIV:
+                    sp--;
+                    stack[sp - 1] = BinaryOperator.divide(stack[sp - 1], stack[sp]);
+                    break;
+                case POP:
+                    result = stack[--sp];
+                    hasResult = true;
+                    break;
+                case CLEAR:
+                    hasResult = false;
+                    break;
+                default:
+                    throw new Exception("invalid instruction at " + (pc - 1));
+            }
+        }
+        return hasResult ? Integer.valueOf(result) : null;
+    }
+
+    /**
+     * 打印输出指令流，变量的槽位同时显示变量名
+     * @param code
+     * @param env
+     */
+    public void disassemble(int[] code, Environment env) {
+        System.out.println("max stack " + code[0]);
+        int pc = 1;
+        while (pc < code.length) {
+            int opcode = code[pc];
+            StringBuilder line = new StringBuilder(String.format("%04d\t%s", pc, NAMES[opcode]));
+            pc++;
+            switch (opcode) {
+                case PUSH_CONST:
+                    line.append(' ').append(code[pc++]);
+                    break;
+                case LOAD:
+                case STORE:
+                case DECLARE:
+                case CHECK:
+                    int slot = code[pc++];
+                    line.append(' ').append(slot).append("\t//").append(env.nameOf(slot));
+                    break;
+                default:
+            }
+            System.out.println(line);
+        }
+    }
+
+    /**
+     * 编译时使用的指令缓冲区，同时跟踪操作数栈的深度
+     */
+    private static class CodeBuffer {
+        int[] code = new int[64];
+        int length = 0;
+        int stack = 0;
+        int maxStack = 0;
+
+        void emit(int value) {
+            if (length == code.length) {
+                code = Arrays.copyOf(code, length * 2);
+            }
+            code[length++] = value;
+        }
+
+        void emit(int opcode, int operand) {
+            this.emit(opcode);
+            this.emit(operand);
+        }
+
+        void push() {
+            stack++;
+            if (stack > maxStack) {
+                maxStack = stack;
+            }
+        }
+
+        void pop() {
+            stack--;
+        }
+
+        int[] toArray() {
+            return Arrays.copyOf(code, length);
+        }
+    }
+
+}
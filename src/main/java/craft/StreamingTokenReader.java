@@ -0,0 +1,177 @@
+package craft;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.UncheckedIOException;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 一个按需做词法分析的Token流。
+ * 每次需要新的Token时才从Reader中读入字符，交给SimpleLexer的状态机处理，
+ * 不需要把整个脚本读进内存，也不需要事先生成全部Token。
+ *
+ * 为了支持SimpleParser的回溯(peek/unread/setPosition)，最近读过的Token保存在一个固定大小的窗口中。
+ * 窗口的大小决定了最多能回退多少个Token，超出窗口时抛出IllegalStateException。
+ * 内存占用只和窗口大小有关，和脚本的长度无关。
+ */
+public class StreamingTokenReader implements TokenReader {
+
+    public static void main(String[] args) {
+        String script = "int age = 45 + 2; age = 20; age + 10 *2;";
+        System.out.println("parse:" + script);
+        TokenReader tokens = new StreamingTokenReader(new StringReader(script));
+        System.out.println("text\t\ttype");
+        Token token = null;
+        while ((token = tokens.read()) != null) {
+            System.out.println(token.getText() + "\t\t" + token.getType());
+        }
+    }
+
+    //默认的窗口大小
+    public static final int DEFAULT_WINDOW = 256;
+
+    private static final int BUFFER_SIZE = 8192;
+
+    private final Reader reader;
+    private final char[] buffer = new char[BUFFER_SIZE];
+    private int bufferPos = 0;
+    private int bufferLength = 0;
+    private boolean eof = false;
+
+    private final SimpleLexer lexer;
+    //状态机新产生、还没有放进窗口的Token
+    private final List<Token> pending = new ArrayList<>();
+    private int pendingPos = 0;
+
+    //窗口，保存位置在[base, fetched)之间的Token
+    private final Token[] window;
+    private int base = 0;
+    private int fetched = 0;
+
+    private int pos = 0;
+
+    public StreamingTokenReader(Reader reader) {
+        this(reader, DEFAULT_WINDOW);
+    }
+
+    public StreamingTokenReader(Reader reader, int windowSize) {
+        this(reader, windowSize, new SymbolTable());
+    }
+
+    /**
+     * 标识符登记在指定的符号表中
+     * @param reader
+     * @param windowSize
+     * @param symbols
+     */
+    public StreamingTokenReader(Reader reader, int windowSize, SymbolTable symbols) {
+        this.reader = reader;
+        this.window = new Token[windowSize];
+        this.lexer = new SimpleLexer(symbols);
+        lexer.begin(pending);
+    }
+
+    public StreamingTokenReader(ReadableByteChannel channel) {
+        this(Channels.newReader(channel, StandardCharsets.UTF_8.newDecoder(), BUFFER_SIZE), DEFAULT_WINDOW);
+    }
+
+    @Override
+    public Token read() {
+        if (pos < fetched || this.fetch()) {
+            return window[pos++ % window.length];
+        }
+        return null;
+    }
+
+    @Override
+    public Token peek() {
+        if (pos < fetched || this.fetch()) {
+            return window[pos % window.length];
+        }
+        return null;
+    }
+
+    @Override
+    public void unread() {
+        if (pos > 0) {
+            this.checkWindow(pos - 1);
+            pos--;
+        }
+    }
+
+    @Override
+    public int getPosition() {
+        return pos;
+    }
+
+    @Override
+    public void setPosition(int position) {
+        if (position < 0) {
+            return;
+        }
+        this.checkWindow(position);
+        while (position >= fetched) {
+            if (!this.fetch()) {
+                return;     //超出了Token流的范围，和SimpleTokenReader一样忽略
+            }
+        }
+        pos = position;
+    }
+
+    private void checkWindow(int position) {
+        if (position < base) {
+            throw new IllegalStateException("can not backtrack to token " + position
+                    + ", lookahead window only holds tokens from " + base);
+        }
+    }
+
+    /**
+     * 解析出下一个Token放进窗口，如果已经没有Token了返回false
+     */
+    private boolean fetch() {
+        while (pendingPos == pending.size()) {
+            pending.clear();
+            pendingPos = 0;
+            if (eof) {
+                return false;
+            }
+            if (bufferPos == bufferLength) {
+                this.fill();
+                if (eof) {
+                    lexer.finish();
+                    continue;
+                }
+            }
+            while (bufferPos < bufferLength && pending.isEmpty()) {
+                lexer.feed(buffer[bufferPos++]);
+            }
+        }
+        Token token = pending.get(pendingPos);
+        pending.set(pendingPos++, null);
+        if (fetched - base == window.length) {
+            base++;     //丢掉最早的Token
+        }
+        window[fetched++ % window.length] = token;
+        return true;
+    }
+
+    private void fill() {
+        try {
+            int n = reader.read(buffer, 0, buffer.length);
+            if (n < 0) {
+                eof = true;
+            } else {
+                bufferPos = 0;
+                bufferLength = n;
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+}
@@ -0,0 +1,146 @@
+package craft;
+
+import java.util.Arrays;
+
+/**
+ * 符号表，把标识符登记为从0开始连续编号的符号。
+ * 同一个名字只保存一个String，词法分析、语法分析和运行时共用同一个符号表，
+ * 比较两个标识符只需要比较编号。Environment直接用符号的编号作为变量的槽位。
+ *
+ * 查找用开放定址的哈希表，可以直接拿源代码中的一段字符来查，不需要先截取成String。
+ * 符号表可以被多个线程共用：登记和查找是同步的，nameOf()和size()不加锁，
+ * 新的名字先写进数组，再更新count，读到count的线程一定能看到对应的名字。
+ */
+public class SymbolTable {
+
+    public static void main(String[] args) {
+        SymbolTable symbols = new SymbolTable();
+        String script = "age + age2 * age";
+        for (String name : script.split("[^a-zA-Z0-9]+")) {
+            System.out.println(name + "\t" + symbols.intern(name));
+        }
+        System.out.println("symbols: " + symbols.size());
+    }
+
+    private volatile String[] names = new String[16];
+    private int[] hashes = new int[16];
+    private volatile int count = 0;
+
+    //哈希表，保存 符号编号+1，0表示空位
+    private int[] table = new int[32];
+
+    /**
+     * 登记一个名字，返回它的编号。已经登记过的名字返回原来的编号。
+     * @param name
+     * @return
+     */
+    public int intern(String name) {
+        return this.intern(name, 0, name.length());
+    }
+
+    /**
+     * 登记源代码中从start开始、长度为length的一段字符，只在第一次登记时创建String
+     * @param source
+     * @param start
+     * @param length
+     * @return
+     */
+    public synchronized int intern(CharSequence source, int start, int length) {
+        int hash = this.hash(source, start, length);
+        int mask = table.length - 1;
+        int i = hash & mask;
+        while (table[i] != 0) {
+            int symbol = table[i] - 1;
+            if (hashes[symbol] == hash && this.matches(names[symbol], source, start, length)) {
+                return symbol;
+            }
+            i = (i + 1) & mask;
+        }
+
+        int symbol = count;
+        String[] array = names;
+        if (symbol == array.length) {
+            array = Arrays.copyOf(array, symbol * 2);
+            hashes = Arrays.copyOf(hashes, symbol * 2);
+        }
+        array[symbol] = source.subSequence(start, start + length).toString();
+        hashes[symbol] = hash;
+        table[i] = symbol + 1;
+        names = array;
+        count = symbol + 1;     //最后发布
+        if (count * 2 > table.length) {
+            this.rehash();
+        }
+        return symbol;
+    }
+
+    /**
+     * 查找一个名字的编号，没有登记过返回-1
+     * @param name
+     * @return
+     */
+    public synchronized int lookup(String name) {
+        int hash = this.hash(name, 0, name.length());
+        int mask = table.length - 1;
+        int i = hash & mask;
+        while (table[i] != 0) {
+            int symbol = table[i] - 1;
+            if (hashes[symbol] == hash && names[symbol].equals(name)) {
+                return symbol;
+            }
+            i = (i + 1) & mask;
+        }
+        return -1;
+    }
+
+    /**
+     * 符号对应的名字
+     * @param symbol
+     * @return
+     */
+    public String nameOf(int symbol) {
+        return names[symbol];
+    }
+
+    /**
+     * 已经登记的符号数量
+     * @return
+     */
+    public int size() {
+        return count;
+    }
+
+    //和String.hashCode()的算法相同，再把高位混合进来
+    private int hash(CharSequence source, int start, int length) {
+        int h = 0;
+        for (int i = start; i < start + length; i++) {
+            h = 31 * h + source.charAt(i);
+        }
+        return h ^ (h >>> 16);
+    }
+
+    private boolean matches(String name, CharSequence source, int start, int length) {
+        if (name.length() != length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (name.charAt(i) != source.charAt(start + i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void rehash() {
+        table = new int[table.length * 2];
+        int mask = table.length - 1;
+        for (int symbol = 0; symbol < count; symbol++) {
+            int i = hashes[symbol] & mask;
+            while (table[i] != 0) {
+                i = (i + 1) & mask;
+            }
+            table[i] = symbol + 1;
+        }
+    }
+
+}
@@ -0,0 +1,180 @@
+package craft;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 表驱动的词法分析器，由LexerGenerator生成。
+ * 状态转移表是一个 状态 × 字符类 的二维表，按行存放在一个int数组中。
+ * 识别Token时每个字符先查字符类，再查一次转移表，取最长的匹配。
+ *
+ * 和SimpleLexer不同，它按规格完整地识别关键字(int、if、else)和所有运算符，
+ * 不能识别的字符被跳过。
+ */
+public class TableLexer {
+
+    //ASCII字符 -> 字符类
+    private final int[] charClass;
+    private final int classes;
+    //状态 × 字符类 -> 下一个状态，-1表示没有转移
+    private final int[] table;
+    //状态接受的规则，-1表示不是接受状态
+    private final int[] accept;
+    //规则对应的Token类型，null表示跳过
+    private final TokenType[] types;
+
+    TableLexer(int[] charClass, int classes, int[] table, int[] accept, TokenType[] types) {
+        this.charClass = charClass;
+        this.classes = classes;
+        this.table = table;
+        this.accept = accept;
+        this.types = types;
+    }
+
+    /**
+     * 把字符串解析成Token流
+     * @param code
+     * @return
+     */
+    public TokenReader tokenize(String code) {
+        List<Token> tokens = new ArrayList<>();
+        int length = code.length();
+        int other = classes - 1;
+        int pos = 0;
+        while (pos < length) {
+            int state = 0;
+            int rule = -1;
+            int end = pos;
+            for (int i = pos; i < length; i++) {
+                char ch = code.charAt(i);
+                state = table[state * classes + (ch < LexerGenerator.ALPHABET ? charClass[ch] : other)];
+                if (state < 0) {
+                    break;
+                }
+                if (accept[state] >= 0) {
+                    rule = accept[state];
+                    end = i + 1;
+                }
+            }
+            if (rule < 0) {
+                pos++;      //跳过不认识的字符
+            } else {
+                if (types[rule] != null) {
+                    tokens.add(new TableToken(types[rule], code.substring(pos, end)));
+                }
+                pos = end;
+            }
+        }
+        return new TableTokenReader(tokens);
+    }
+
+    /**
+     * 打印输出字符类和状态转移表
+     */
+    public void dumpTable() {
+        int states = accept.length;
+        System.out.println("states: " + states + ", char classes: " + classes);
+        System.out.println("class\tchars");
+        for (int c = 0; c < classes; c++) {
+            StringBuilder chars = new StringBuilder();
+            for (int ch = 0; ch < LexerGenerator.ALPHABET - 1; ch++) {
+                if (charClass[ch] == c) {
+                    if (ch == ' ') {
+                        chars.append("\\s");
+                    } else if (ch == '\t') {
+                        chars.append("\\t");
+                    } else if (ch == '\r') {
+                        chars.append("\\r");
+                    } else if (ch == '\n') {
+                        chars.append("\\n");
+                    } else if (ch > ' ') {
+                        chars.append((char) ch);
+                    }
+                }
+            }
+            System.out.println(c + "\t" + (c == classes - 1 ? "<other>" : chars));
+        }
+        StringBuilder header = new StringBuilder("state\taccept");
+        for (int c = 0; c < classes; c++) {
+            header.append('\t').append(c);
+        }
+        System.out.println(header);
+        for (int s = 0; s < states; s++) {
+            StringBuilder row = new StringBuilder().append(s).append('\t');
+            row.append(accept[s] < 0 ? "-" : String.valueOf(types[accept[s]]));
+            for (int c = 0; c < classes; c++) {
+                int next = table[s * classes + c];
+                row.append('\t').append(next < 0 ? "." : String.valueOf(next));
+            }
+            System.out.println(row);
+        }
+    }
+
+    private static final class TableToken implements Token {
+        private final TokenType type;
+        private final String text;
+
+        TableToken(TokenType type, String text) {
+            this.type = type;
+            this.text = text;
+        }
+
+        @Override
+        public TokenType getType() {
+            return type;
+        }
+
+        @Override
+        public String getText() {
+            return text;
+        }
+    }
+
+    /**
+     * 一个简单的Token流，是把一个Token列表进行了封装。
+     */
+    private static final class TableTokenReader implements TokenReader {
+        private final List<Token> tokens;
+        private int pos = 0;
+
+        TableTokenReader(List<Token> tokens) {
+            this.tokens = tokens;
+        }
+
+        @Override
+        public Token read() {
+            if (pos < tokens.size()) {
+                return tokens.get(pos++);
+            }
+            return null;
+        }
+
+        @Override
+        public Token peek() {
+            if (pos < tokens.size()) {
+                return tokens.get(pos);
+            }
+            return null;
+        }
+
+        @Override
+        public void unread() {
+            if (pos > 0) {
+                pos--;
+            }
+        }
+
+        @Override
+        public int getPosition() {
+            return pos;
+        }
+
+        @Override
+        public void setPosition(int position) {
+            if (position >= 0 && position < tokens.size()) {
+                pos = position;
+            }
+        }
+    }
+
+}
@@ -19,4 +19,30 @@ public interface Token {
 	 * @return
 	 */
 	public String getText();
+
+	/**
+	 * IntLiteral按int使用时的值，超出int范围时按32位回绕
+	 * @return
+	 * @throws NumberFormatException 超出了long的范围
+	 */
+	public default int getIntValue() {
+		return (int) this.getLongValue();
+	}
+
+	/**
+	 * IntLiteral的值，可以超出int的范围
+	 * @return
+	 * @throws NumberFormatException 超出了long的范围
+	 */
+	public default long getLongValue() {
+		return Long.parseLong(this.getText());
+	}
+
+	/**
+	 * Identifier在词法分析器的符号表中的编号，没有登记时返回-1
+	 * @return
+	 */
+	public default int getSymbol() {
+		return -1;
+	}
 }
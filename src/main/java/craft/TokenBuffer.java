@@ -0,0 +1,219 @@
+package craft;
+
+import java.util.Arrays;
+
+/**
+ * 按列存放的Token序列，由SimpleLexer生成。
+ * 每个Token只记录类型、在源代码中的起始位置和长度，IntLiteral还预先算好了整数值，
+ * 分别放在几个平行的int数组中，词法分析时不为Token创建String。
+ * Token的文本在第一次调用getText()时才从源代码中截取。
+ * Identifier在加入时登记到符号表，记录符号的编号，文本就是符号表中的名字。
+ */
+public final class TokenBuffer {
+
+    private static final TokenType[] TYPES = TokenType.values();
+
+    //整数值超出int范围的IntLiteral，取值时按原来的方式解析，报同样的错
+    private static final int OVERFLOW = -1;
+
+    private final CharSequence source;
+    private final SymbolTable symbols;
+
+    private int[] types;
+    private int[] starts;
+    private int[] lengths;
+    //IntLiteral的值，或者Identifier的符号编号
+    private int[] values;
+    private int count = 0;
+
+    //已经创建的Token对象，按位置缓存，回溯以后再读到时不用重新创建
+    private Token[] views = null;
+
+    public TokenBuffer(CharSequence source, SymbolTable symbols) {
+        this.source = source;
+        this.symbols = symbols;
+        //按平均每个Token占4个字符预估容量，一般不需要再扩容
+        int capacity = Math.max(16, source.length() / 4);
+        types = new int[capacity];
+        starts = new int[capacity];
+        lengths = new int[capacity];
+        values = new int[capacity];
+    }
+
+    /**
+     * 追加一个Token
+     * @param type
+     * @param start 在源代码中的起始位置
+     * @param length
+     */
+    void add(TokenType type, int start, int length) {
+        if (count == types.length) {
+            int capacity = count * 2;
+            types = Arrays.copyOf(types, capacity);
+            starts = Arrays.copyOf(starts, capacity);
+            lengths = Arrays.copyOf(lengths, capacity);
+            values = Arrays.copyOf(values, capacity);
+        }
+        types[count] = type.ordinal();
+        starts[count] = start;
+        lengths[count] = length;
+        if (type == TokenType.IntLiteral) {
+            values[count] = this.parseInt(start, length);
+        } else if (type == TokenType.Identifier) {
+            values[count] = symbols.intern(source, start, length);
+        } else {
+            values[count] = 0;
+        }
+        count++;
+    }
+
+    private int parseInt(int start, int length) {
+        long value = 0;
+        for (int i = start; i < start + length; i++) {
+            value = value * 10 + (source.charAt(i) - '0');
+            if (value > Integer.MAX_VALUE) {
+                return OVERFLOW;
+            }
+        }
+        return (int) value;
+    }
+
+    /**
+     * Token的个数
+     * @return
+     */
+    public int size() {
+        return count;
+    }
+
+    public TokenType getType(int index) {
+        return TYPES[types[index]];
+    }
+
+    public int getStart(int index) {
+        return starts[index];
+    }
+
+    public int getLength(int index) {
+        return lengths[index];
+    }
+
+    /**
+     * 从源代码中截取Token的文本
+     * @param index
+     * @return
+     */
+    public String getText(int index) {
+        if (types[index] == TokenType.Identifier.ordinal()) {
+            return symbols.nameOf(values[index]);
+        }
+        return source.subSequence(starts[index], starts[index] + lengths[index]).toString();
+    }
+
+    /**
+     * IntLiteral按int使用时的值，超出int范围时按32位回绕，和LiteralNode.getValue()一样
+     * @param index
+     * @return
+     * @throws NumberFormatException 超出了long的范围
+     */
+    public int getValue(int index) {
+        if (values[index] == OVERFLOW) {
+            return (int) this.getLongValue(index);
+        }
+        return values[index];
+    }
+
+    /**
+     * IntLiteral的值，超出int范围的字面量直接从源代码的字符计算，不创建String
+     * @param index
+     * @return
+     * @throws NumberFormatException 超出了long的范围
+     */
+    public long getLongValue(int index) {
+        if (values[index] != OVERFLOW) {
+            return values[index];
+        }
+        long value = 0;
+        int start = starts[index];
+        for (int i = start; i < start + lengths[index]; i++) {
+            int digit = source.charAt(i) - '0';
+            if (value > (Long.MAX_VALUE - digit) / 10) {
+                throw new NumberFormatException("For input string: \"" + this.getText(index) + "\"");
+            }
+            value = value * 10 + digit;
+        }
+        return value;
+    }
+
+    /**
+     * Identifier的符号编号，其他Token返回-1
+     * @param index
+     * @return
+     */
+    public int getSymbol(int index) {
+        if (types[index] == TokenType.Identifier.ordinal()) {
+            return values[index];
+        }
+        return -1;
+    }
+
+    /**
+     * 位置index上的Token对象，第一次访问时才创建
+     * @param index
+     * @return
+     */
+    public Token get(int index) {
+        if (views == null) {
+            views = new Token[count];
+        } else if (views.length < count) {
+            views = Arrays.copyOf(views, count);
+        }
+        Token token = views[index];
+        if (token == null) {
+            token = new BufferedToken(index);
+            views[index] = token;
+        }
+        return token;
+    }
+
+    /**
+     * 指向TokenBuffer中某个位置的Token，文本在第一次使用时才创建
+     */
+    private final class BufferedToken implements Token {
+        private final int index;
+        private String text = null;
+
+        BufferedToken(int index) {
+            this.index = index;
+        }
+
+        @Override
+        public TokenType getType() {
+            return TokenBuffer.this.getType(index);
+        }
+
+        @Override
+        public String getText() {
+            if (text == null) {
+                text = TokenBuffer.this.getText(index);
+            }
+            return text;
+        }
+
+        @Override
+        public int getIntValue() {
+            return TokenBuffer.this.getValue(index);
+        }
+
+        @Override
+        public long getLongValue() {
+            return TokenBuffer.this.getLongValue(index);
+        }
+
+        @Override
+        public int getSymbol() {
+            return TokenBuffer.this.getSymbol(index);
+        }
+    }
+
+}
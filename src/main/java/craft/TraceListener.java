@@ -0,0 +1,26 @@
+package craft;
+
+/**
+ * 求值过程的监听器。
+ * 安装了监听器时，求值器在开始计算每个AST节点时调用enter()，算出结果后调用exit()；
+ * 没有安装时求值器不会调用它，也不做任何和跟踪有关的字符串拼接。
+ * 节点出错时不会调用exit()。
+ */
+public interface TraceListener {
+
+    /**
+     * 开始计算一个节点
+     * @param node
+     * @param depth 节点的深度，求值的起点为0，每下一级加1
+     */
+    void enter(ASTNode node, int depth);
+
+    /**
+     * 一个节点计算完成
+     * @param node
+     * @param depth 和enter()时相同
+     * @param result 节点的值，一般是Integer，超出int范围时是Long；语句的值可能为null
+     */
+    void exit(ASTNode node, int depth, Number result);
+
+}
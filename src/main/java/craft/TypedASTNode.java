@@ -0,0 +1,319 @@
+package craft;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * 按节点类型特化的AST节点。
+ * 字面量节点保存解析好的long值，二元表达式节点保存运算符和左右两个子节点，
+ * 求值时直接读取这些字段，不需要再解析文本。
+ * getChildren()和getText()只是为dumpAST等工具提供的视图，在调用时才生成。
+ */
+public abstract class TypedASTNode implements ASTNode {
+
+    TypedASTNode parent = null;
+
+    @Override
+    public ASTNode getParent() {
+        return parent;
+    }
+
+    @Override
+    public List<ASTNode> getChildren() {
+        return Collections.emptyList();
+    }
+
+    /**
+     * 程序，子节点是一条条语句
+     */
+    public static final class ProgramNode extends TypedASTNode {
+        private final String name;
+        private final List<TypedASTNode> statements = new ArrayList<>();
+
+        public ProgramNode(String name) {
+            this.name = name;
+        }
+
+        public void addStatement(TypedASTNode statement) {
+            statements.add(statement);
+            statement.parent = this;
+        }
+
+        public List<TypedASTNode> getStatements() {
+            return Collections.unmodifiableList(statements);
+        }
+
+        @Override
+        public List<ASTNode> getChildren() {
+            return Collections.<ASTNode>unmodifiableList(statements);
+        }
+
+        @Override
+        public ASTNodeType getType() {
+            return ASTNodeType.Program;
+        }
+
+        @Override
+        public String getText() {
+            return name;
+        }
+    }
+
+    /**
+     * 整型变量声明，初始化表达式可以为null
+     */
+    public static final class DeclarationNode extends TypedASTNode {
+        private final String varName;
+        private final int symbol;
+        private final ExpressionNode init;
+
+        public DeclarationNode(String varName, ExpressionNode init) {
+            this(varName, -1, init);
+        }
+
+        public DeclarationNode(String varName, int symbol, ExpressionNode init) {
+            this.varName = varName;
+            this.symbol = symbol;
+            this.init = init;
+            if (init != null) {
+                init.parent = this;
+            }
+        }
+
+        public String getVarName() {
+            return varName;
+        }
+
+        /**
+         * 变量名在符号表中的编号，没有登记时为-1
+         * @return
+         */
+        public int getSymbol() {
+            return symbol;
+        }
+
+        public ExpressionNode getInit() {
+            return init;
+        }
+
+        @Override
+        public List<ASTNode> getChildren() {
+            if (init == null) {
+                return Collections.emptyList();
+            }
+            return Collections.<ASTNode>singletonList(init);
+        }
+
+        @Override
+        public ASTNodeType getType() {
+            return ASTNodeType.IntDeclaration;
+        }
+
+        @Override
+        public String getText() {
+            return varName;
+        }
+    }
+
+    /**
+     * 赋值语句
+     */
+    public static final class AssignmentNode extends TypedASTNode {
+        private final String varName;
+        private final int symbol;
+        private final ExpressionNode value;
+
+        public AssignmentNode(String varName, ExpressionNode value) {
+            this(varName, -1, value);
+        }
+
+        public AssignmentNode(String varName, int symbol, ExpressionNode value) {
+            this.varName = varName;
+            this.symbol = symbol;
+            this.value = value;
+            if (value != null) {
+                value.parent = this;
+            }
+        }
+
+        public String getVarName() {
+            return varName;
+        }
+
+        /**
+         * 变量名在符号表中的编号，没有登记时为-1
+         * @return
+         */
+        public int getSymbol() {
+            return symbol;
+        }
+
+        public ExpressionNode getValue() {
+            return value;
+        }
+
+        @Override
+        public List<ASTNode> getChildren() {
+            if (value == null) {
+                return Collections.emptyList();
+            }
+            return Collections.<ASTNode>singletonList(value);
+        }
+
+        @Override
+        public ASTNodeType getType() {
+            return ASTNodeType.AssignmentStmt;
+        }
+
+        @Override
+        public String getText() {
+            return varName;
+        }
+    }
+
+    /**
+     * 表达式节点的基类
+     */
+    public abstract static class ExpressionNode extends TypedASTNode {
+    }
+
+    /**
+     * 二元表达式，包括加法表达式和乘法表达式
+     */
+    public static final class BinaryNode extends ExpressionNode {
+        private final BinaryOperator operator;
+        private final ExpressionNode left;
+        private final ExpressionNode right;
+
+        public BinaryNode(BinaryOperator operator, ExpressionNode left, ExpressionNode right) {
+            this.operator = operator;
+            this.left = left;
+            this.right = right;
+            left.parent = this;
+            right.parent = this;
+        }
+
+        public BinaryOperator getOperator() {
+            return operator;
+        }
+
+        public ExpressionNode getLeft() {
+            return left;
+        }
+
+        public ExpressionNode getRight() {
+            return right;
+        }
+
+        @Override
+        public List<ASTNode> getChildren() {
+            return Collections.unmodifiableList(Arrays.<ASTNode>asList(left, right));
+        }
+
+        @Override
+        public ASTNodeType getType() {
+            return operator.getNodeType();
+        }
+
+        @Override
+        public String getText() {
+            return operator.getText();
+        }
+    }
+
+    /**
+     * 整型字面量
+     */
+    public static final class LiteralNode extends ExpressionNode {
+        private final long value;
+
+        public LiteralNode(long value) {
+            this.value = value;
+        }
+
+        /**
+         * 按int使用时的值，超出int范围时按32位回绕
+         * @return
+         */
+        public int getValue() {
+            return (int) value;
+        }
+
+        /**
+         * 字面量的完整的值
+         * @return
+         */
+        public long getLongValue() {
+            return value;
+        }
+
+        /**
+         * 任意IntLiteral节点的值：LiteralNode直接读取，其他ASTNode解析它的文本
+         * @param node
+         * @return
+         * @throws Exception 文本超出long的范围
+         */
+        public static long valueOf(ASTNode node) throws Exception {
+            if (node instanceof LiteralNode) {
+                return ((LiteralNode) node).value;
+            }
+            try {
+                return Long.parseLong(node.getText());
+            } catch (NumberFormatException e) {
+                throw new Exception("integer literal is too large: " + node.getText());
+            }
+        }
+
+        @Override
+        public ASTNodeType getType() {
+            return ASTNodeType.IntLiteral;
+        }
+
+        @Override
+        public String getText() {
+            return String.valueOf(value);
+        }
+    }
+
+    /**
+     * 标识符，即变量的引用
+     */
+    public static final class IdentifierNode extends ExpressionNode {
+        private final String varName;
+        private final int symbol;
+
+        public IdentifierNode(String varName) {
+            this(varName, -1);
+        }
+
+        public IdentifierNode(String varName, int symbol) {
+            this.varName = varName;
+            this.symbol = symbol;
+        }
+
+        public String getVarName() {
+            return varName;
+        }
+
+        /**
+         * 变量名在符号表中的编号，没有登记时为-1
+         * @return
+         */
+        public int getSymbol() {
+            return symbol;
+        }
+
+        @Override
+        public ASTNodeType getType() {
+            return ASTNodeType.Identifier;
+        }
+
+        @Override
+        public String getText() {
+            return varName;
+        }
+    }
+
+}
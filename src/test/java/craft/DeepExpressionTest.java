@@ -0,0 +1,127 @@
+package craft;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * 很长、很深的表达式在各种执行方式下的测试。
+ * 在一个只有512K栈的线程中执行，每种方式都要算出正确的结果，或者报告一个普通的脚本错误，
+ * 不能出现StackOverflowError。
+ * 用法：java craft.DeepExpressionTest [项数]
+ */
+public class DeepExpressionTest {
+
+    /**
+     * 作为JUnit测试运行
+     */
+    @Test
+    public void deepExpressionsDoNotOverflowStack() throws Exception {
+        main(new String[0]);
+    }
+
+    public static void main(String[] args) throws Exception {
+        int terms = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+        Throwable[] failure = new Throwable[1];
+        Thread thread = new Thread(null, () -> {
+            try {
+                run(terms);
+            } catch (Throwable e) {
+                failure[0] = e;
+            }
+        }, "deep", 512 * 1024);
+        thread.start();
+        thread.join();
+        if (failure[0] != null) {
+            throw new Exception("failed", failure[0]);
+        }
+        System.out.println("OK");
+    }
+
+    private static void run(int terms) throws Exception {
+        String expected = String.valueOf(terms);
+        String tooLarge = "error: script is too large to compile";
+        String[] scripts = {chain("1", terms), chain("a", terms), nested("1", terms / 4)};
+        String[] results = {expected, expected, String.valueOf(terms / 4)};
+        for (int i = 0; i < scripts.length; i++) {
+            String script = scripts[i];
+            String result = results[i];
+            String name = i == 0 ? "1+1+..." : i == 1 ? "a+a+..." : "1+(1+(...))";
+            String declared = script.startsWith("a") ? "int a = 1;" + script : script;
+
+            check(name, "closure", result, run(() -> {
+                SimpleScript compiled = new SimpleScript();
+                return compiled.evaluate(new SimpleParser(compiled.getSymbols()).parse(declared));
+            }));
+            check(name, "stack-vm", result, run(() -> {
+                SimpleParser parser = new SimpleParser();
+                Environment env = new Environment(parser.getSymbols());
+                StackVM vm = new StackVM();
+                return vm.run(vm.compile(parser.parse(declared), env), env);
+            }));
+            //生成的方法超过了64K字节
+            check(name, "bytecode", tooLarge, run(() -> bytecode(declared)));
+            check(name, "batch", result, run(() -> {
+                Map<String, int[]> columns = new HashMap<>();
+                columns.put("a", new int[]{1, 1, 1});
+                return new BatchEvaluator().evaluate(new SimpleParser().parse(script), columns, 3)[2];
+            }));
+            //逐行计算
+            check(name, "batch rows", "error: / by zero", run(() -> {
+                Map<String, int[]> columns = new HashMap<>();
+                columns.put("a", new int[]{1, 1, 1});
+                return new BatchEvaluator().evaluate(new SimpleParser().parse("(" + script.replace(";", ") / 0;")),
+                        columns, 3)[0];
+            }));
+            System.out.println(name + "\t" + terms + " terms\tOK");
+        }
+        //不太大的表达式仍然可以编译成字节码
+        check("1+1+...", "bytecode", "5000", run(() -> bytecode(chain("1", 5000))));
+    }
+
+    private static Integer bytecode(String script) throws Exception {
+        SimpleParser parser = new SimpleParser();
+        Environment env = new Environment(parser.getSymbols());
+        return new BytecodeCompiler().compile(parser.parse(script), env).execute(env);
+    }
+
+    private static String chain(String term, int count) {
+        StringBuilder sb = new StringBuilder(term);
+        for (int i = 1; i < count; i++) {
+            sb.append('+').append(term);
+        }
+        return sb.append(';').toString();
+    }
+
+    private static String nested(String term, int count) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 1; i < count; i++) {
+            sb.append(term).append("+(");
+        }
+        sb.append(term);
+        for (int i = 1; i < count; i++) {
+            sb.append(')');
+        }
+        return sb.append(';').toString();
+    }
+
+    /**
+     * 执行的结果，出错时是异常信息
+     */
+    private static String run(Callable<Object> task) {
+        try {
+            return String.valueOf(task.call());
+        } catch (Exception e) {
+            return "error: " + e.getMessage();
+        }
+    }
+
+    private static void check(String script, String backend, String expected, String actual) throws Exception {
+        if (!expected.equals(actual)) {
+            throw new Exception(backend + ": expected " + expected + " but got " + actual + " for " + script);
+        }
+    }
+
+}
@@ -0,0 +1,119 @@
+package craft;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * ScriptEngine的多线程压力测试。
+ * 许多会话分给多个线程，每个线程轮流在自己的会话上执行同样的几段脚本，
+ * 最后检查每个会话的变量是否和单独执行时一样，以及出错时的异常信息是否正确。
+ * 每个会话还用了一个别的会话都没有的变量名，检查会话的存储空间只和它自己的变量有关，
+ * 不会随着会话数增长。
+ * 用法：java craft.EngineStressTest [线程数] [会话数] [轮数]
+ */
+public class EngineStressTest {
+
+    private static final String INIT = "int a = 0; int b; b = 0;";
+    private static final String STEP = "a = a + 1; b = b + a;";
+    private static final String ERROR = "c * 2;";
+
+    //新的Environment的槽位数
+    private static final int INITIAL_CAPACITY = new Environment().capacity();
+
+    /**
+     * 作为JUnit测试运行，用比默认少的会话和轮数
+     */
+    @Test
+    public void sessionsStayIsolated() throws Exception {
+        main(new String[]{"2", "2000", "50"});
+    }
+
+    public static void main(String[] args) throws Exception {
+        int threads = args.length > 0 ? Integer.parseInt(args[0]) : Runtime.getRuntime().availableProcessors();
+        int sessions = args.length > 1 ? Integer.parseInt(args[1]) : 10000;
+        int rounds = args.length > 2 ? Integer.parseInt(args[2]) : 200;
+
+        ScriptEngine engine = new ScriptEngine();
+        ClosureCompiler.Program step = engine.prepare(STEP);
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        List<Future<Long>> futures = new ArrayList<>();
+        long start = System.nanoTime();
+        for (int t = 0; t < threads; t++) {
+            int from = sessions * t / threads;
+            int to = sessions * (t + 1) / threads;
+            futures.add(executor.submit(() -> run(engine, step, from, to, rounds)));
+        }
+        long statements = 0;
+        for (Future<Long> future : futures) {
+            statements += future.get();
+        }
+        long time = System.nanoTime() - start;
+        executor.shutdown();
+
+        System.out.println("threads: " + threads + ", sessions: " + sessions + ", rounds: " + rounds);
+        System.out.println("executed " + statements + " statements in " + time / 1000000 + " ms, "
+                + statements * 1000000000L / time + " statements/s");
+        System.out.println("cache: " + engine.getCache());
+    }
+
+    /**
+     * 在会话from到to-1上轮流执行脚本，返回执行的语句数
+     */
+    private static long run(ScriptEngine engine, ClosureCompiler.Program step, int from, int to, int rounds)
+            throws Exception {
+        ScriptEngine.Session[] sessions = new ScriptEngine.Session[to - from];
+        long statements = 0;
+        for (int i = 0; i < sessions.length; i++) {
+            sessions[i] = engine.newSession();
+            sessions[i].eval(INIT);
+            //每个会话还有一个自己的变量，不同线程会同时登记新的变量名
+            int id = from + i;
+            check(id, sessions[i].eval("int s" + id + " = " + id + ";"), id);
+            statements += 4;
+        }
+        for (int round = 1; round <= rounds; round++) {
+            for (int i = 0; i < sessions.length; i++) {
+                Number b = round % 2 == 0 ? sessions[i].execute(step) : sessions[i].eval(STEP);
+                check(from + i, b, round * (round + 1) / 2);
+                statements += 2;
+            }
+        }
+        for (int i = 0; i < sessions.length; i++) {
+            int id = from + i;
+            Environment variables = sessions[i].getVariables();
+            check(id, variables.get("a"), rounds);
+            check(id, variables.get("s" + id), id);
+            if (id > 0 && variables.get("s" + (id - 1)) != null) {
+                throw new Exception("session " + id + " sees the variables of another session");
+            }
+            try {
+                sessions[i].eval(ERROR);
+                throw new Exception("session " + id + " expected an error");
+            } catch (Exception e) {
+                if (!"unknown variable:c".equals(e.getMessage())) {
+                    throw e;
+                }
+            }
+            statements++;
+            //只登记了a、b、s<id>和出错的脚本中的c，存储空间还是初始的大小
+            if (sessions[i].getSymbols().size() != 4 || variables.capacity() > INITIAL_CAPACITY) {
+                throw new Exception("session " + id + " has " + sessions[i].getSymbols().size() + " symbols and "
+                        + variables.capacity() + " slots, its storage grows with the names of other sessions");
+            }
+        }
+        return statements;
+    }
+
+    private static void check(int session, Number actual, int expected) throws Exception {
+        if (actual == null || actual.longValue() != expected) {
+            throw new Exception("session " + session + ": expected " + expected + " but got " + actual);
+        }
+    }
+
+}
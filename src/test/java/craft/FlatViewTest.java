@@ -0,0 +1,154 @@
+package craft;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * FlatAST.getRoot()的视图交给各个使用ASTNode的地方时的测试。
+ * 视图不是TypedASTNode，在每种ArithmeticMode下，编译执行、安装了TraceListener时的遍历、
+ * 常量折叠以后再执行，结果都要和对SimpleParser生成的AST求值一样，跟踪到的求值过程也要一样。
+ * 其他实现的ASTNode上出现不认识的运算符时，各处都报告脚本错误，而不是NullPointerException。
+ * 用法：java craft.FlatViewTest
+ */
+public class FlatViewTest {
+
+    private static final String[] SCRIPTS = {
+            "int a = 2 + 3 * 5; int b; b = a * (a - 1); b / 4 - a;",
+            "int big = 3000000000; big + 1;",
+            "int x = 7; x * 0 + 2147483647 + 1;",
+            "int y; y * 0;",
+            "int z = 1; z / (z - 1);",
+    };
+
+    /**
+     * 作为JUnit测试运行
+     */
+    @Test
+    public void viewsMatchTrees() throws Exception {
+        main(new String[0]);
+    }
+
+    public static void main(String[] args) throws Exception {
+        for (String script : SCRIPTS) {
+            for (ArithmeticMode mode : ArithmeticMode.values()) {
+                SimpleParser parser = new SimpleParser();
+                ASTNode tree = parser.parse(script);
+                ASTNode view = FlatAST.encode(tree, parser.getSymbols()).getRoot();
+
+                String expected = run(() -> script(mode, null).evaluate(tree));
+                check(script, mode + " compiled", expected, run(() -> script(mode, null).evaluate(view)));
+                check(script, mode + " folded", expected,
+                        run(() -> script(mode, null).evaluate(new ConstantFolder(mode).fold(view))));
+
+                List<String> treeTrace = new ArrayList<>();
+                List<String> viewTrace = new ArrayList<>();
+                check(script, mode + " traced", expected, run(() -> script(mode, treeTrace).evaluate(tree)));
+                check(script, mode + " traced view", expected, run(() -> script(mode, viewTrace).evaluate(view)));
+                check(script, mode + " trace", treeTrace.toString(), viewTrace.toString());
+                System.out.println(mode + "\t" + expected + "\t" + viewTrace.size() + " events");
+            }
+        }
+
+        //按列计算
+        SimpleParser parser = new SimpleParser();
+        ASTNode tree = parser.parse("(x + 1) * 3000000000;");
+        ASTNode view = FlatAST.encode(tree, parser.getSymbols()).getRoot();
+        Map<String, int[]> columns = new HashMap<>();
+        columns.put("x", new int[]{1, 2, 3, 4});
+        BatchEvaluator batch = new BatchEvaluator();
+        check("(x + 1) * 3000000000;", "batch", Arrays.toString(batch.evaluate(tree, columns, 4)),
+                Arrays.toString(batch.evaluate(view, columns, 4)));
+
+        //运算符不认识的节点
+        ASTNode foreign = new Node(ASTNodeType.Additive, "%",
+                new Node(ASTNodeType.IntLiteral, "1"), new Node(ASTNodeType.IntLiteral, "2"));
+        ASTNode program = new Node(ASTNodeType.Program, "foreign", foreign);
+        String unknown = "error: unknown operator: %";
+        check("1 % 2;", "batch", unknown, run(() -> batch.evaluate(foreign, columns, 4)));
+        check("1 % 2;", "folder", unknown, run(() -> new ConstantFolder().fold(program)));
+        check("1 % 2;", "intern", unknown, run(() -> new NodeFactory().intern(foreign)));
+        check("1 % 2;", "compiled", unknown, run(() -> new SimpleScript().evaluate(program)));
+        System.out.println("OK");
+    }
+
+    /**
+     * 其他实现的AST节点
+     */
+    private static final class Node implements ASTNode {
+        private final ASTNodeType type;
+        private final String text;
+        private final List<ASTNode> children;
+
+        Node(ASTNodeType type, String text, ASTNode... children) {
+            this.type = type;
+            this.text = text;
+            this.children = Arrays.asList(children);
+        }
+
+        @Override
+        public ASTNode getParent() {
+            return null;
+        }
+
+        @Override
+        public List<ASTNode> getChildren() {
+            return children;
+        }
+
+        @Override
+        public ASTNodeType getType() {
+            return type;
+        }
+
+        @Override
+        public String getText() {
+            return text;
+        }
+    }
+
+    /**
+     * 新的SimpleScript，trace不为null时安装一个记录求值过程的监听器
+     */
+    private static SimpleScript script(ArithmeticMode mode, List<String> trace) {
+        SimpleScript script = new SimpleScript();
+        script.setArithmeticMode(mode);
+        if (trace != null) {
+            script.setTraceListener(new TraceListener() {
+                @Override
+                public void enter(ASTNode node, int depth) {
+                    trace.add("enter " + node.getType() + " " + node.getText() + " " + depth);
+                }
+
+                @Override
+                public void exit(ASTNode node, int depth, Number result) {
+                    trace.add("exit " + node.getType() + " " + node.getText() + " " + depth + " = " + result);
+                }
+            });
+        }
+        return script;
+    }
+
+    /**
+     * 执行的结果，出错时是异常信息
+     */
+    private static String run(Callable<Object> task) {
+        try {
+            return String.valueOf(task.call());
+        } catch (Exception e) {
+            return "error: " + e.getMessage();
+        }
+    }
+
+    private static void check(String script, String what, String expected, String actual) throws Exception {
+        if (!expected.equals(actual)) {
+            throw new Exception(what + ": expected " + expected + " but got " + actual + " for " + script);
+        }
+    }
+
+}
@@ -0,0 +1,162 @@
+package craft;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * ScriptServer对恶意客户端的限制的测试。
+ * 检查没有换行的超长输入、不断登记新变量名的会话都会被断开，
+ * 以及许多会话各自使用不同的变量名时，服务器的内存只和每个会话自己的变量有关。
+ * 用法：java craft.ScriptServerLimitTest [会话数] [每个会话的变量数]
+ */
+public class ScriptServerLimitTest {
+
+    /**
+     * 作为JUnit测试运行
+     */
+    @Test
+    public void abusiveClientsAreDisconnected() throws Exception {
+        main(new String[0]);
+    }
+
+    public static void main(String[] args) throws Exception {
+        int sessions = args.length > 0 ? Integer.parseInt(args[0]) : 500;
+        int names = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+
+        ScriptServer server = new ScriptServer(new ScriptEngine());
+        SocketAddress address = server.bind(ScriptServer.parseAddress("127.0.0.1:0"));
+        server.start();
+
+        //一行超过最大长度，服务器不会一直缓冲下去
+        try (SocketChannel channel = SocketChannel.open(address)) {
+            BufferedReader in = reader(channel);
+            readUntilPrompt(in);
+            byte[] line = new byte[ScriptServer.MAX_LINE_LENGTH + 1];
+            Arrays.fill(line, (byte) 'a');
+            write(channel, line);
+            expectClosed(in, "line is too long");
+        }
+        System.out.println("long line: disconnected");
+
+        //一个会话不断声明新的变量
+        try (SocketChannel channel = SocketChannel.open(address)) {
+            BufferedReader in = reader(channel);
+            readUntilPrompt(in);
+            int declared = 0;
+            while (declared <= ScriptServer.MAX_VARIABLES) {
+                StringBuilder sb = new StringBuilder();
+                for (int i = 0; i < 1000; i++) {
+                    sb.append("int x").append(declared++).append(';');
+                }
+                write(channel, (sb + "\n").getBytes(StandardCharsets.UTF_8));
+                if (declared <= ScriptServer.MAX_VARIABLES) {
+                    readUntilPrompt(in);
+                }
+            }
+            expectClosed(in, "too many variables");
+        }
+        System.out.println("too many variables: disconnected");
+
+        //许多会话同时在线，每个会话用自己的变量名
+        long before = usedHeap();
+        List<SocketChannel> clients = new ArrayList<>();
+        for (int s = 0; s < sessions; s++) {
+            SocketChannel channel = SocketChannel.open(address);
+            BufferedReader in = reader(channel);
+            readUntilPrompt(in);
+            StringBuilder sb = new StringBuilder();
+            for (int i = 0; i < names; i++) {
+                sb.append("int s").append(s).append('n').append(i).append(" = ").append(i).append(';');
+            }
+            write(channel, (sb + "\n").getBytes(StandardCharsets.UTF_8));
+            String result = readUntilPrompt(in);
+            if (!String.valueOf(names - 1).equals(result)) {
+                throw new Exception("session " + s + ": expected " + (names - 1) + " but got " + result);
+            }
+            clients.add(channel);
+        }
+        long growth = usedHeap() - before;
+        long perSession = growth / sessions;
+        System.out.println(sessions + " sessions with " + names + " distinct names each: "
+                + growth / 1024 + " KB, " + perSession + " bytes per session");
+        //每个变量名大约100个字节：String、符号表和Environment中的存储。
+        //如果会话的存储和所有会话的变量名总数成正比，每个会话会占用几百KB
+        if (perSession > names * 1024L + 64 * 1024) {
+            throw new Exception("per-session memory grows with the names of other sessions: " + perSession + " bytes");
+        }
+        for (SocketChannel channel : clients) {
+            channel.close();
+        }
+        for (int i = 0; i < 100 && server.getActiveSessions() > 0; i++) {
+            Thread.sleep(50);
+        }
+        if (server.getActiveSessions() != 0) {
+            throw new Exception("sessions still active: " + server.getActiveSessions());
+        }
+        server.close();
+        System.out.println("OK");
+    }
+
+    private static BufferedReader reader(SocketChannel channel) {
+        return new BufferedReader(Channels.newReader(channel, StandardCharsets.UTF_8.newDecoder(), 1024));
+    }
+
+    private static void write(SocketChannel channel, byte[] bytes) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    /**
+     * 读到提示符为止，返回第一行非空的输出
+     */
+    private static String readUntilPrompt(BufferedReader in) throws IOException {
+        String result = null;
+        String line = null;
+        while ((line = in.readLine()) != null && !line.equals(">")) {
+            if (result == null && !line.isEmpty()) {
+                result = line;
+            }
+        }
+        if (line == null) {
+            throw new IOException("connection closed, last output: " + result);
+        }
+        return result;
+    }
+
+    /**
+     * 读到连接关闭为止，最后一行应该以message开头
+     */
+    private static void expectClosed(BufferedReader in, String message) throws Exception {
+        String last = null;
+        String line = null;
+        while ((line = in.readLine()) != null) {
+            if (!line.isEmpty() && !line.equals(">")) {
+                last = line;
+            }
+        }
+        if (last == null || !last.startsWith(message)) {
+            throw new Exception("expected \"" + message + "\" before the connection was closed, but got " + last);
+        }
+    }
+
+    private static long usedHeap() throws InterruptedException {
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            Thread.sleep(100);
+        }
+        return Runtime.getRuntime().totalMemory() - Runtime.getRuntime().freeMemory();
+    }
+
+}
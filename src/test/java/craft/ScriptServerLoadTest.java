@@ -0,0 +1,147 @@
+package craft;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * ScriptServer的本机负载测试。
+ * 在同一个JVM中启动服务器，逐步增加连接(会话)数，大部分会话只声明一个变量然后保持空闲；
+ * 每一级随机挑选会话发送语句，测量从发送到收到结果的延迟，观察延迟随会话数的变化。
+ * 用法：java craft.ScriptServerLoadTest [会话数,会话数,...] [每级请求数] [tcp|unix]
+ */
+public class ScriptServerLoadTest {
+
+    /**
+     * 作为JUnit测试运行，只到1000个会话
+     */
+    @Test
+    public void serverAnswersUnderLoad() throws Exception {
+        main(new String[]{"100,1000", "2000"});
+    }
+
+    public static void main(String[] args) throws Exception {
+        String[] levels = (args.length > 0 ? args[0] : "100,1000,4000").split(",");
+        int requests = args.length > 1 ? Integer.parseInt(args[1]) : 5000;
+        boolean unix = args.length > 2 && args[2].equalsIgnoreCase("unix");
+
+        ScriptServer server = new ScriptServer(new ScriptEngine());
+        SocketAddress address;
+        if (unix) {
+            Path path = Files.createTempDirectory("pwc").resolve("server.sock");
+            address = server.bind(UnixDomainSocketAddress.of(path));
+        } else {
+            address = server.bind(ScriptServer.parseAddress("127.0.0.1:0"));
+        }
+        server.start();
+        System.out.println("server: " + address + ", " + server.getThreadKind() + " thread per session");
+        System.out.println("sessions\trequests\tp50(us)\tp90(us)\tp99(us)\tmax(us)\tthreads\theap(MB)");
+
+        List<Client> clients = new ArrayList<>();
+        Random random = new Random(1);
+        for (String level : levels) {
+            int sessions = Integer.parseInt(level.trim());
+            while (clients.size() < sessions) {
+                Client client = new Client(address);
+                client.call("int v = 0;");
+                clients.add(client);
+            }
+
+            long[] latencies = new long[requests];
+            for (int i = 0; i < requests; i++) {
+                Client client = clients.get(random.nextInt(clients.size()));
+                long start = System.nanoTime();
+                String result = client.call("v = v + 1;");
+                latencies[i] = System.nanoTime() - start;
+                client.count++;
+                if (!result.equals(String.valueOf(client.count))) {
+                    throw new Exception("expected " + client.count + " but got " + result);
+                }
+            }
+            Arrays.sort(latencies);
+            System.gc();
+            long heap = Runtime.getRuntime().totalMemory() - Runtime.getRuntime().freeMemory();
+            System.out.println(sessions + "\t\t" + requests + "\t\t" + percentile(latencies, 50)
+                    + "\t" + percentile(latencies, 90) + "\t" + percentile(latencies, 99)
+                    + "\t" + latencies[latencies.length - 1] / 1000
+                    + "\t" + ManagementFactory.getThreadMXBean().getThreadCount() + "\t" + heap / (1024 * 1024));
+        }
+
+        for (Client client : clients) {
+            client.close();
+        }
+        server.close();
+    }
+
+    private static long percentile(long[] sorted, int percent) {
+        return sorted[(int) ((sorted.length - 1) * (long) percent / 100)] / 1000;
+    }
+
+    /**
+     * 一个客户端连接，每次发送一行，读到提示符为止
+     */
+    private static final class Client {
+        private final SocketChannel channel;
+        private final BufferedReader in;
+        private final Writer out;
+        int count = 0;
+
+        Client(SocketAddress address) throws IOException {
+            if (address instanceof UnixDomainSocketAddress) {
+                channel = SocketChannel.open(StandardProtocolFamily.UNIX);
+                channel.connect(address);
+            } else {
+                channel = SocketChannel.open(address);
+            }
+            in = new BufferedReader(Channels.newReader(channel, StandardCharsets.UTF_8.newDecoder(), 256), 256);
+            out = new BufferedWriter(Channels.newWriter(channel, StandardCharsets.UTF_8.newEncoder(), 256), 256);
+            this.readResponse();    //欢迎信息
+        }
+
+        /**
+         * 发送一行，返回结果
+         */
+        String call(String line) throws IOException {
+            out.write(line + "\n");
+            out.flush();
+            return this.readResponse();
+        }
+
+        private String readResponse() throws IOException {
+            String result = null;
+            String line = null;
+            while ((line = in.readLine()) != null && !line.equals(">")) {
+                if (result == null && !line.isEmpty()) {
+                    result = line;
+                }
+            }
+            if (line == null) {
+                throw new IOException("connection closed");
+            }
+            return result;
+        }
+
+        void close() throws IOException {
+            out.write("exit();\n");
+            out.flush();
+            channel.close();
+        }
+    }
+
+}
@@ -0,0 +1,137 @@
+package craft;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * 超出int范围的字面量在各种执行方式下的测试。
+ * 遍历AST、ClosureCompiler和FlatAST在每种ArithmeticMode下的结果必须一样，包括出错时的异常信息；
+ * 只支持int的StackVM、BytecodeCompiler和BatchEvaluator和WRAP模式的结果一样；
+ * 超出long范围的字面量在语法分析时报错。
+ * 用法：java craft.WideLiteralTest
+ */
+public class WideLiteralTest {
+
+    private static final String[] SCRIPTS = {
+            "int a = 3000000000; a + 1;",
+            "2147483648 - 1;",
+            "int b = 4000000000 / 2; b * 3 - 6000000000;",
+            deep("3000000000", 300),
+    };
+
+    /**
+     * 作为JUnit测试运行
+     */
+    @Test
+    public void wideLiteralsMatchWalker() throws Exception {
+        main(new String[0]);
+    }
+
+    public static void main(String[] args) throws Exception {
+        for (String script : SCRIPTS) {
+            for (ArithmeticMode mode : ArithmeticMode.values()) {
+                String walker = walk(script, mode);
+                check(script, mode + " closure", walker, compile(script, mode));
+                check(script, mode + " flat", walker, flat(script, mode));
+                if (mode == ArithmeticMode.WRAP) {
+                    check(script, "stack-vm", walker, run(() -> {
+                        SimpleParser parser = new SimpleParser();
+                        Environment env = new Environment(parser.getSymbols());
+                        StackVM vm = new StackVM();
+                        return vm.run(vm.compile(parser.parse(script), env), env);
+                    }));
+                    check(script, "bytecode", walker, run(() -> {
+                        SimpleParser parser = new SimpleParser();
+                        Environment env = new Environment(parser.getSymbols());
+                        return new BytecodeCompiler().compile(parser.parse(script), env).execute(env);
+                    }));
+                }
+                System.out.println(mode + "\t" + walker);
+            }
+        }
+
+        //只有表达式的脚本还可以按列计算
+        ASTNode expression = new SimpleParser().parse("x + 3000000000;");
+        Map<String, int[]> columns = new HashMap<>();
+        columns.put("x", new int[]{1, 2, 3});
+        int[] result = new BatchEvaluator().evaluate(expression, columns, 3);
+        for (int i = 0; i < result.length; i++) {
+            check("x + 3000000000;", "batch", String.valueOf((int) (i + 1 + 3000000000L)), String.valueOf(result[i]));
+        }
+
+        check("3000000000", "token", String.valueOf((int) 3000000000L),
+                run(() -> firstToken("3000000000").getIntValue()));
+        String huge = "99999999999999999999";
+        check(huge, "token", "error: For input string: \"" + huge + "\"",
+                run(() -> firstToken(huge).getIntValue()));
+        check(huge, "parser", "error: integer literal is too large: " + huge,
+                run(() -> new SimpleParser().parse("int a = " + huge + ";")));
+        System.out.println("OK");
+    }
+
+    private static String walk(String script, ArithmeticMode mode) {
+        return run(() -> {
+            SimpleScript walker = new SimpleScript();
+            walker.setArithmeticMode(mode);
+            return walker.evaluate(new SimpleParser(walker.getSymbols()).parse(script), 0);
+        });
+    }
+
+    private static String compile(String script, ArithmeticMode mode) {
+        return run(() -> {
+            SimpleScript compiled = new SimpleScript();
+            compiled.setArithmeticMode(mode);
+            return compiled.evaluate(new SimpleParser(compiled.getSymbols()).parse(script));
+        });
+    }
+
+    private static String flat(String script, ArithmeticMode mode) {
+        return run(() -> {
+            SimpleParser parser = new SimpleParser();
+            SimpleScript flat = new SimpleScript();
+            flat.setArithmeticMode(mode);
+            return flat.evaluate(FlatAST.encode(parser.parse(script), parser.getSymbols()));
+        });
+    }
+
+    private static Token firstToken(String code) {
+        TokenReader tokens = new SimpleLexer().tokenize(code);
+        return tokens.read();
+    }
+
+    /**
+     * 执行的结果，出错时是异常信息
+     */
+    private static String run(Callable<Object> task) {
+        try {
+            return String.valueOf(task.call());
+        } catch (Exception e) {
+            return "error: " + e.getMessage();
+        }
+    }
+
+    private static void check(String script, String backend, String expected, String actual) throws Exception {
+        if (!expected.equals(actual)) {
+            throw new Exception(backend + ": expected " + expected + " but got " + actual + " for " + shorten(script));
+        }
+    }
+
+    /**
+     * literal + 1 + 1 ...，字面量在表达式最深的地方，ClosureCompiler会把它编译成Postfix
+     */
+    private static String deep(String literal, int depth) {
+        StringBuilder sb = new StringBuilder(literal);
+        for (int i = 0; i < depth; i++) {
+            sb.append(" + 1");
+        }
+        return sb.append(';').toString();
+    }
+
+    private static String shorten(String script) {
+        return script.length() > 60 ? script.substring(0, 60) + "..." : script;
+    }
+
+}
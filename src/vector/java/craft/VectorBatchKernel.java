@@ -0,0 +1,68 @@
+package craft;
+
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * 用Vector API实现的按列计算，一次计算一个向量宽度的元素，剩下不满一个向量的部分逐个计算。
+ * 需要jdk.incubator.vector模块，所以放在单独的源代码目录src/vector/java中，另外用--add-modules编译，
+ * src/main/java的编译不依赖这个模块。BatchEvaluator在运行时用反射加载它，
+ * 类不在classpath上或者模块不可用时改用逐个计算的实现。编译和运行的方法见README。
+ *
+ * 整数除法没有对应的SIMD指令，除法仍然逐个计算，这样除数为0时的异常也和int的/一致。
+ */
+final class VectorBatchKernel implements BatchKernel {
+
+    private static final VectorSpecies<Integer> SPECIES = IntVector.SPECIES_PREFERRED;
+
+    @Override
+    public void add(int[] a, int aOffset, int[] b, int bOffset, int[] out, int n) {
+        int i = 0;
+        for (int bound = SPECIES.loopBound(n); i < bound; i += SPECIES.length()) {
+            IntVector x = IntVector.fromArray(SPECIES, a, aOffset + i);
+            IntVector y = IntVector.fromArray(SPECIES, b, bOffset + i);
+            x.add(y).intoArray(out, i);
+        }
+        for (; i < n; i++) {
+            out[i] = a[aOffset + i] + b[bOffset + i];
+        }
+    }
+
+    @Override
+    public void sub(int[] a, int aOffset, int[] b, int bOffset, int[] out, int n) {
+        int i = 0;
+        for (int bound = SPECIES.loopBound(n); i < bound; i += SPECIES.length()) {
+            IntVector x = IntVector.fromArray(SPECIES, a, aOffset + i);
+            IntVector y = IntVector.fromArray(SPECIES, b, bOffset + i);
+            x.sub(y).intoArray(out, i);
+        }
+        for (; i < n; i++) {
+            out[i] = a[aOffset + i] - b[bOffset + i];
+        }
+    }
+
+    @Override
+    public void mul(int[] a, int aOffset, int[] b, int bOffset, int[] out, int n) {
+        int i = 0;
+        for (int bound = SPECIES.loopBound(n); i < bound; i += SPECIES.length()) {
+            IntVector x = IntVector.fromArray(SPECIES, a, aOffset + i);
+            IntVector y = IntVector.fromArray(SPECIES, b, bOffset + i);
+            x.mul(y).intoArray(out, i);
+        }
+        for (; i < n; i++) {
+            out[i] = a[aOffset + i] * b[bOffset + i];
+        }
+    }
+
+    @Override
+    public void div(int[] a, int aOffset, int[] b, int bOffset, int[] out, int n) {
+        for (int i = 0; i < n; i++) {
+            out[i] = BinaryOperator.divide(a[aOffset + i], b[bOffset + i]);
+        }
+    }
+
+    @Override
+    public String getName() {
+        return "vector (" + SPECIES + ")";
+    }
+}